@@ -0,0 +1,65 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Synthetic graphs used by the benchmarks.
+ */
+final class BenchmarkGraphs {
+
+    /**
+     * Number of nodes of each chain. Chains are laid out in columns, like the translation of a method.
+     */
+    private static final int CHAIN_LENGTH = 20;
+
+    private BenchmarkGraphs() {
+    }
+
+    /**
+     * Creates a graph of the given number of nodes, split into chains of {@link #CHAIN_LENGTH} nodes connected by edges.
+     * Each chain is a group, placed in its own column.
+     */
+    @NotNull
+    static SceneGraph createChains(int nodeCount) {
+        SceneGraph graph = new SceneGraph();
+        int group = SceneGraph.NO_GROUP;
+        int previousOutput = -1;
+        for (int i = 0; i < nodeCount; i++) {
+            int column = i / CHAIN_LENGTH;
+            int row = i % CHAIN_LENGTH;
+            if (row == 0) {
+                group = graph.addGroup();
+                previousOutput = -1;
+            }
+            int node = graph.addNode("statement " + i,
+                                     column * (PsiGraphTranslator.NODE_WIDTH + PsiGraphTranslator.NODE_GAP),
+                                     row * (PsiGraphTranslator.NODE_HEIGHT + PsiGraphTranslator.NODE_GAP),
+                                     PsiGraphTranslator.NODE_WIDTH,
+                                     PsiGraphTranslator.NODE_HEIGHT,
+                                     group);
+            int input = graph.addPort(node, PsiGraphTranslator.NODE_WIDTH / 2, 0);
+            if (previousOutput != -1) {
+                graph.addEdge(previousOutput, input);
+            }
+            previousOutput = graph.addPort(node, PsiGraphTranslator.NODE_WIDTH / 2, PsiGraphTranslator.NODE_HEIGHT);
+        }
+        return graph;
+    }
+}
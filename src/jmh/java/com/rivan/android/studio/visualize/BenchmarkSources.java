@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Synthetic Java sources used by the translation benchmarks.
+ */
+final class BenchmarkSources {
+
+    private BenchmarkSources() {
+    }
+
+    /**
+     * Creates the source of a class with the given number of fields and methods. Each method has
+     * {@code statementCount} statements per block, and its blocks are nested {@code depth} times through alternating
+     * {@code if} and {@code for} statements.
+     */
+    @NotNull
+    static String createJavaSource(int methodCount, int statementCount, int depth) {
+        StringBuilder source = new StringBuilder();
+        source.append("package benchmark;\n\npublic class Generated {\n");
+        for (int i = 0; i < methodCount; i++) {
+            source.append("    private int field").append(i).append(";\n");
+        }
+        for (int i = 0; i < methodCount; i++) {
+            source.append("\n    public int method").append(i).append("(int value) {\n");
+            appendBlock(source, statementCount, depth, 2);
+            source.append("        return value;\n    }\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private static void appendBlock(@NotNull StringBuilder source, int statementCount, int depth, int indent) {
+        String prefix = "    ".repeat(indent);
+        for (int i = 0; i < statementCount; i++) {
+            source.append(prefix).append("value = value * 31 + ").append(i).append(";\n");
+        }
+        if (depth > 1) {
+            if (depth % 2 == 0) {
+                source.append(prefix).append("if (value > ").append(depth).append(") {\n");
+                appendBlock(source, statementCount, depth - 1, indent + 1);
+                source.append(prefix).append("} else {\n");
+                appendBlock(source, statementCount, depth - 1, indent + 1);
+                source.append(prefix).append("}\n");
+            } else {
+                source.append(prefix).append("for (int i").append(depth).append(" = 0; i").append(depth)
+                        .append(" < value; i").append(depth).append("++) {\n");
+                appendBlock(source, statementCount, depth - 1, indent + 1);
+                source.append(prefix).append("}\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.tools.idea.configurations.Configuration;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.intellij.core.JavaCoreApplicationEnvironment;
+import com.intellij.core.JavaCoreProjectEnvironment;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Minimal {@link VisualEditorSurface} displaying a fixed {@link SceneManager}, used to benchmark the surface outside of
+ * an editor.
+ * <p>
+ * The surface queues its updates with {@link com.intellij.util.ui.update.MergingUpdateQueue}, which needs an
+ * application, so it is created in a core Java environment by {@link #create}.
+ */
+final class BenchmarkSurface extends VisualEditorSurface<SceneManager> {
+
+    private static final Dimension DEFAULT_OFFSET = new Dimension(20, 20);
+
+    @Nullable private SceneManager sceneManager;
+
+    /**
+     * Creates a surface in a new core Java environment, which is disposed with the given disposable.
+     */
+    @NotNull
+    static BenchmarkSurface create(@NotNull Disposable parentDisposable) {
+        JavaCoreApplicationEnvironment applicationEnvironment = new JavaCoreApplicationEnvironment(parentDisposable);
+        JavaCoreProjectEnvironment projectEnvironment = new JavaCoreProjectEnvironment(parentDisposable, applicationEnvironment);
+        return new BenchmarkSurface(projectEnvironment.getProject(), parentDisposable);
+    }
+
+    private BenchmarkSurface(@NotNull Project project, @NotNull Disposable parentDisposable) {
+        super(project, parentDisposable,
+              surface -> new EditorActionManager<VisualEditorSurface<SceneManager>>(surface) {
+                  @Override
+                  public void registerActionsShortcuts(@NotNull JComponent component) {
+                  }
+              },
+              SurfaceActionHandler::new,
+              ZoomControlsPolicy.VISIBLE);
+    }
+
+    void setSceneManager(@Nullable SceneManager sceneManager) {
+        this.sceneManager = sceneManager;
+        revalidateScrollArea();
+        validateScrollArea();
+    }
+
+    @Nullable
+    @Override
+    public SceneManager getSceneManager() {
+        return sceneManager;
+    }
+
+    @Override
+    protected Dimension getDefaultOffset() {
+        return DEFAULT_OFFSET;
+    }
+
+    @NotNull
+    @Override
+    protected Dimension getPreferredContentSize(int availableWidth, int availableHeight) {
+        if (sceneManager == null) {
+            return new Dimension();
+        }
+        Rectangle2D content = sceneManager.getContentBounds();
+        return new Dimension((int) Math.ceil(content.getMaxX()), (int) Math.ceil(content.getMaxY()));
+    }
+
+    @Override
+    public boolean canZoomToFit() {
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public ImmutableCollection<Configuration> getConfigurations() {
+        return ImmutableList.of();
+    }
+
+    @Override
+    public boolean isPanning() {
+        return false;
+    }
+
+    @Override
+    public void setPanning(boolean isPanning) {
+    }
+
+    @NotNull
+    @Override
+    public Point getScrollPosition() {
+        return getViewport().getViewPosition();
+    }
+
+    @Nullable
+    @Override
+    public Object getData(@NotNull @NonNls String dataId) {
+        return null;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the painting of a graph into an offscreen image, without the tile cache, at the scales of the
+ * different {@link VisualEditorSurface.DetailLevel}s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ScenePaintBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 800;
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int nodeCount;
+
+    /**
+     * Scale of the painted graph: full detail, simplified, and the whole area covered with nodes.
+     */
+    @Param({"1.0", "0.5", "0.1"})
+    public double scale;
+
+    private Disposable disposable;
+    private SceneManager sceneManager;
+    private SceneViewPanel panel;
+    private VisualEditorSurface.DetailLevel detailLevel;
+    private BufferedImage image;
+    private final Rectangle area = new Rectangle(0, 0, WIDTH, HEIGHT);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        disposable = Disposer.newDisposable();
+        BenchmarkSurface surface = BenchmarkSurface.create(disposable);
+        sceneManager = new SceneManager(BenchmarkGraphs.createChains(nodeCount));
+        surface.setSceneManager(sceneManager);
+        surface.setScale(scale);
+        detailLevel = surface.getDetailLevel();
+        panel = new SceneViewPanel(surface);
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Disposer.dispose(disposable);
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        Graphics2D g = image.createGraphics();
+        try {
+            panel.paintScene(g, sceneManager, area, scale, detailLevel);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
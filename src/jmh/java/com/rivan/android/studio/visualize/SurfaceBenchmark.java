@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.tools.adtui.actions.ZoomType;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the zoom operations of {@link VisualEditorSurface}, on graphs of increasing size.
+ * <p>
+ * The surface is created headless, in a core Java environment, and sized like an editor. Magnification gestures assume
+ * the center of the surface as anchor in headless mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SurfaceBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int nodeCount;
+
+    private Disposable disposable;
+    private BenchmarkSurface surface;
+    private double fitScale;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        disposable = Disposer.newDisposable();
+        surface = BenchmarkSurface.create(disposable);
+        surface.setSize(1280, 800);
+        surface.doLayout();
+        surface.getLayeredPane().doLayout();
+        surface.setSceneManager(new SceneManager(BenchmarkGraphs.createChains(nodeCount)));
+        fitScale = surface.getFitScale(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Disposer.dispose(disposable);
+    }
+
+    @Benchmark
+    public double getFitScale() {
+        return surface.getFitScale(false);
+    }
+
+    /**
+     * Alternates between two scales so every call changes the scale.
+     */
+    @Benchmark
+    public void setScale(Blackhole blackhole) {
+        blackhole.consume(surface.setScale(fitScale * 2, 640, 400));
+        blackhole.consume(surface.setScale(fitScale, 640, 400));
+    }
+
+    @Benchmark
+    public void zoomInOut(Blackhole blackhole) {
+        blackhole.consume(surface.zoom(ZoomType.IN));
+        blackhole.consume(surface.zoom(ZoomType.OUT));
+    }
+
+    @Benchmark
+    public void zoomToFit(Blackhole blackhole) {
+        surface.setScale(fitScale * 2);
+        blackhole.consume(surface.zoomToFit());
+    }
+
+    /**
+     * A whole magnification gesture: the preview of each step, then the final scale.
+     */
+    @Benchmark
+    public void magnify() {
+        surface.setScale(fitScale);
+        surface.magnificationStarted(null);
+        for (int step = 1; step <= 10; step++) {
+            surface.magnify(step * 0.01);
+        }
+        surface.magnificationFinished(0.1);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.intellij.core.JavaCoreApplicationEnvironment;
+import com.intellij.core.JavaCoreProjectEnvironment;
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiMethod;
+import com.rivan.android.studio.visualize.scene.LayeredLayout;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the translation of Java files into graphs, on files of increasing size and nesting depth.
+ * <p>
+ * The PSI comes from a core Java environment, the same parser the IDE uses without the rest of the IDE. The translator
+ * is used the way {@link VisualEditorModel} uses it: a full translation when the model is activated, and a translation
+ * of the changed member after an edit. Run with the gc profiler, configured in build.gradle, to get the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranslationBenchmark {
+
+    private static final int STATEMENT_COUNT = 5;
+
+    @Param({"10", "100", "1000"})
+    public int methodCount;
+
+    @Param({"1", "4"})
+    public int depth;
+
+    private Disposable disposable;
+    private PsiJavaFile file;
+    private PsiGraphTranslator translator;
+    private PsiMethod changedMethod;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        disposable = Disposer.newDisposable();
+        JavaCoreApplicationEnvironment applicationEnvironment = new JavaCoreApplicationEnvironment(disposable);
+        JavaCoreProjectEnvironment projectEnvironment = new JavaCoreProjectEnvironment(disposable, applicationEnvironment);
+        String source = BenchmarkSources.createJavaSource(methodCount, STATEMENT_COUNT, depth);
+        file = (PsiJavaFile) PsiFileFactory.getInstance(projectEnvironment.getProject())
+                .createFileFromText("Generated.java", JavaLanguage.INSTANCE, source);
+        PsiMethod[] methods = file.getClasses()[0].getMethods();
+        changedMethod = methods[methods.length / 2];
+    }
+
+    /**
+     * Starts every iteration from a new graph, since the ids of the replaced nodes are never reused and the graph keeps
+     * growing with each translation of the member.
+     */
+    @Setup(Level.Iteration)
+    public void setUpTranslator() {
+        translator = new PsiGraphTranslator(new SceneGraph());
+        translator.translate(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Disposer.dispose(disposable);
+    }
+
+    /**
+     * Translation of the whole file into a new graph, as done when a model is activated.
+     */
+    @Benchmark
+    public SceneGraph translate() {
+        SceneGraph graph = new SceneGraph();
+        new PsiGraphTranslator(graph).translate(file);
+        return graph;
+    }
+
+    /**
+     * Translation and layout of the whole file, as done when an editor is opened.
+     */
+    @Benchmark
+    public SceneGraph translateAndLayout() {
+        SceneGraph graph = new SceneGraph();
+        new PsiGraphTranslator(graph).translate(file);
+        LayeredLayout.create(graph).compute(() -> {}).apply(graph);
+        return graph;
+    }
+
+    /**
+     * Translation of a single method of the file, as done after the method is edited.
+     */
+    @Benchmark
+    public BitSet retranslateMember() {
+        return translator.update(file, Collections.singletonList(changedMethod), false);
+    }
+}
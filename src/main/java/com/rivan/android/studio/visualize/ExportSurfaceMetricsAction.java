@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Saves the {@link SurfaceMetrics} to a JSON file chosen by the user, to be attached to lag reports.
+ */
+public class ExportSurfaceMetricsAction extends DumbAwareAction {
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        // Take the metrics before the dialog is shown, so they don't include the time spent in it
+        String json = SurfaceMetrics.getInstance().toJson();
+        FileSaverDescriptor descriptor =
+                new FileSaverDescriptor("Export Visual Editor Metrics", "Save the Visual Editor metrics as JSON", "json");
+        VirtualFileWrapper target = FileChooserFactory.getInstance()
+                .createSaveFileDialog(descriptor, e.getProject())
+                .save("visual-editor-metrics.json");
+        if (target == null) {
+            return;
+        }
+        try {
+            Files.write(target.getFile().toPath(), json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException exception) {
+            Messages.showErrorDialog(e.getProject(), "Unable to export the metrics: " + exception.getMessage(),
+                                     "Export Visual Editor Metrics");
+        }
+    }
+}
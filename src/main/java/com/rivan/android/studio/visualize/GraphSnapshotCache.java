@@ -0,0 +1,248 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.annotations.concurrency.Slow;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import com.rivan.android.studio.visualize.scene.SceneGraphSerializer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * Local cache of the graphs translated from files, so reopening a file that didn't change since it was last translated
+ * doesn't translate and lay it out again.
+ * <p>
+ * Snapshots are stored in the system directory of the IDE, one file per snapshot, named after a hash of the content of
+ * the translated file and of the versions of the translator and of the graph format. A change of any of them gives a
+ * new key, and the old snapshots are eventually evicted. Snapshots are written in the background, and the least recently
+ * used ones are deleted once the cache grows over {@link #MAX_CACHE_SIZE}.
+ */
+public final class GraphSnapshotCache {
+
+    private static final Logger LOG = Logger.getInstance(GraphSnapshotCache.class);
+
+    /**
+     * Maximum total size of the snapshots, in bytes.
+     */
+    private static final long MAX_CACHE_SIZE = 64L * 1024 * 1024;
+
+    private static final String SNAPSHOT_EXTENSION = ".graph";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    @NotNull private final Path cacheDir = Paths.get(PathManager.getSystemPath(), "visualize", "snapshots");
+
+    /**
+     * Executor writing the snapshots and evicting the old ones, one task at a time.
+     */
+    @NotNull private final ExecutorService writeExecutor =
+            SequentialTaskExecutor.createSequentialApplicationPoolExecutor("Visual Editor Snapshot Cache");
+
+    @NotNull
+    public static GraphSnapshotCache getInstance() {
+        return ApplicationManager.getApplication().getService(GraphSnapshotCache.class);
+    }
+
+    /**
+     * Returns the key of the snapshot of a file with the given content.
+     */
+    @NotNull
+    public static String computeKey(@NotNull CharSequence content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer versions = ByteBuffer.allocate(8);
+        versions.putInt(PsiGraphTranslator.VERSION);
+        versions.putInt(SceneGraphSerializer.FORMAT_VERSION);
+        versions.flip();
+        digest.update(versions);
+        digest.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(content)));
+        return StringUtil.toHexString(digest.digest());
+    }
+
+    /**
+     * Reads the snapshot with the given key. Returns null if there is none, or if it can't be read.
+     */
+    @Slow
+    @Nullable
+    public Snapshot read(@NotNull String key) {
+        Path file = getSnapshotFile(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            SceneGraph graph = SceneGraphSerializer.read(in);
+            int boundsCount = in.readInt();
+            Map<Integer, Rectangle2D.Double> groupBounds = new HashMap<>();
+            for (int i = 0; i < boundsCount; i++) {
+                groupBounds.put(in.readInt(), new Rectangle2D.Double(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble()));
+            }
+            // The modification time orders the snapshots for the eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Snapshot(graph, groupBounds);
+        } catch (IOException e) {
+            LOG.debug("Dropping unreadable snapshot " + file, e);
+            deleteQuietly(file);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a snapshot of the given graph under the given key. The graph is encoded on the calling thread, so it can be
+     * modified as soon as this returns, and the snapshot is written in the background.
+     */
+    public void write(@NotNull String key, @NotNull SceneGraph graph, @NotNull Map<Integer, Rectangle2D.Double> groupBounds) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            SceneGraphSerializer.write(graph, out);
+            out.writeInt(groupBounds.size());
+            for (Map.Entry<Integer, Rectangle2D.Double> entry : groupBounds.entrySet()) {
+                Rectangle2D.Double bounds = entry.getValue();
+                out.writeInt(entry.getKey());
+                out.writeDouble(bounds.x);
+                out.writeDouble(bounds.y);
+                out.writeDouble(bounds.width);
+                out.writeDouble(bounds.height);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by a ByteArrayOutputStream
+        }
+        writeExecutor.execute(() -> writeSnapshot(key, bytes));
+    }
+
+    private void writeSnapshot(@NotNull String key, @NotNull ByteArrayOutputStream bytes) {
+        Path file = getSnapshotFile(key);
+        Path tmpFile = null;
+        try {
+            Files.createDirectories(cacheDir);
+            // Write a temporary file first so a snapshot being read is never incomplete
+            tmpFile = Files.createTempFile(cacheDir, key, TMP_EXTENSION);
+            try (OutputStream out = Files.newOutputStream(tmpFile)) {
+                bytes.writeTo(out);
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.debug("Unable to write snapshot " + file, e);
+            if (tmpFile != null) {
+                deleteQuietly(tmpFile);
+            }
+            return;
+        }
+        evictOldSnapshots();
+    }
+
+    /**
+     * Deletes the least recently used snapshots until the cache is smaller than {@link #MAX_CACHE_SIZE}.
+     */
+    private void evictOldSnapshots() {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(cacheDir)) {
+            // Only count the snapshots: the temporary files are moved or deleted by their writer
+            files = new ArrayList<>();
+            stream.filter(file -> file.getFileName().toString().endsWith(SNAPSHOT_EXTENSION)).forEach(files::add);
+        } catch (IOException e) {
+            LOG.debug("Unable to list snapshots", e);
+            return;
+        }
+
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, Long> times = new HashMap<>();
+        long totalSize = 0;
+        for (Path file : files) {
+            try {
+                long size = Files.size(file);
+                sizes.put(file, size);
+                times.put(file, Files.getLastModifiedTime(file).toMillis());
+                totalSize += size;
+            } catch (IOException ignored) {
+                // Deleted in the meantime
+            }
+        }
+        if (totalSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        List<Path> snapshots = new ArrayList<>(times.keySet());
+        snapshots.sort(Comparator.comparingLong(times::get));
+        for (Path file : snapshots) {
+            if (totalSize <= MAX_CACHE_SIZE) {
+                break;
+            }
+            if (deleteQuietly(file)) {
+                totalSize -= sizes.get(file);
+            }
+        }
+    }
+
+    @NotNull
+    private Path getSnapshotFile(@NotNull String key) {
+        return cacheDir.resolve(key + SNAPSHOT_EXTENSION);
+    }
+
+    private static boolean deleteQuietly(@NotNull Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            LOG.debug("Unable to delete " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * A graph read from the cache, with the bounds of its groups in the layout it was stored with.
+     */
+    public static final class Snapshot {
+        @NotNull private final SceneGraph graph;
+        @NotNull private final Map<Integer, Rectangle2D.Double> groupBounds;
+
+        private Snapshot(@NotNull SceneGraph graph, @NotNull Map<Integer, Rectangle2D.Double> groupBounds) {
+            this.graph = graph;
+            this.groupBounds = groupBounds;
+        }
+
+        @NotNull
+        public SceneGraph getGraph() {
+            return graph;
+        }
+
+        @NotNull
+        public Map<Integer, Rectangle2D.Double> getGroupBounds() {
+            return groupBounds;
+        }
+    }
+}
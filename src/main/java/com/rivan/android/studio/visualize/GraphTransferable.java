@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import com.rivan.android.studio.visualize.scene.SceneGraphSerializer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Content of the clipboard for the nodes copied from a {@link VisualEditorSurface}.
+ * <p>
+ * The nodes are available in two flavors:
+ * <ul>
+ *   <li>{@link #GRAPH_FLAVOR}, a stream of the copied subgraph in the {@link SceneGraphSerializer} format: a header, the
+ *   label table, then the node, port and edge arrays.</li>
+ *   <li>{@link DataFlavor#stringFlavor}, the code of the copied nodes, to paste them as code. It is only available when
+ *   the nodes were copied from a model.</li>
+ * </ul>
+ * Copying takes a copy of the primitive arrays of the selected nodes, and the text ranges of their code in the last
+ * committed text of the file, which is an immutable snapshot. The clipboard holds no reference to the model or its PSI,
+ * the code stays available after it is cut, and the flavors can be requested from any thread. Both flavors are only
+ * produced when they are requested: the code is joined from the ranges, and the binary data is encoded while the stream
+ * returned for {@link #GRAPH_FLAVOR} is read, so it is never held in memory as a whole.
+ */
+public final class GraphTransferable implements Transferable {
+
+    public static final DataFlavor GRAPH_FLAVOR =
+            new DataFlavor("application/x-visual-editor-graph; class=java.io.InputStream", "Visual Editor Graph");
+
+    private static final DataFlavor[] GRAPH_FLAVORS = { GRAPH_FLAVOR };
+    private static final DataFlavor[] GRAPH_AND_TEXT_FLAVORS = { GRAPH_FLAVOR, DataFlavor.stringFlavor };
+
+    @NotNull private final SceneGraph fragment;
+    /** Text of the file the nodes were copied from, null if they were not copied from a model */
+    @Nullable private final CharSequence fileText;
+    /** Start and end offsets in {@link #fileText} of the code of the nodes, in the order of the file */
+    @NotNull private final int[] codeRanges;
+
+    private GraphTransferable(@NotNull SceneGraph fragment, @Nullable CharSequence fileText, @NotNull int[] codeRanges) {
+        this.fragment = fragment;
+        this.fileText = fileText;
+        this.codeRanges = codeRanges;
+    }
+
+    /**
+     * Creates the content of the clipboard for the given nodes of the graph. Called on the UI thread.
+     *
+     * @param model the model the graph was translated by, to provide the code of the nodes, or null.
+     */
+    @NotNull
+    public static GraphTransferable create(@NotNull SceneGraph graph, @NotNull int[] nodes, @Nullable VisualEditorModel model) {
+        SceneGraph fragment = graph.copySubgraph(nodes);
+        int[] codeRanges = model != null ? ReadAction.compute(() -> collectCodeRanges(model, nodes)) : null;
+        if (model == null || codeRanges == null) {
+            return new GraphTransferable(fragment, null, new int[0]);
+        }
+        Document document = FileDocumentManager.getInstance().getDocument(model.getVirtualFile());
+        // The ranges are offsets in the text the PSI was built from, which the document may be ahead of
+        CharSequence fileText = document != null
+                ? PsiDocumentManager.getInstance(model.getProject()).getLastCommittedText(document)
+                : null;
+        return new GraphTransferable(fragment, fileText, codeRanges);
+    }
+
+    /**
+     * Reads a subgraph from the data of {@link #GRAPH_FLAVOR}.
+     *
+     * @throws IOException if the data can't be read or is not a subgraph in the current format.
+     */
+    @NotNull
+    public static SceneGraph readGraph(@NotNull InputStream in) throws IOException {
+        return SceneGraphSerializer.read(new DataInputStream(new BufferedInputStream(in)));
+    }
+
+    @NotNull
+    @Override
+    public DataFlavor[] getTransferDataFlavors() {
+        return (fileText != null ? GRAPH_AND_TEXT_FLAVORS : GRAPH_FLAVORS).clone();
+    }
+
+    @Override
+    public boolean isDataFlavorSupported(@NotNull DataFlavor flavor) {
+        return GRAPH_FLAVOR.equals(flavor) || DataFlavor.stringFlavor.equals(flavor) && fileText != null;
+    }
+
+    @NotNull
+    @Override
+    public Object getTransferData(@NotNull DataFlavor flavor) throws UnsupportedFlavorException {
+        if (GRAPH_FLAVOR.equals(flavor)) {
+            return SceneGraphSerializer.newInputStream(fragment);
+        }
+        if (DataFlavor.stringFlavor.equals(flavor) && fileText != null) {
+            return joinCode(fileText, codeRanges);
+        }
+        throw new UnsupportedFlavorException(flavor);
+    }
+
+    /**
+     * Returns the text ranges of the code of the nodes, as start and end offsets, in the order of the file, or null if
+     * none of the nodes has code. Statements inside a copied member or statement are part of its code, so they are
+     * skipped. This only reads the ranges of the elements, not their text.
+     */
+    @Nullable
+    private static int[] collectCodeRanges(@NotNull VisualEditorModel model, @NotNull int[] nodes) {
+        List<TextRange> ranges = new ArrayList<>(nodes.length);
+        for (int node : nodes) {
+            PsiElement element = model.findNodeElement(node);
+            if (element != null) {
+                ranges.add(element.getTextRange());
+            }
+        }
+        if (ranges.isEmpty()) {
+            return null;
+        }
+
+        // Sorted by start, a range is inside a copied one if it starts before the end of the last kept range
+        ranges.sort(Comparator.comparingInt(TextRange::getStartOffset).thenComparingInt(range -> -range.getEndOffset()));
+        int[] offsets = new int[ranges.size() * 2];
+        int count = 0;
+        int keptEnd = -1;
+        for (TextRange range : ranges) {
+            if (range.getStartOffset() < keptEnd) {
+                continue;
+            }
+            offsets[count++] = range.getStartOffset();
+            offsets[count++] = range.getEndOffset();
+            keptEnd = range.getEndOffset();
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Joins the code in the given ranges of the text, one range per line.
+     */
+    @NotNull
+    private static String joinCode(@NotNull CharSequence fileText, @NotNull int[] codeRanges) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < codeRanges.length; i += 2) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append(fileText, codeRanges[i], codeRanges[i + 1]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.annotations.concurrency.UiThread;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Pair;
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.Alarm;
+import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.VisibleForTesting;
+
+import java.util.*;
+
+/**
+ * Writes the edits made to the graph of a {@link VisualEditorModel} back to its file.
+ * <p>
+ * Edits are not written immediately. They are collected into a pending transaction, and the transaction is written
+ * once the user stops editing, as a single {@link WriteCommandAction} followed by a single commit of the document. Every
+ * PSI write triggers a reparse, highlighting and reindexing of the file, so a gesture like dragging a wire across ten
+ * ports must cost one write instead of ten.
+ * <p>
+ * Pending edits of the same kind on the same element replace each other. Connections are keyed by the source of the
+ * wire, so only the last target a wire was dragged to is written. The written code is then translated again into the graph by the model, like any other change of the file.
+ */
+public class GraphWriteBack {
+
+    private static final Logger LOG = Logger.getInstance(GraphWriteBack.class);
+
+    /**
+     * Delay, restarted on every edit, after which the pending edits are written.
+     */
+    public static final int WRITE_DELAY_MS = 300;
+
+    private static final String COMMAND_NAME = "Edit Visual Graph";
+
+    @NotNull private final VisualEditorModel model;
+    private final MergingUpdateQueue writeQueue;
+
+    /**
+     * Edits not yet written, by kind and keyed element, in the order they were made. Only accessed from the UI thread.
+     */
+    private final Map<Pair<String, PsiElement>, Edit> pendingEdits = new LinkedHashMap<>();
+    /** Number of insertions queued so far, to give each one its own key */
+    private int insertCount;
+
+    GraphWriteBack(@NotNull VisualEditorModel model) {
+        this.model = model;
+        writeQueue = new MergingUpdateQueue("visual.editor.write.back", WRITE_DELAY_MS,
+                true, null, model, null, Alarm.ThreadToUse.SWING_THREAD);
+        writeQueue.setRestartTimerOnAdd(true);
+    }
+
+    @NotNull
+    @VisibleForTesting
+    public MergingUpdateQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Replaces the code of the given node: the statement of a statement node, or the name of the member of a member node.
+     *
+     * @return false if the node can't be edited, or the text is not a valid statement or name.
+     */
+    @UiThread
+    public boolean setNodeText(int node, @NotNull String text) {
+        PsiElement element = model.findNodeElement(node);
+        if (element instanceof PsiStatement) {
+            try {
+                getElementFactory().createStatementFromText(text, element);
+            } catch (IncorrectOperationException e) {
+                return false;
+            }
+            queue("text", element, new Edit(element) {
+                @Override
+                void apply(@NotNull PsiElement element) {
+                    element.replace(getElementFactory().createStatementFromText(text, element));
+                }
+            });
+            return true;
+        }
+        if (element instanceof PsiMethod || element instanceof PsiField) {
+            if (!PsiNameHelper.getInstance(model.getProject()).isIdentifier(text)) {
+                return false;
+            }
+            queue("text", element, new Edit(element) {
+                @Override
+                void apply(@NotNull PsiElement element) {
+                    ((PsiNamedElement) element).setName(text);
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the code of the given node: its statement, or its whole member for the first node of a member.
+     *
+     * @return false if the node can't be removed.
+     */
+    @UiThread
+    public boolean removeNode(int node) {
+        return removeNodes(new int[] { node }) > 0;
+    }
+
+    /**
+     * Removes the code of the given nodes, like {@link #removeNode(int)}. The pending edits of the removed elements are
+     * dropped in a single pass, whatever the number of nodes.
+     *
+     * @return the number of nodes whose code will be removed.
+     */
+    @UiThread
+    public int removeNodes(@NotNull int[] nodes) {
+        Set<PsiElement> elements = new LinkedHashSet<>();
+        for (int node : nodes) {
+            PsiElement element = model.findNodeElement(node);
+            if (element == null || element instanceof PsiStatement && !(element.getParent() instanceof PsiCodeBlock)) {
+                // The single statement of an if branch or a loop body can't be removed without breaking its parent
+                continue;
+            }
+            elements.add(element);
+        }
+        if (elements.isEmpty()) {
+            return 0;
+        }
+        // Nothing else can be written to a removed element, or moved by a connection from or to it
+        pendingEdits.entrySet().removeIf(entry -> elements.contains(entry.getKey().second)
+                                                  || elements.contains(entry.getValue().pointer.getElement()));
+        for (PsiElement element : elements) {
+            put("remove", element, new Edit(element) {
+                @Override
+                void apply(@NotNull PsiElement element) {
+                    element.delete();
+                }
+            });
+        }
+        scheduleWrite();
+        return elements.size();
+    }
+
+    /**
+     * Connects the output of the {@code source} node to the {@code target} statement node, by moving the statement
+     * right after the source statement, or at the start of the body of the source member.
+     *
+     * @return false if the nodes can't be connected.
+     */
+    @UiThread
+    public boolean connectNodes(int source, int target) {
+        PsiElement sourceElement = model.findNodeElement(source);
+        PsiElement targetElement = model.findNodeElement(target);
+        if (!(targetElement instanceof PsiStatement) || !(targetElement.getParent() instanceof PsiCodeBlock)) {
+            return false;
+        }
+        if (sourceElement instanceof PsiStatement) {
+            if (!(sourceElement.getParent() instanceof PsiCodeBlock)) {
+                return false;
+            }
+        } else if (getBody(sourceElement) == null) {
+            return false;
+        }
+        if (sourceElement == targetElement || PsiTreeUtil.isAncestor(targetElement, sourceElement, false)) {
+            return false;
+        }
+
+        SmartPsiElementPointer<PsiElement> sourcePointer =
+                SmartPointerManager.getInstance(model.getProject()).createSmartPsiElementPointer(sourceElement);
+        // While a wire is dragged from the source, only its last target is kept
+        queue("connect", sourceElement, new Edit(targetElement) {
+            @Override
+            void apply(@NotNull PsiElement element) {
+                PsiElement anchor = sourcePointer.getElement();
+                if (anchor == null || PsiTreeUtil.isAncestor(element, anchor, false)) {
+                    return;
+                }
+                PsiElement copy = element.copy();
+                if (anchor instanceof PsiStatement) {
+                    anchor.getParent().addAfter(copy, anchor);
+                } else {
+                    PsiCodeBlock body = getBody(anchor);
+                    if (body == null) {
+                        return;
+                    }
+                    body.addAfter(copy, body.getLBrace());
+                }
+                element.delete();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Inserts the given code after the code of the given node: statements after a statement, or at the start of the body
+     * of a member, and members after a member.
+     *
+     * @return false if the code can't be inserted at the node.
+     */
+    @UiThread
+    public boolean insertCode(int node, @NotNull String code) {
+        PsiElement element = model.findNodeElement(node);
+        if (element == null) {
+            return false;
+        }
+        PsiElementFactory factory = getElementFactory();
+        boolean statementAnchor = element instanceof PsiStatement && element.getParent() instanceof PsiCodeBlock
+                                  || getBody(element) != null;
+        if (statementAnchor) {
+            try {
+                PsiCodeBlock block = factory.createCodeBlockFromText("{\n" + code + "\n}", element);
+                if (!PsiTreeUtil.hasErrorElements(block) && block.getStatements().length > 0) {
+                    // Pastes are never merged, each one is its own edit
+                    queue("insert" + insertCount++, element, new Edit(element) {
+                        @Override
+                        void apply(@NotNull PsiElement element) {
+                            PsiCodeBlock block = getElementFactory().createCodeBlockFromText("{\n" + code + "\n}", element);
+                            PsiElement first = block.getFirstBodyElement();
+                            PsiElement last = block.getLastBodyElement();
+                            if (first == null || last == null) {
+                                return;
+                            }
+                            if (element instanceof PsiStatement) {
+                                element.getParent().addRangeAfter(first, last, element);
+                            } else {
+                                PsiCodeBlock body = getBody(element);
+                                if (body != null) {
+                                    body.addRangeAfter(first, last, body.getLBrace());
+                                }
+                            }
+                        }
+                    });
+                    return true;
+                }
+            } catch (IncorrectOperationException ignored) {
+                // Not statements, try members
+            }
+        }
+        if (!(element instanceof PsiMember) || !(element.getParent() instanceof PsiClass)) {
+            return false;
+        }
+        try {
+            PsiClass holder = factory.createClassFromText(code, element);
+            if (PsiTreeUtil.hasErrorElements(holder) || holder.getLBrace() == null || holder.getRBrace() == null) {
+                return false;
+            }
+        } catch (IncorrectOperationException e) {
+            return false;
+        }
+        queue("insert" + insertCount++, element, new Edit(element) {
+            @Override
+            void apply(@NotNull PsiElement element) {
+                PsiClass holder = getElementFactory().createClassFromText(code, element);
+                PsiElement lBrace = holder.getLBrace();
+                PsiElement rBrace = holder.getRBrace();
+                if (lBrace == null || rBrace == null || lBrace.getNextSibling() == rBrace) {
+                    return;
+                }
+                element.getParent().addRangeAfter(lBrace.getNextSibling(), rBrace.getPrevSibling(), element);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns true if there are edits not yet written to the file.
+     */
+    @UiThread
+    public boolean hasPendingEdits() {
+        return !pendingEdits.isEmpty();
+    }
+
+    /**
+     * Writes the pending edits now, instead of waiting for the user to stop editing.
+     */
+    @UiThread
+    public void flush() {
+        writeQueue.flush();
+    }
+
+    /**
+     * Drops the pending edits without writing them.
+     */
+    @UiThread
+    public void cancel() {
+        writeQueue.cancelAllUpdates();
+        pendingEdits.clear();
+    }
+
+    private void queue(@NotNull String kind, @NotNull PsiElement element, @NotNull Edit edit) {
+        put(kind, element, edit);
+        scheduleWrite();
+    }
+
+    private void put(@NotNull String kind, @NotNull PsiElement element, @NotNull Edit edit) {
+        Pair<String, PsiElement> key = Pair.create(kind, element);
+        pendingEdits.remove(key); // keep the edits in the order they were last made
+        pendingEdits.put(key, edit);
+    }
+
+    private void scheduleWrite() {
+        writeQueue.queue(new Update("write.back") {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    /**
+     * Writes all the pending edits in a single command, so they are undone together, and commits the document once.
+     */
+    private void write() {
+        if (pendingEdits.isEmpty()) {
+            return;
+        }
+        List<Edit> edits = new ArrayList<>(pendingEdits.values());
+        pendingEdits.clear();
+
+        Project project = model.getProject();
+        PsiFile file = model.getFile();
+        if (!file.isValid()) {
+            return;
+        }
+        PsiDocumentManager documentManager = PsiDocumentManager.getInstance(project);
+        Document document = documentManager.getDocument(file);
+        if (document != null) {
+            // Edits are written to the PSI, which must be in sync with the text typed in the meantime
+            documentManager.commitDocument(document);
+        }
+
+        WriteCommandAction.writeCommandAction(project, file).withName(COMMAND_NAME).run(() -> {
+            for (Edit edit : edits) {
+                PsiElement element = edit.pointer.getElement();
+                if (element == null) {
+                    continue; // Removed by a previous edit or by the user
+                }
+                try {
+                    edit.apply(element);
+                } catch (IncorrectOperationException e) {
+                    LOG.warn("Unable to write a graph edit to " + file.getName(), e);
+                }
+            }
+            if (document != null) {
+                documentManager.doPostponedOperationsAndUnblockDocument(document);
+            }
+        });
+    }
+
+    @NotNull
+    private PsiElementFactory getElementFactory() {
+        return JavaPsiFacade.getElementFactory(model.getProject());
+    }
+
+    @Nullable
+    private static PsiCodeBlock getBody(@Nullable PsiElement element) {
+        if (element instanceof PsiMethod) {
+            return ((PsiMethod) element).getBody();
+        }
+        if (element instanceof PsiClassInitializer) {
+            return ((PsiClassInitializer) element).getBody();
+        }
+        return null;
+    }
+
+    /**
+     * A pending edit of an element, applied inside the write command if the element still exists.
+     */
+    private abstract class Edit {
+        @NotNull final SmartPsiElementPointer<PsiElement> pointer;
+
+        Edit(@NotNull PsiElement element) {
+            pointer = SmartPointerManager.getInstance(model.getProject()).createSmartPsiElementPointer(element);
+        }
+
+        abstract void apply(@NotNull PsiElement element);
+    }
+}
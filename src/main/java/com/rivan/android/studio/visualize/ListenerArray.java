@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of listeners, for listeners notified much more often than they are added or removed.
+ * <p>
+ * Adding or removing a listener publishes a new array, so notifying the listeners only reads the current array,
+ * without locking or allocating:
+ * <pre>
+ *     for (PanZoomListener listener : zoomListeners.get()) {
+ *         listener.zoomChanged(previousScale, newScale);
+ *     }
+ * </pre>
+ * A listener added or removed during a notification is only taken into account by the next notifications.
+ */
+final class ListenerArray<L> {
+
+    @NotNull private final L[] empty;
+    @NotNull private volatile L[] listeners;
+
+    /**
+     * @param empty an empty array of the type of the listeners, returned while there are no listeners
+     */
+    ListenerArray(@NotNull L[] empty) {
+        assert empty.length == 0;
+        this.empty = empty;
+        this.listeners = empty;
+    }
+
+    /**
+     * Returns the current listeners. The returned array is shared and must not be modified.
+     */
+    @NotNull
+    L[] get() {
+        return listeners;
+    }
+
+    synchronized void add(@NotNull L listener) {
+        remove(listener); // ensure single registration
+        L[] current = listeners;
+        L[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    synchronized void remove(@NotNull L listener) {
+        L[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(listener)) {
+                if (current.length == 1) {
+                    listeners = empty;
+                    return;
+                }
+                L[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        listeners = empty;
+    }
+}
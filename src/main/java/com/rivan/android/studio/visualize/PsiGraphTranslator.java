@@ -0,0 +1,502 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.*;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Translates the members of a {@link PsiJavaFile} into nodes of a {@link SceneGraph}.
+ * <p>
+ * Fields are translated into a single node. Methods and class initializers are translated into a node for their
+ * declaration followed by one node per statement, connected by edges in execution order. Branches and loop bodies start
+ * from dedicated ports of their statement node.
+ * <p>
+ * The nodes of each member are tracked separately so that, after an edit, only the members whose PSI changed are
+ * translated again. See {@link #update(PsiJavaFile, Collection, boolean)}. The nodes of a member are added to a graph
+ * group that is kept when the member is translated again, so {@link #getModificationTracker(PsiMember)} reports the
+ * changes of that member only.
+ */
+public class PsiGraphTranslator {
+
+    /**
+     * Version of the translation, incremented whenever it changes the graph produced for a file, so graphs translated by
+     * a previous version are not reused.
+     */
+    public static final int VERSION = 1;
+
+    @AndroidCoordinate static final double NODE_WIDTH = 160;
+    @AndroidCoordinate static final double NODE_HEIGHT = 40;
+    @AndroidCoordinate static final double NODE_GAP = 40;
+
+    /**
+     * Maximum number of characters of a statement displayed in its node label.
+     */
+    private static final int MAX_LABEL_LENGTH = 40;
+
+    @NotNull private final SceneGraph graph;
+
+    /**
+     * The ids of the nodes created for each translated member, in the order the members were translated.
+     */
+    private final Map<PsiMember, int[]> memberNodes = new LinkedHashMap<>();
+
+    /**
+     * The elements translated into the nodes of each member, at the index of their node in {@link #memberNodes}.
+     */
+    private final Map<PsiMember, PsiElement[]> memberElements = new HashMap<>();
+
+    /**
+     * The graph group of each translated member.
+     */
+    private final Map<PsiMember, Integer> memberGroups = new HashMap<>();
+
+    /**
+     * The member translated into each graph group, indexed by group id. Null for the groups of removed members.
+     */
+    private final List<PsiMember> groupMembers = new ArrayList<>();
+
+    /**
+     * Vertical position of the next translated member. Members are placed one below the other until a layout is applied.
+     */
+    @AndroidCoordinate private double nextMemberY;
+
+    // State of the member being translated
+    private final List<Integer> currentNodes = new ArrayList<>();
+    private final List<PsiElement> currentElements = new ArrayList<>();
+    private int currentGroup;
+    @AndroidCoordinate private double currentRowY;
+    @AndroidCoordinate private double bottomRowY;
+
+    public PsiGraphTranslator(@NotNull SceneGraph graph) {
+        this.graph = graph;
+    }
+
+    @NotNull
+    public SceneGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Replaces the content of the graph with the translation of all the members of the given file.
+     */
+    public void translate(@NotNull PsiJavaFile file) {
+        graph.clear();
+        memberNodes.clear();
+        memberElements.clear();
+        memberGroups.clear();
+        groupMembers.clear();
+        nextMemberY = 0;
+        for (PsiMember member : collectMembers(file)) {
+            translateMember(member);
+        }
+    }
+
+    /**
+     * Starts tracking the members of the given file in a graph that was previously translated from the same content,
+     * instead of translating them again. The members are matched with the graph groups in declaration order.
+     *
+     * @return false if the graph doesn't match the members of the file, in which case nothing is tracked.
+     */
+    public boolean restore(@NotNull PsiJavaFile file) {
+        memberNodes.clear();
+        memberElements.clear();
+        memberGroups.clear();
+        groupMembers.clear();
+        List<PsiMember> members = collectMembers(file);
+        if (members.size() != graph.getGroupCount()) {
+            return false;
+        }
+
+        // Translated nodes are added to their group in order, so the nodes of each group are sorted by id
+        int[] groupSizes = new int[members.size()];
+        @AndroidCoordinate double bottom = -NODE_GAP;
+        for (int node = 0, count = graph.getNodeCount(); node < count; node++) {
+            if (graph.containsNode(node)) {
+                int group = graph.getNodeGroup(node);
+                if (group == SceneGraph.NO_GROUP) {
+                    return false;
+                }
+                groupSizes[group]++;
+                bottom = Math.max(bottom, graph.getNodeY(node) + graph.getNodeHeight(node));
+            }
+        }
+        int[][] groupNodes = new int[members.size()][];
+        for (int group = 0; group < groupNodes.length; group++) {
+            groupNodes[group] = new int[groupSizes[group]];
+            groupSizes[group] = 0;
+        }
+        for (int node = 0, count = graph.getNodeCount(); node < count; node++) {
+            if (graph.containsNode(node)) {
+                int group = graph.getNodeGroup(node);
+                groupNodes[group][groupSizes[group]++] = node;
+            }
+        }
+
+        List<PsiElement> elements = new ArrayList<>();
+        for (int group = 0; group < groupNodes.length; group++) {
+            PsiMember member = members.get(group);
+            elements.clear();
+            collectElements(member, elements);
+            if (elements.size() != groupNodes[group].length) {
+                memberNodes.clear();
+                memberElements.clear();
+                memberGroups.clear();
+                groupMembers.clear();
+                return false;
+            }
+            memberNodes.put(member, groupNodes[group]);
+            memberElements.put(member, elements.toArray(PsiElement.EMPTY_ARRAY));
+            memberGroups.put(member, group);
+            groupMembers.add(member);
+        }
+        nextMemberY = bottom + NODE_GAP;
+        return true;
+    }
+
+    /**
+     * Updates the graph after the given file changed.
+     *
+     * @param file             the file being translated.
+     * @param changedMembers   members whose PSI changed since the last translation. Their nodes are replaced by a new
+     *                         translation.
+     * @param structureChanged whether members might have been added to or removed from the file. If true, the file members
+     *                         are listed to find the new ones. Their content is only translated for the new members.
+     * @return the graph groups of the members translated by this update.
+     */
+    @NotNull
+    public BitSet update(@NotNull PsiJavaFile file, @NotNull Collection<? extends PsiMember> changedMembers, boolean structureChanged) {
+        BitSet translatedGroups = new BitSet();
+        // The nodes of all the members are removed at once, before any member is translated again
+        List<int[]> removedNodes = new ArrayList<>();
+        // Members replaced or deleted by the edit are no longer valid
+        Iterator<Map.Entry<PsiMember, int[]>> iterator = memberNodes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<PsiMember, int[]> entry = iterator.next();
+            if (!entry.getKey().isValid() || entry.getKey().getContainingFile() != file) {
+                removedNodes.add(entry.getValue());
+                forgetGroup(entry.getKey());
+                memberElements.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+        for (PsiMember member : changedMembers) {
+            int[] nodes = memberNodes.remove(member);
+            memberElements.remove(member);
+            if (nodes != null) {
+                removedNodes.add(nodes);
+            }
+        }
+        removeNodes(removedNodes);
+
+        for (PsiMember member : changedMembers) {
+            if (member.isValid() && member.getContainingFile() == file && isTranslated(member)) {
+                translatedGroups.set(translateMember(member));
+            } else {
+                forgetGroup(member);
+            }
+        }
+
+        if (structureChanged) {
+            for (PsiMember member : collectMembers(file)) {
+                if (!memberNodes.containsKey(member)) {
+                    translatedGroups.set(translateMember(member));
+                }
+            }
+        }
+        return translatedGroups;
+    }
+
+    /**
+     * Returns the ids of the nodes created for the given member, or null if the member has not been translated.
+     */
+    @Nullable
+    public int[] getMemberNodes(@NotNull PsiMember member) {
+        int[] nodes = memberNodes.get(member);
+        return nodes != null ? nodes.clone() : null;
+    }
+
+    /**
+     * Returns the ids of the nodes of the given graph group, sorted by id, or null if the group is not the group of a
+     * translated member. The returned array must not be modified.
+     */
+    @Nullable
+    public int[] getGroupNodes(int group) {
+        PsiMember member = group >= 0 && group < groupMembers.size() ? groupMembers.get(group) : null;
+        return member != null ? memberNodes.get(member) : null;
+    }
+
+    /**
+     * Returns the PSI element translated into the given node: the member itself for the first node of a member, and a
+     * statement for the other nodes. Returns null if the node was not translated from the file.
+     */
+    @Nullable
+    public PsiElement getNodeElement(int node) {
+        if (!graph.containsNode(node) || graph.getNodeGroup(node) == SceneGraph.NO_GROUP) {
+            return null;
+        }
+        int group = graph.getNodeGroup(node);
+        PsiMember member = group < groupMembers.size() ? groupMembers.get(group) : null;
+        int[] nodes = member != null ? memberNodes.get(member) : null;
+        if (nodes == null) {
+            return null;
+        }
+        // The nodes of a member are sorted by id, and its elements are at the index of their node
+        int index = Arrays.binarySearch(nodes, node);
+        if (index < 0) {
+            return null;
+        }
+        PsiElement element = memberElements.get(member)[index];
+        return element.isValid() ? element : null; // The member changed since it was translated
+    }
+
+    /**
+     * Returns a tracker of the changes of the nodes translated from the given member. When the member is not translated,
+     * the tracker falls back to the changes of the whole graph.
+     */
+    @NotNull
+    public ModificationTracker getModificationTracker(@NotNull PsiMember member) {
+        return () -> {
+            Integer group = memberGroups.get(member);
+            return group != null ? graph.getGroupModificationCount(group) : graph.getModificationCount();
+        };
+    }
+
+    /**
+     * Returns true if the given member is translated into nodes. Classes are not, but their members are.
+     */
+    private static boolean isTranslated(@NotNull PsiMember member) {
+        return member instanceof PsiField || member instanceof PsiMethod || member instanceof PsiClassInitializer;
+    }
+
+    /**
+     * Returns the translated members of the given file, including the ones of inner classes, in declaration order.
+     */
+    @NotNull
+    private static List<PsiMember> collectMembers(@NotNull PsiJavaFile file) {
+        List<PsiMember> members = new ArrayList<>();
+        for (PsiClass psiClass : file.getClasses()) {
+            collectMembers(psiClass, members);
+        }
+        return members;
+    }
+
+    private static void collectMembers(@NotNull PsiClass psiClass, @NotNull List<PsiMember> members) {
+        for (PsiElement child = psiClass.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof PsiClass) {
+                collectMembers((PsiClass) child, members);
+            } else if (child instanceof PsiMember && isTranslated((PsiMember) child)) {
+                members.add((PsiMember) child);
+            }
+        }
+    }
+
+    /**
+     * Collects the elements of the given member translated into nodes, in the order their nodes are created by
+     * {@link #translateMember(PsiMember)}.
+     */
+    private static void collectElements(@NotNull PsiMember member, @NotNull List<PsiElement> elements) {
+        elements.add(member);
+        if (member instanceof PsiMethod) {
+            PsiCodeBlock body = ((PsiMethod) member).getBody();
+            if (body != null) {
+                collectStatements(body.getStatements(), elements);
+            }
+        } else if (member instanceof PsiClassInitializer) {
+            collectStatements(((PsiClassInitializer) member).getBody().getStatements(), elements);
+        }
+    }
+
+    private static void collectStatements(@NotNull PsiStatement[] statements, @NotNull List<PsiElement> elements) {
+        for (PsiStatement statement : statements) {
+            if (statement instanceof PsiBlockStatement) {
+                collectStatements(((PsiBlockStatement) statement).getCodeBlock().getStatements(), elements);
+                continue;
+            }
+            elements.add(statement);
+            if (statement instanceof PsiIfStatement) {
+                collectBranch(((PsiIfStatement) statement).getThenBranch(), elements);
+                collectBranch(((PsiIfStatement) statement).getElseBranch(), elements);
+            } else if (statement instanceof PsiLoopStatement) {
+                collectBranch(((PsiLoopStatement) statement).getBody(), elements);
+            }
+        }
+    }
+
+    private static void collectBranch(@Nullable PsiStatement branch, @NotNull List<PsiElement> elements) {
+        if (branch == null) {
+            return;
+        }
+        if (branch instanceof PsiBlockStatement) {
+            collectStatements(((PsiBlockStatement) branch).getCodeBlock().getStatements(), elements);
+        } else {
+            collectStatements(new PsiStatement[] { branch }, elements);
+        }
+    }
+
+    private void forgetGroup(@NotNull PsiMember member) {
+        Integer group = memberGroups.remove(member);
+        if (group != null) {
+            groupMembers.set(group, null);
+        }
+    }
+
+    private void removeNodes(@NotNull List<int[]> nodes) {
+        int count = 0;
+        for (int[] memberNodes : nodes) {
+            count += memberNodes.length;
+        }
+        int[] allNodes = new int[count];
+        int offset = 0;
+        for (int[] memberNodes : nodes) {
+            System.arraycopy(memberNodes, 0, allNodes, offset, memberNodes.length);
+            offset += memberNodes.length;
+        }
+        graph.removeNodes(allNodes);
+    }
+
+    /**
+     * Translates the given member and returns the graph group of its nodes.
+     */
+    private int translateMember(@NotNull PsiMember member) {
+        currentNodes.clear();
+        currentElements.clear();
+        currentGroup = memberGroups.computeIfAbsent(member, m -> graph.addGroup());
+        while (groupMembers.size() <= currentGroup) {
+            groupMembers.add(null);
+        }
+        groupMembers.set(currentGroup, member);
+        currentRowY = nextMemberY;
+        bottomRowY = nextMemberY;
+
+        if (member instanceof PsiField) {
+            PsiField field = (PsiField) member;
+            addNode(field, field.getType().getPresentableText() + " " + field.getName(), 0);
+        } else if (member instanceof PsiMethod) {
+            PsiMethod method = (PsiMethod) member;
+            int node = addNode(method, method.getName() + "()", 0);
+            int output = addOutputPort(node);
+            PsiCodeBlock body = method.getBody();
+            if (body != null) {
+                translateStatements(body.getStatements(), output, 1);
+            }
+        } else if (member instanceof PsiClassInitializer) {
+            PsiClassInitializer initializer = (PsiClassInitializer) member;
+            boolean isStatic = initializer.hasModifierProperty(PsiModifier.STATIC);
+            int node = addNode(initializer, isStatic ? "static {}" : "{}", 0);
+            translateStatements(initializer.getBody().getStatements(), addOutputPort(node), 1);
+        }
+
+        int[] nodes = new int[currentNodes.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = currentNodes.get(i);
+        }
+        memberNodes.put(member, nodes);
+        memberElements.put(member, currentElements.toArray(PsiElement.EMPTY_ARRAY));
+        nextMemberY = bottomRowY + NODE_HEIGHT + NODE_GAP;
+        return currentGroup;
+    }
+
+    /**
+     * Translates a sequence of statements into a chain of nodes starting from the {@code from} port. Returns the output
+     * port of the last node of the chain, or {@code from} if there are no statements.
+     *
+     * @param column the column of the first statement node, used for its initial position.
+     */
+    private int translateStatements(@NotNull PsiStatement[] statements, int from, int column) {
+        int output = from;
+        for (PsiStatement statement : statements) {
+            if (statement instanceof PsiBlockStatement) {
+                // Nested blocks don't add a node, their statements are part of the chain
+                PsiStatement[] nested = ((PsiBlockStatement) statement).getCodeBlock().getStatements();
+                output = translateStatements(nested, output, column);
+                column += nested.length;
+                continue;
+            }
+
+            int node = addNode(statement, getLabel(statement), column);
+            graph.addEdge(output, addInputPort(node));
+            if (statement instanceof PsiIfStatement) {
+                PsiIfStatement ifStatement = (PsiIfStatement) statement;
+                translateBranch(ifStatement.getThenBranch(), addBranchPort(node, 0.3), column);
+                translateBranch(ifStatement.getElseBranch(), addBranchPort(node, 0.7), column);
+            } else if (statement instanceof PsiLoopStatement) {
+                translateBranch(((PsiLoopStatement) statement).getBody(), addBranchPort(node, 0.5), column);
+            }
+            output = addOutputPort(node);
+            column++;
+        }
+        return output;
+    }
+
+    /**
+     * Translates the statements of an if branch or loop body, on a new row below all the previous ones, starting from the
+     * given port.
+     */
+    private void translateBranch(@Nullable PsiStatement branch, int from, int column) {
+        if (branch == null) {
+            return;
+        }
+        PsiStatement[] statements = branch instanceof PsiBlockStatement
+                ? ((PsiBlockStatement) branch).getCodeBlock().getStatements()
+                : new PsiStatement[] { branch };
+        double rowY = currentRowY;
+        bottomRowY += NODE_HEIGHT + NODE_GAP;
+        currentRowY = bottomRowY;
+        translateStatements(statements, from, column);
+        currentRowY = rowY;
+    }
+
+    private int addNode(@NotNull PsiElement element, @NotNull String label, int column) {
+        int node = graph.addNode(label, column * (NODE_WIDTH + NODE_GAP), currentRowY, NODE_WIDTH, NODE_HEIGHT, currentGroup);
+        currentNodes.add(node);
+        currentElements.add(element);
+        return node;
+    }
+
+    private int addInputPort(int node) {
+        return graph.addPort(node, 0, NODE_HEIGHT / 2);
+    }
+
+    private int addOutputPort(int node) {
+        return graph.addPort(node, NODE_WIDTH, NODE_HEIGHT / 2);
+    }
+
+    /**
+     * Adds a port at the bottom of the node, at the given fraction of its width.
+     */
+    private int addBranchPort(int node, double position) {
+        return graph.addPort(node, NODE_WIDTH * position, NODE_HEIGHT);
+    }
+
+    @NotNull
+    private static String getLabel(@NotNull PsiStatement statement) {
+        String text = statement.getText();
+        int lineEnd = text.indexOf('\n');
+        if (lineEnd >= 0) {
+            text = text.substring(0, lineEnd);
+        }
+        return StringUtil.first(text.trim(), MAX_LABEL_LENGTH, true);
+    }
+}
@@ -1,4 +1,348 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
 package com.rivan.android.studio.visualize;
 
-public class SceneManager {
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import com.intellij.openapi.Disposable;
+import com.rivan.android.studio.visualize.scene.EdgeRouter;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import com.rivan.android.studio.visualize.scene.SceneGraphListener;
+import com.rivan.android.studio.visualize.scene.SpatialIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * Manages the {@link SceneGraph} displayed by a {@link VisualEditorSurface} and answers the geometric queries the surface
+ * needs to paint it and to find what is under the mouse.
+ * <p>
+ * The bounds of the nodes, ports and edges are kept in {@link SpatialIndex}es, updated as the graph changes, so the
+ * queries only look at the elements around the requested area instead of scanning the whole graph.
+ * <p>
+ * Edges are drawn along the routes computed by an {@link EdgeRouter}. The routes are cached, and only the edges
+ * connected to the nodes that moved are routed again.
+ */
+public class SceneManager implements Disposable {
+
+    /**
+     * Listener notified when part of the scene needs to be painted again.
+     */
+    public interface SceneChangeListener {
+        /**
+         * The elements within the given area changed. A null area means that the whole scene changed.
+         */
+        void sceneChanged(@AndroidCoordinate @Nullable Rectangle2D area);
+    }
+
+    @NotNull private final SceneGraph graph;
+
+    @NotNull private final SpatialIndex nodeIndex = new SpatialIndex();
+    @NotNull private final SpatialIndex portIndex = new SpatialIndex();
+    @NotNull private final SpatialIndex edgeIndex = new SpatialIndex();
+
+    @NotNull private final EdgeRouter edgeRouter;
+
+    /**
+     * Bounds of the whole graph, computed lazily. Null when they need to be computed again.
+     */
+    @Nullable private Rectangle2D.Double contentBounds;
+
+    private final List<SceneChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Scratch rectangles used while updating the indexes. The graph is only modified from the UI thread.
+    private final Rectangle2D.Double tmpBounds = new Rectangle2D.Double();
+    private final Rectangle2D.Double tmpOldBounds = new Rectangle2D.Double();
+
+    private final SceneGraphListener graphListener = new SceneGraphListener() {
+        @Override
+        public void nodeAdded(@NotNull SceneGraph graph, int node) {
+            nodeIndex.insert(node, graph.getNodeBounds(node, tmpBounds));
+            contentBounds = null;
+            fireSceneChanged(tmpBounds);
+        }
+
+        @Override
+        public void portAdded(@NotNull SceneGraph graph, int port) {
+            portIndex.insert(port, graph.getPortBounds(port, tmpBounds));
+            fireSceneChanged(tmpBounds);
+        }
+
+        @Override
+        public void edgeAdded(@NotNull SceneGraph graph, int edge) {
+            edgeIndex.insert(edge, edgeRouter.getRouteBounds(edge, tmpBounds));
+            fireSceneChanged(tmpBounds);
+        }
+
+        @Override
+        public void nodeMoved(@NotNull SceneGraph graph, int node) {
+            // The area to repaint covers both the old and the new positions of the node, its ports and its edges
+            Rectangle2D.Double dirtyArea = new Rectangle2D.Double();
+            nodeIndex.getBounds(node, dirtyArea);
+            updateNodeIndexes(graph, node, dirtyArea);
+            updateEdgeRoutes(dirtyArea);
+            contentBounds = null;
+            fireSceneChanged(dirtyArea);
+        }
+
+        @Override
+        public void nodesMoved(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+            // A single notification covering all the moved nodes
+            Rectangle2D.Double dirtyArea = new Rectangle2D.Double();
+            nodeIndex.getBounds(nodes[0], dirtyArea);
+            for (int node : nodes) {
+                updateNodeIndexes(graph, node, dirtyArea);
+            }
+            // Route the edges once all the nodes are in place, since the nodes are the obstacles of the routes
+            updateEdgeRoutes(dirtyArea);
+            contentBounds = null;
+            fireSceneChanged(dirtyArea);
+        }
+
+        @Override
+        public void nodeRemoved(@NotNull SceneGraph graph, int node) {
+            removeFromIndex(nodeIndex, node);
+            contentBounds = null;
+        }
+
+        @Override
+        public void portRemoved(@NotNull SceneGraph graph, int port) {
+            removeFromIndex(portIndex, port);
+        }
+
+        @Override
+        public void edgeRemoved(@NotNull SceneGraph graph, int edge) {
+            edgeRouter.remove(edge);
+            removeFromIndex(edgeIndex, edge);
+        }
+
+        @Override
+        public void graphCleared(@NotNull SceneGraph graph) {
+            nodeIndex.clear();
+            portIndex.clear();
+            edgeIndex.clear();
+            edgeRouter.clear();
+            contentBounds = null;
+            fireSceneChanged(null);
+        }
+    };
+
+    public SceneManager() {
+        this(new SceneGraph());
+    }
+
+    public SceneManager(@NotNull SceneGraph graph) {
+        this.graph = graph;
+        this.edgeRouter = new EdgeRouter(graph, nodeIndex);
+
+        for (int node = 0, count = graph.getNodeCount(); node < count; node++) {
+            if (graph.containsNode(node)) {
+                nodeIndex.insert(node, graph.getNodeBounds(node, tmpBounds));
+            }
+        }
+        for (int port = 0, count = graph.getPortCount(); port < count; port++) {
+            if (graph.containsPort(port)) {
+                portIndex.insert(port, graph.getPortBounds(port, tmpBounds));
+            }
+        }
+        for (int edge = 0, count = graph.getEdgeCount(); edge < count; edge++) {
+            if (graph.containsEdge(edge)) {
+                edgeIndex.insert(edge, edgeRouter.getRouteBounds(edge, tmpBounds));
+            }
+        }
+        graph.addListener(graphListener);
+    }
+
+    @NotNull
+    public SceneGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Moves several nodes at once, {@code nodes[i]} to {@code (x[i], y[i])}. The spatial indexes and edge routes are
+     * updated once for all the nodes.
+     */
+    public void moveNodes(@NotNull int[] nodes, @AndroidCoordinate @NotNull double[] x, @AndroidCoordinate @NotNull double[] y) {
+        graph.moveNodes(nodes, x, y);
+    }
+
+    public void addSceneChangeListener(@NotNull SceneChangeListener listener) {
+        listeners.remove(listener); // ensure single registration
+        listeners.add(listener);
+    }
+
+    public void removeSceneChangeListener(@NotNull SceneChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every node whose bounds intersect the given area.
+     */
+    public void forEachNodeIn(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        nodeIndex.query(area, consumer);
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every node whose bounds intersect the given area, in the order the nodes
+     * are painted: a node is painted over the nodes with a lower id, so {@link #findNodeAt} returns the one on top.
+     */
+    public void forEachNodeInPaintOrder(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        nodeIndex.queryInIdOrder(area, consumer);
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every port whose bounds intersect the given area.
+     */
+    public void forEachPortIn(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        portIndex.query(area, consumer);
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every port whose bounds intersect the given area, in the order the ports
+     * are painted, like {@link #forEachNodeInPaintOrder}.
+     */
+    public void forEachPortInPaintOrder(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        portIndex.queryInIdOrder(area, consumer);
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every edge whose bounds intersect the given area.
+     */
+    public void forEachEdgeIn(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        edgeIndex.query(area, consumer);
+    }
+
+    /**
+     * Returns the route of the given edge as a sequence of {@code x, y} points, from its source port to its target port.
+     * The returned array must not be modified.
+     */
+    @AndroidCoordinate
+    @NotNull
+    public double[] getEdgeRoute(int edge) {
+        return edgeRouter.getRoute(edge);
+    }
+
+    /**
+     * Returns the id of the top-most node at the given position, or -1 if there is no node there.
+     */
+    public int findNodeAt(@AndroidCoordinate double x, @AndroidCoordinate double y) {
+        return nodeIndex.hitTest(x, y);
+    }
+
+    /**
+     * Returns the id of the top-most port at the given position, or -1 if there is no port there.
+     */
+    public int findPortAt(@AndroidCoordinate double x, @AndroidCoordinate double y) {
+        return portIndex.hitTest(x, y);
+    }
+
+    /**
+     * Returns the id of the port closest to the given position, or -1 if there is no port within {@code maxDistance}.
+     * This is used to snap edges being dragged to the nearby ports.
+     */
+    public int findNearestPort(@AndroidCoordinate double x, @AndroidCoordinate double y, @AndroidCoordinate double maxDistance) {
+        return portIndex.findNearest(x, y, maxDistance);
+    }
+
+    /**
+     * Returns the id of the node closest to the given position, or -1 if there is no node within {@code maxDistance}.
+     */
+    public int findNearestNode(@AndroidCoordinate double x, @AndroidCoordinate double y, @AndroidCoordinate double maxDistance) {
+        return nodeIndex.findNearest(x, y, maxDistance);
+    }
+
+    /**
+     * Returns the rectangle enclosing all the nodes in the graph, or an empty rectangle at the origin if there are no nodes.
+     */
+    @NotNull
+    @AndroidCoordinate
+    public Rectangle2D getContentBounds() {
+        if (contentBounds == null) {
+            Rectangle2D.Double bounds = new Rectangle2D.Double();
+            boolean empty = true;
+            for (int node = 0, count = graph.getNodeCount(); node < count; node++) {
+                if (!graph.containsNode(node)) {
+                    continue;
+                }
+                if (empty) {
+                    graph.getNodeBounds(node, bounds);
+                    empty = false;
+                } else {
+                    bounds.add(graph.getNodeBounds(node, tmpBounds));
+                }
+            }
+            contentBounds = bounds;
+        }
+        return (Rectangle2D) contentBounds.clone();
+    }
+
+    /**
+     * Updates the bounds of the given node and its ports in the indexes, and adds both their old and new bounds to
+     * {@code dirtyArea}. The edges of the node are marked to be routed again by {@link #updateEdgeRoutes}.
+     */
+    private void updateNodeIndexes(@NotNull SceneGraph graph, int node, @AndroidCoordinate @NotNull Rectangle2D.Double dirtyArea) {
+        updateIndex(nodeIndex, node, graph.getNodeBounds(node, tmpBounds), dirtyArea);
+        graph.forEachNodePort(node, port -> updateIndex(portIndex, port, graph.getPortBounds(port, tmpBounds), dirtyArea));
+        edgeRouter.invalidateNodeEdges(node);
+    }
+
+    /**
+     * Routes the edges invalidated since the last call, updates their bounds in the index and adds both their old and new
+     * bounds to {@code dirtyArea}.
+     */
+    private void updateEdgeRoutes(@AndroidCoordinate @NotNull Rectangle2D.Double dirtyArea) {
+        edgeRouter.routeDirtyEdges(edge -> updateIndex(edgeIndex, edge, edgeRouter.getRouteBounds(edge, tmpBounds), dirtyArea));
+    }
+
+    /**
+     * Updates the bounds of {@code id} in the given index and adds both its old and new bounds to {@code dirtyArea}.
+     */
+    private void updateIndex(@NotNull SpatialIndex index,
+                             int id,
+                             @AndroidCoordinate @NotNull Rectangle2D bounds,
+                             @AndroidCoordinate @NotNull Rectangle2D.Double dirtyArea) {
+        if (index.getBounds(id, tmpOldBounds)) {
+            dirtyArea.add(tmpOldBounds);
+        }
+        dirtyArea.add(bounds);
+        index.update(id, bounds);
+    }
+
+    /**
+     * Removes {@code id} from the given index and notifies the listeners that the area it was covering changed.
+     */
+    private void removeFromIndex(@NotNull SpatialIndex index, int id) {
+        if (index.getBounds(id, tmpOldBounds)) {
+            index.remove(id);
+            fireSceneChanged(tmpOldBounds);
+        }
+    }
+
+    private void fireSceneChanged(@AndroidCoordinate @Nullable Rectangle2D area) {
+        for (SceneChangeListener listener : listeners) {
+            listener.sceneChanged(area);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        graph.removeListener(graphListener);
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.tools.adtui.common.SwingCoordinate;
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the scene rendered into fixed size image tiles. Tiles are laid out in a grid in {@link SwingCoordinate}s, so
+ * a tile rendered at a given scale can only be reused at that exact scale: a tile rendered at a slightly different scale
+ * would drift out of alignment with its neighbours far from the origin. Tiles are also keyed by the scale of the screen
+ * device they are rendered for, since their images have one pixel per device pixel to stay sharp on HiDPI screens.
+ * <p>
+ * The least recently used tiles are evicted once the images use more than the byte budget given at construction.
+ * This class is not thread safe and must only be used from the UI thread.
+ */
+final class SceneTileCache {
+
+    /**
+     * Width and height of a tile.
+     */
+    @SwingCoordinate static final int TILE_SIZE = 256;
+
+    private final long maxBytes;
+    private long usedBytes;
+
+    /**
+     * The cached tiles, in access order.
+     */
+    private final LinkedHashMap<TileKey, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes maximum number of bytes used by the tile images before the least recently used ones are evicted.
+     */
+    SceneTileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the tile at the given grid position, rendered at the given scale for a device of the given scale, or null
+     * if it is not cached.
+     */
+    @Nullable
+    BufferedImage get(@SurfaceScale double scale, double deviceScale, int column, int row) {
+        return tiles.get(new TileKey(scale, deviceScale, column, row));
+    }
+
+    /**
+     * Adds a rendered tile to the cache, evicting the least recently used tiles if the cache goes over its byte budget.
+     */
+    void put(@SurfaceScale double scale, double deviceScale, int column, int row, @NotNull BufferedImage image) {
+        BufferedImage replaced = tiles.put(new TileKey(scale, deviceScale, column, row), image);
+        if (replaced != null) {
+            usedBytes -= getBytes(replaced);
+        }
+        usedBytes += getBytes(image);
+
+        Iterator<BufferedImage> iterator = tiles.values().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            BufferedImage evicted = iterator.next();
+            if (evicted == image) {
+                // Never evict the tile that was just rendered
+                break;
+            }
+            iterator.remove();
+            usedBytes -= getBytes(evicted);
+        }
+    }
+
+    /**
+     * Removes, for all the scales, the tiles intersecting the given area.
+     *
+     * @param area   the area that changed.
+     * @param margin extra space around {@code area} that is also invalidated. This covers what is painted outside the
+     *               bounds of the scene elements, like strokes.
+     */
+    void invalidate(@AndroidCoordinate @NotNull Rectangle2D area, @SwingCoordinate int margin) {
+        Iterator<Map.Entry<TileKey, BufferedImage>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TileKey, BufferedImage> entry = iterator.next();
+            TileKey key = entry.getKey();
+            double scale = key.scale;
+            double minColumn = Math.floor((area.getMinX() * scale - margin) / TILE_SIZE);
+            double maxColumn = Math.floor((area.getMaxX() * scale + margin) / TILE_SIZE);
+            double minRow = Math.floor((area.getMinY() * scale - margin) / TILE_SIZE);
+            double maxRow = Math.floor((area.getMaxY() * scale + margin) / TILE_SIZE);
+            if (key.column >= minColumn && key.column <= maxColumn && key.row >= minRow && key.row <= maxRow) {
+                iterator.remove();
+                usedBytes -= getBytes(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached tiles.
+     */
+    void clear() {
+        tiles.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Returns the size in bytes of the pixels of a tile, using a 4 bytes ARGB pixel.
+     */
+    private static long getBytes(@NotNull BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    private static final class TileKey {
+        @SurfaceScale private final double scale;
+        private final double deviceScale;
+        private final int column;
+        private final int row;
+
+        private TileKey(@SurfaceScale double scale, double deviceScale, int column, int row) {
+            this.scale = scale;
+            this.deviceScale = deviceScale;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return Double.compare(scale, other.scale) == 0
+                   && Double.compare(deviceScale, other.deviceScale) == 0
+                   && column == other.column
+                   && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((Double.hashCode(scale) * 31 + Double.hashCode(deviceScale)) * 31 + column) * 31 + row;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.adtui.common.SwingCoordinate;
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import com.intellij.ui.JBColor;
+import com.intellij.ui.scale.JBUIScale;
+import com.intellij.util.ui.UIUtil;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+
+/**
+ * Component displaying the {@link SceneManager} of a {@link VisualEditorSurface}. This is the view of the surface
+ * viewport.
+ * <p>
+ * Only the nodes and edges intersecting the visible part of the {@link VisualEditorSurfaceViewport} are painted, so the
+ * cost of a paint depends on what is on screen and not on the size of the graph.
+ * <p>
+ * The scene is rendered into tiles kept in a {@link SceneTileCache}. Scrolling only renders the tiles that become visible
+ * for the first time at the current scale, and a change in the scene only invalidates the tiles it touches.
+ * <p>
+ * The amount of detail painted for each element depends on the zoom level, see {@link VisualEditorSurface#getDetailLevel()}.
+ * <p>
+ * The selection, and the shape of a selection gesture in progress, are painted over the tiles, so selecting nodes never
+ * invalidates the tile cache.
+ */
+class SceneViewPanel extends JComponent {
+
+    /**
+     * Margin added around the painted area when looking for the elements to paint. Strokes can be drawn slightly outside
+     * the bounds of their element, so elements just outside the painted area can still be partially visible.
+     */
+    @SwingCoordinate private static final int PAINT_MARGIN = 4;
+
+    /**
+     * Memory budget of the tile cache.
+     */
+    private static final long TILE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+    @AndroidCoordinate private static final double NODE_ARC = 8;
+
+    private static final Color NODE_BACKGROUND = new JBColor(0xF2F2F2, 0x3C3F41);
+    private static final Color NODE_BORDER = new JBColor(0x9E9E9E, 0x5E6060);
+    private static final Color NODE_TEXT = new JBColor(0x202020, 0xBBBBBB);
+    private static final Color EDGE_COLOR = new JBColor(0x6E6E6E, 0x8C8C8C);
+    private static final Color PORT_COLOR = new JBColor(0x4A88C7, 0x589DF6);
+    private static final Color SELECTION_COLOR = new JBColor(0x2675BF, 0x589DF6);
+    private static final Color SELECTION_SHAPE_FILL = new JBColor(new Color(38, 117, 191, 32), new Color(88, 157, 246, 32));
+
+    @SwingCoordinate private static final float SELECTION_STROKE_WIDTH = 2;
+
+    @NotNull private final VisualEditorSurface<?> surface;
+
+    @NotNull private final SceneTileCache tileCache = new SceneTileCache(TILE_CACHE_MAX_BYTES);
+
+    /**
+     * The {@link SceneManager} the tiles in {@link #tileCache} were rendered from.
+     */
+    @Nullable private SceneManager cachedSceneManager;
+
+    private final SceneManager.SceneChangeListener sceneChangeListener = this::sceneChanged;
+    private final SelectionModel.SelectionListener selectionListener = this::selectionChanged;
+    /** The selection as of the last repaint it triggered, to find the nodes whose selection changed */
+    private final BitSet paintedSelection = new BitSet();
+    private final BitSet changedSelection = new BitSet();
+    @NotNull private final SelectionGestureHandler selectionGestureHandler;
+
+    /**
+     * Snapshot of the visible area, painted instead of the scene while a magnification gesture is in progress. Null if
+     * there is no gesture in progress.
+     */
+    @Nullable private BufferedImage previewSnapshot;
+    /**
+     * The area of the view captured in {@link #previewSnapshot}.
+     */
+    @SwingCoordinate private final Rectangle previewArea = new Rectangle();
+    /**
+     * The point of the view around which {@link #previewSnapshot} is scaled.
+     */
+    @SwingCoordinate private final Point previewAnchor = new Point();
+    private double previewScale = 1;
+
+    // Scratch shapes reused for every painted element.
+    private final Rectangle2D.Double tmpBounds = new Rectangle2D.Double();
+    private final RoundRectangle2D.Double tmpNode = new RoundRectangle2D.Double();
+    private final Path2D.Double tmpEdge = new Path2D.Double();
+    private final Ellipse2D.Double tmpPort = new Ellipse2D.Double();
+
+    SceneViewPanel(@NotNull VisualEditorSurface<?> surface) {
+        this.surface = surface;
+        setOpaque(false);
+        setFocusable(false);
+        selectionGestureHandler = new SelectionGestureHandler(surface, this);
+        addMouseListener(selectionGestureHandler);
+        addMouseMotionListener(selectionGestureHandler);
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+
+        SceneManager sceneManager = surface.getSceneManager();
+        Dimension offset = surface.getDefaultOffset();
+        if (sceneManager == null) {
+            return new Dimension(offset);
+        }
+        double scale = surface.getScale();
+        Rectangle2D content = sceneManager.getContentBounds();
+        return new Dimension((int) Math.ceil(content.getMaxX() * scale) + offset.width,
+                             (int) Math.ceil(content.getMaxY() * scale) + offset.height);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        SceneManager sceneManager = surface.getSceneManager();
+        if (sceneManager == null) {
+            return;
+        }
+
+        if (sceneManager != cachedSceneManager) {
+            setCachedSceneManager(sceneManager);
+        }
+
+        BufferedImage snapshot = previewSnapshot;
+        if (snapshot != null) {
+            paintTransformPreview(g, snapshot);
+            return;
+        }
+
+        Rectangle area = getVisibleArea(g.getClipBounds());
+        if (!area.isEmpty()) {
+            long start = System.nanoTime();
+            paintTiles(g, sceneManager, area, JBUIScale.sysScale((Graphics2D) g));
+            paintSelection((Graphics2D) g, sceneManager, area);
+            SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.PAINT, start);
+        }
+    }
+
+    /**
+     * Paints the outline of the selected nodes intersecting {@code area}, and the shape of the selection gesture.
+     */
+    private void paintSelection(@NotNull Graphics2D graphics, @NotNull SceneManager sceneManager, @SwingCoordinate @NotNull Rectangle area) {
+        SelectionModel selectionModel = surface.getSelectionModel();
+        Shape gestureShape = selectionGestureHandler.getSelectionShape();
+        if (selectionModel.isEmpty() && gestureShape == null) {
+            return;
+        }
+
+        @SurfaceScale double scale = surface.getScale();
+        Graphics2D g = (Graphics2D) graphics.create();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(scale, scale);
+            g.setStroke(new BasicStroke((float) (SELECTION_STROKE_WIDTH / scale)));
+            g.setColor(SELECTION_COLOR);
+            if (!selectionModel.isEmpty()) {
+                SceneGraph graph = sceneManager.getGraph();
+                @AndroidCoordinate Rectangle2D.Double modelArea = new Rectangle2D.Double(
+                        (area.x - PAINT_MARGIN) / scale, (area.y - PAINT_MARGIN) / scale,
+                        (area.width + 2 * PAINT_MARGIN) / scale, (area.height + 2 * PAINT_MARGIN) / scale);
+                sceneManager.forEachNodeIn(modelArea, node -> {
+                    if (selectionModel.isSelected(node)) {
+                        graph.getNodeBounds(node, tmpBounds);
+                        tmpNode.setRoundRect(tmpBounds.x, tmpBounds.y, tmpBounds.width, tmpBounds.height, NODE_ARC, NODE_ARC);
+                        g.draw(tmpNode);
+                    }
+                });
+            }
+            if (gestureShape != null) {
+                g.setColor(SELECTION_SHAPE_FILL);
+                g.fill(gestureShape);
+                g.setColor(SELECTION_COLOR);
+                g.draw(gestureShape);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Repaints the part of the panel displaying the given area of the scene, including the selection painted around it.
+     */
+    void repaintModelArea(@AndroidCoordinate @NotNull Rectangle2D area) {
+        @SurfaceScale double scale = surface.getScale();
+        Rectangle dirty = new Rectangle((int) Math.floor(area.getMinX() * scale), (int) Math.floor(area.getMinY() * scale),
+                                        (int) Math.ceil(area.getWidth() * scale) + 1, (int) Math.ceil(area.getHeight() * scale) + 1);
+        dirty.grow(PAINT_MARGIN, PAINT_MARGIN);
+        repaint(dirty);
+    }
+
+    /**
+     * Paints the tiles covering {@code area}, rendering the ones that are not in the {@link #tileCache}.
+     *
+     * @param deviceScale the scale of the screen device the tiles are painted on, which {@code g} is scaled by.
+     */
+    private void paintTiles(@NotNull Graphics g,
+                            @NotNull SceneManager sceneManager,
+                            @SwingCoordinate @NotNull Rectangle area,
+                            double deviceScale) {
+        @SurfaceScale double scale = surface.getScale();
+        // The detail level only depends on the scale, so tiles of the same scale always share it
+        VisualEditorSurface.DetailLevel detailLevel = surface.getDetailLevel();
+        int firstColumn = Math.floorDiv(area.x, SceneTileCache.TILE_SIZE);
+        int lastColumn = Math.floorDiv(area.x + area.width - 1, SceneTileCache.TILE_SIZE);
+        int firstRow = Math.floorDiv(area.y, SceneTileCache.TILE_SIZE);
+        int lastRow = Math.floorDiv(area.y + area.height - 1, SceneTileCache.TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                BufferedImage tile = tileCache.get(scale, deviceScale, column, row);
+                if (tile == null) {
+                    tile = renderTile(sceneManager, column, row, scale, deviceScale, detailLevel);
+                    tileCache.put(scale, deviceScale, column, row, tile);
+                }
+                int x = column * SceneTileCache.TILE_SIZE;
+                int y = row * SceneTileCache.TILE_SIZE;
+                // The device pixels of the tile are mapped back to the pixels of the graphics
+                g.drawImage(tile, x, y, x + SceneTileCache.TILE_SIZE, y + SceneTileCache.TILE_SIZE,
+                            0, 0, tile.getWidth(), tile.getHeight(), null);
+            }
+        }
+    }
+
+    /**
+     * Starts painting a snapshot of the visible area, scaled around the given anchor, instead of the scene.
+     * See {@link #setTransformPreviewScale(double)}. Returns false if there is nothing to take a snapshot of.
+     *
+     * @param anchor the point, relative to the viewport, that stays in place when the snapshot is scaled.
+     */
+    boolean startTransformPreview(@SwingCoordinate @NotNull Point anchor) {
+        SceneManager sceneManager = surface.getSceneManager();
+        Rectangle area = surface.getViewport().getViewRect();
+        if (sceneManager == null || area.isEmpty()) {
+            return false;
+        }
+        if (sceneManager != cachedSceneManager) {
+            setCachedSceneManager(sceneManager);
+        }
+
+        // The tiles of the current scale are usually all cached already, so taking the snapshot is cheap. Like the tiles,
+        // it has one pixel per device pixel.
+        double deviceScale = JBUIScale.sysScale(this);
+        BufferedImage snapshot = new BufferedImage((int) Math.ceil(area.width * deviceScale),
+                                                   (int) Math.ceil(area.height * deviceScale),
+                                                   BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = snapshot.createGraphics();
+        try {
+            g.scale(deviceScale, deviceScale);
+            g.translate(-area.x, -area.y);
+            paintTiles(g, sceneManager, area, deviceScale);
+        } finally {
+            g.dispose();
+        }
+
+        previewSnapshot = snapshot;
+        previewArea.setBounds(area);
+        previewAnchor.setLocation(area.x + anchor.x, area.y + anchor.y);
+        previewScale = 1;
+        return true;
+    }
+
+    /**
+     * Sets the scale applied to the snapshot taken by {@link #startTransformPreview(Point)}, relative to the scale at
+     * which the snapshot was taken.
+     */
+    void setTransformPreviewScale(double scale) {
+        if (previewSnapshot != null && previewScale != scale) {
+            previewScale = scale;
+            repaint(previewArea);
+        }
+    }
+
+    /**
+     * Goes back to painting the scene and releases the preview snapshot.
+     */
+    void stopTransformPreview() {
+        previewSnapshot = null;
+        previewScale = 1;
+    }
+
+    private void paintTransformPreview(@NotNull Graphics g, @NotNull BufferedImage snapshot) {
+        Graphics2D g2d = (Graphics2D) g.create();
+        try {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.translate(previewAnchor.x, previewAnchor.y);
+            g2d.scale(previewScale, previewScale);
+            g2d.translate(-previewAnchor.x, -previewAnchor.y);
+            g2d.drawImage(snapshot, previewArea.x, previewArea.y,
+                          previewArea.x + previewArea.width, previewArea.y + previewArea.height,
+                          0, 0, snapshot.getWidth(), snapshot.getHeight(), null);
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        surface.getSelectionModel().copySelection(paintedSelection);
+        surface.getSelectionModel().addListener(selectionListener);
+    }
+
+    @Override
+    public void removeNotify() {
+        surface.getSelectionModel().removeListener(selectionListener);
+        super.removeNotify();
+        stopTransformPreview();
+        setCachedSceneManager(null);
+    }
+
+    private void setCachedSceneManager(@Nullable SceneManager sceneManager) {
+        if (cachedSceneManager != null) {
+            cachedSceneManager.removeSceneChangeListener(sceneChangeListener);
+        }
+        tileCache.clear();
+        cachedSceneManager = sceneManager;
+        if (sceneManager != null) {
+            sceneManager.addSceneChangeListener(sceneChangeListener);
+        }
+    }
+
+    /**
+     * Repaints the nodes whose selection changed since the last call.
+     */
+    private void selectionChanged(@NotNull SelectionModel selectionModel) {
+        changedSelection.clear();
+        changedSelection.or(paintedSelection);
+        selectionModel.copySelection(paintedSelection);
+        changedSelection.xor(paintedSelection);
+        SceneManager sceneManager = surface.getSceneManager();
+        if (sceneManager == null || changedSelection.isEmpty()) {
+            return;
+        }
+
+        SceneGraph graph = sceneManager.getGraph();
+        @AndroidCoordinate Rectangle2D.Double dirtyArea = null;
+        for (int node = changedSelection.nextSetBit(0); node >= 0; node = changedSelection.nextSetBit(node + 1)) {
+            if (!graph.containsNode(node)) {
+                continue; // Removed nodes are repainted by the change of the scene
+            }
+            graph.getNodeBounds(node, tmpBounds);
+            if (dirtyArea == null) {
+                dirtyArea = new Rectangle2D.Double(tmpBounds.x, tmpBounds.y, tmpBounds.width, tmpBounds.height);
+            } else {
+                dirtyArea.add(tmpBounds);
+            }
+        }
+        if (dirtyArea != null) {
+            repaintModelArea(dirtyArea);
+        }
+    }
+
+    private void sceneChanged(@AndroidCoordinate @Nullable Rectangle2D area) {
+        if (area == null) {
+            tileCache.clear();
+            revalidate();
+            repaint();
+            return;
+        }
+
+        tileCache.invalidate(area, PAINT_MARGIN);
+        revalidate();
+        repaintModelArea(area);
+    }
+
+    /**
+     * Returns the part of {@code clip} that intersects the visible area of the surface viewport.
+     */
+    @NotNull
+    @SwingCoordinate
+    private Rectangle getVisibleArea(@SwingCoordinate @Nullable Rectangle clip) {
+        Rectangle area = surface.getViewport().getViewRect();
+        return clip != null ? area.intersection(clip) : area;
+    }
+
+    /**
+     * Renders the tile at the given position of the tile grid, with one pixel per pixel of a device of the given scale.
+     */
+    @NotNull
+    private BufferedImage renderTile(@NotNull SceneManager sceneManager,
+                                     int column,
+                                     int row,
+                                     @SurfaceScale double scale,
+                                     double deviceScale,
+                                     @NotNull VisualEditorSurface.DetailLevel detailLevel) {
+        int size = (int) Math.ceil(SceneTileCache.TILE_SIZE * deviceScale);
+        BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.scale(deviceScale, deviceScale);
+            int x = column * SceneTileCache.TILE_SIZE;
+            int y = row * SceneTileCache.TILE_SIZE;
+            g.translate(-x, -y);
+            paintScene(g, sceneManager, new Rectangle(x, y, SceneTileCache.TILE_SIZE, SceneTileCache.TILE_SIZE), scale, detailLevel);
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Paints the elements of the given {@link SceneManager} intersecting {@code area}, with the given level of detail.
+     */
+    @VisibleForTesting
+    void paintScene(@NotNull Graphics2D g,
+                    @NotNull SceneManager sceneManager,
+                    @SwingCoordinate @NotNull Rectangle area,
+                    @SurfaceScale double scale,
+                    @NotNull VisualEditorSurface.DetailLevel detailLevel) {
+        SceneGraph graph = sceneManager.getGraph();
+        @AndroidCoordinate Rectangle2D.Double modelArea = new Rectangle2D.Double(
+                (area.x - PAINT_MARGIN) / scale, (area.y - PAINT_MARGIN) / scale,
+                (area.width + 2 * PAINT_MARGIN) / scale, (area.height + 2 * PAINT_MARGIN) / scale);
+
+        boolean simplified = detailLevel == VisualEditorSurface.DetailLevel.SIMPLIFIED;
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                           simplified ? RenderingHints.VALUE_ANTIALIAS_OFF : RenderingHints.VALUE_ANTIALIAS_ON);
+        g.clip(area);
+        g.scale(scale, scale);
+
+        g.setColor(EDGE_COLOR);
+        sceneManager.forEachEdgeIn(modelArea, edge -> {
+            double[] route = sceneManager.getEdgeRoute(edge);
+            if (route.length < 4) {
+                return;
+            }
+            tmpEdge.reset();
+            tmpEdge.moveTo(route[0], route[1]);
+            for (int i = 2; i < route.length; i += 2) {
+                tmpEdge.lineTo(route[i], route[i + 1]);
+            }
+            g.draw(tmpEdge);
+        });
+
+        // Nodes and ports are painted in id order, so the hit tests of the scene manager find the one painted on top
+        if (simplified) {
+            sceneManager.forEachNodeInPaintOrder(modelArea, node -> {
+                graph.getNodeBounds(node, tmpBounds);
+                g.setColor(NODE_BACKGROUND);
+                g.fill(tmpBounds);
+                g.setColor(NODE_BORDER);
+                g.draw(tmpBounds);
+            });
+            return;
+        }
+
+        boolean paintLabels = detailLevel == VisualEditorSurface.DetailLevel.FULL;
+        if (paintLabels) {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setFont(UIUtil.getLabelFont());
+        }
+        FontMetrics metrics = g.getFontMetrics();
+        sceneManager.forEachNodeInPaintOrder(modelArea, node -> {
+            graph.getNodeBounds(node, tmpBounds);
+            tmpNode.setRoundRect(tmpBounds.x, tmpBounds.y, tmpBounds.width, tmpBounds.height, NODE_ARC, NODE_ARC);
+            g.setColor(NODE_BACKGROUND);
+            g.fill(tmpNode);
+            g.setColor(NODE_BORDER);
+            g.draw(tmpNode);
+            if (paintLabels) {
+                // Labels are clipped to their node, so they never paint outside of the area invalidated for the node
+                Shape clip = g.getClip();
+                g.clip(tmpBounds);
+                g.setColor(NODE_TEXT);
+                g.drawString(graph.getLabel(node),
+                             (float) (tmpBounds.x + NODE_ARC),
+                             (float) (tmpBounds.y + NODE_ARC + metrics.getAscent()));
+                g.setClip(clip);
+            }
+        });
+
+        g.setColor(PORT_COLOR);
+        sceneManager.forEachPortInPaintOrder(modelArea, port -> {
+            tmpPort.setFrame(graph.getPortBounds(port, tmpBounds));
+            g.fill(tmpPort);
+        });
+    }
+}
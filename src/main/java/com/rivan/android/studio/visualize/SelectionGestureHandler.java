@@ -0,0 +1,251 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.tools.adtui.common.SwingCoordinate;
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import com.intellij.openapi.util.SystemInfo;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Mouse handler of a {@link SceneViewPanel} selecting nodes by clicking them, or by dragging a rubber band rectangle or,
+ * with Alt pressed, a free-form lasso around them. With Shift, or the menu shortcut key, the nodes are added to the
+ * selection instead of replacing it.
+ * <p>
+ * The selection is updated live while dragging. On every drag, only the nodes intersecting the bounds of the shape are
+ * found, through the spatial index of the {@link SceneManager}, and the exact containment test only runs on them. The
+ * repainted area only covers the previous and new shapes and the nodes whose selection changed, so the cost of a drag
+ * step depends on the size of the shape and not on the size of the graph.
+ * <p>
+ * The bounds of the lasso are grown with each point instead of being computed from its path. Points that are almost
+ * aligned with their neighbors are dropped while dragging, so the containment test of a long lasso only depends on the
+ * number of its turns.
+ * <p>
+ * The whole drag is a single gesture of the {@link SelectionModel}, so its listeners are notified once, when the mouse
+ * is released.
+ */
+final class SelectionGestureHandler extends MouseAdapter {
+
+    /**
+     * Minimum distance, in pixels, between two points of a lasso.
+     */
+    @SwingCoordinate private static final int LASSO_MIN_STEP = 3;
+    /**
+     * Maximum distance, in pixels, between a dropped point of a lasso and the line joining its neighbors.
+     */
+    @SwingCoordinate private static final double LASSO_TOLERANCE = 1;
+
+    @NotNull private final VisualEditorSurface<?> surface;
+    @NotNull private final SceneViewPanel panel;
+
+    // State of the drag in progress, only set between the press and the release of the mouse
+    @Nullable private SceneManager sceneManager;
+    /** The selection when the drag started, kept when adding to the selection, otherwise empty */
+    private final BitSet baseSelection = new BitSet();
+    /** The selection computed for the current shape, and the one for the previous shape */
+    private BitSet selection = new BitSet();
+    private BitSet previousSelection = new BitSet();
+    @AndroidCoordinate private final Rectangle2D.Double marquee = new Rectangle2D.Double();
+    @AndroidCoordinate @Nullable private Path2D.Double lasso;
+    /** The points of the lasso, the last one being replaced by the next point if they are aligned */
+    @AndroidCoordinate private double[] lassoX = new double[64];
+    @AndroidCoordinate private double[] lassoY = new double[64];
+    private int lassoCount;
+    @AndroidCoordinate private final Rectangle2D.Double lassoBounds = new Rectangle2D.Double();
+    @SwingCoordinate private final Point start = new Point();
+    @SwingCoordinate private final Point lastLassoPoint = new Point();
+    private boolean dragging;
+
+    private final Rectangle2D.Double tmpBounds = new Rectangle2D.Double();
+    @AndroidCoordinate private final Rectangle2D.Double dirtyArea = new Rectangle2D.Double();
+
+    SelectionGestureHandler(@NotNull VisualEditorSurface<?> surface, @NotNull SceneViewPanel panel) {
+        this.surface = surface;
+        this.panel = panel;
+    }
+
+    /**
+     * Returns the shape being dragged, or null if there is none.
+     */
+    @AndroidCoordinate
+    @Nullable
+    Shape getSelectionShape() {
+        if (!dragging) {
+            return null;
+        }
+        return lasso != null ? lasso : marquee;
+    }
+
+    @Override
+    public void mousePressed(@NotNull MouseEvent e) {
+        SceneManager sceneManager = surface.getSceneManager();
+        if (!SwingUtilities.isLeftMouseButton(e) || sceneManager == null) {
+            return;
+        }
+        SelectionModel selectionModel = surface.getSelectionModel();
+        double scale = surface.getScale();
+        int node = sceneManager.findNodeAt(e.getX() / scale, e.getY() / scale);
+        if (node >= 0) {
+            if (isAdding(e)) {
+                selectionModel.toggle(node);
+            } else if (!selectionModel.isSelected(node)) {
+                selectionModel.setSelection(node);
+            }
+            return;
+        }
+
+        this.sceneManager = sceneManager;
+        selectionModel.beginGesture();
+        baseSelection.clear();
+        if (isAdding(e)) {
+            selectionModel.forEachSelected(baseSelection::set);
+        } else {
+            selectionModel.clear();
+        }
+        previousSelection.clear();
+        previousSelection.or(baseSelection);
+        start.setLocation(e.getPoint());
+        marquee.setRect(e.getX() / scale, e.getY() / scale, 0, 0);
+        if (e.isAltDown()) {
+            lasso = new Path2D.Double();
+            lassoX[0] = e.getX() / scale;
+            lassoY[0] = e.getY() / scale;
+            lassoCount = 1;
+            lasso.moveTo(lassoX[0], lassoY[0]);
+            lassoBounds.setRect(lassoX[0], lassoY[0], 0, 0);
+            lastLassoPoint.setLocation(e.getPoint());
+        } else {
+            lasso = null;
+        }
+        dragging = true;
+    }
+
+    @Override
+    public void mouseDragged(@NotNull MouseEvent e) {
+        SceneManager sceneManager = this.sceneManager;
+        if (!dragging || sceneManager == null) {
+            return;
+        }
+        double scale = surface.getScale();
+        Rectangle2D shapeBounds = getShapeBounds();
+        dirtyArea.setRect(shapeBounds);
+
+        if (lasso != null) {
+            if (e.getPoint().distance(lastLassoPoint) < LASSO_MIN_STEP) {
+                return;
+            }
+            addLassoPoint(e.getX() / scale, e.getY() / scale, LASSO_TOLERANCE / scale);
+            lastLassoPoint.setLocation(e.getPoint());
+        } else {
+            marquee.setFrameFromDiagonal(start.x / scale, start.y / scale, e.getX() / scale, e.getY() / scale);
+        }
+        shapeBounds = getShapeBounds();
+        dirtyArea.add(shapeBounds);
+
+        // Candidates come from the spatial index, the exact test only runs on them
+        selection.clear();
+        selection.or(baseSelection);
+        SceneGraph graph = sceneManager.getGraph();
+        Path2D.Double lasso = this.lasso;
+        sceneManager.forEachNodeIn(shapeBounds, node -> {
+            graph.getNodeBounds(node, tmpBounds);
+            if (lasso != null ? lasso.contains(tmpBounds) : marquee.contains(tmpBounds)) {
+                selection.set(node);
+            }
+        });
+
+        // Repaint the nodes whose selection changed. The previous selection is reused as the set of changed nodes.
+        previousSelection.xor(selection);
+        for (int node = previousSelection.nextSetBit(0); node >= 0; node = previousSelection.nextSetBit(node + 1)) {
+            if (graph.containsNode(node)) {
+                dirtyArea.add(graph.getNodeBounds(node, tmpBounds));
+            }
+        }
+        BitSet previous = previousSelection;
+        previousSelection = selection;
+        selection = previous;
+
+        surface.getSelectionModel().setSelection(previousSelection);
+        panel.repaintModelArea(dirtyArea);
+    }
+
+    @Override
+    public void mouseReleased(@NotNull MouseEvent e) {
+        if (!dragging) {
+            return;
+        }
+        dragging = false;
+        panel.repaintModelArea(getShapeBounds());
+        lasso = null;
+        sceneManager = null;
+        surface.getSelectionModel().endGesture();
+    }
+
+    /**
+     * Adds a point to the lasso. The last point is replaced instead when it is within {@code tolerance} of the line
+     * joining the point before it to the new point.
+     */
+    private void addLassoPoint(@AndroidCoordinate double x, @AndroidCoordinate double y, @AndroidCoordinate double tolerance) {
+        Path2D.Double lasso = this.lasso;
+        assert lasso != null;
+        lassoBounds.add(x, y);
+        int last = lassoCount - 1;
+        if (lassoCount >= 2 && Line2D.ptSegDistSq(lassoX[last - 1], lassoY[last - 1], x, y, lassoX[last], lassoY[last])
+                               <= tolerance * tolerance) {
+            lassoX[last] = x;
+            lassoY[last] = y;
+            // Path2D can't move its last point, it is rebuilt from the kept points
+            lasso.reset();
+            lasso.moveTo(lassoX[0], lassoY[0]);
+            for (int i = 1; i < lassoCount; i++) {
+                lasso.lineTo(lassoX[i], lassoY[i]);
+            }
+            return;
+        }
+        if (lassoCount == lassoX.length) {
+            lassoX = Arrays.copyOf(lassoX, lassoCount * 2);
+            lassoY = Arrays.copyOf(lassoY, lassoCount * 2);
+        }
+        lassoX[lassoCount] = x;
+        lassoY[lassoCount] = y;
+        lassoCount++;
+        lasso.lineTo(x, y);
+    }
+
+    @AndroidCoordinate
+    @NotNull
+    private Rectangle2D getShapeBounds() {
+        return lasso != null ? lassoBounds : marquee;
+    }
+
+    private static boolean isAdding(@NotNull MouseEvent e) {
+        return e.isShiftDown() || (e.getModifiersEx() & (SystemInfo.isMac ? InputEvent.META_DOWN_MASK : InputEvent.CTRL_DOWN_MASK)) != 0;
+    }
+}
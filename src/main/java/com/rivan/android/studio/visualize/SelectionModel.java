@@ -0,0 +1,292 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.annotations.concurrency.UiThread;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import com.rivan.android.studio.visualize.scene.SceneGraphListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * The nodes selected in a {@link VisualEditorSurface}, stored as a bitset over the node ids.
+ * <p>
+ * Membership is a single bit test, and selecting all the nodes or inverting the selection are word-wide operations on
+ * the bitset, so huge selections cost a bit per node and no object per node. The selected ids can be visited with
+ * {@link #forEachSelected(IntConsumer)} or copied to a primitive array with {@link #getSelection()}.
+ * <p>
+ * Listeners are notified after every change, or once at the end of a gesture for all the changes made during it. See
+ * {@link #beginGesture()}. The selection must only be used from the UI thread.
+ * <p>
+ * The selection follows the graph set with {@link #setGraph(SceneGraph)}: removed nodes are deselected, and the
+ * selection is cleared with the graph, since the ids of the removed nodes are reused once the graph is cleared.
+ */
+@UiThread
+public class SelectionModel {
+
+    public interface SelectionListener {
+        /**
+         * Called after the selection changed, or at the end of a gesture that changed it.
+         */
+        void selectionChanged(@NotNull SelectionModel model);
+    }
+
+    @NotNull private BitSet selection = new BitSet();
+    /**
+     * Reused by {@link #invert(SceneGraph)} to swap with {@link #selection}, so inverting doesn't allocate.
+     */
+    @NotNull private BitSet scratch = new BitSet();
+
+    @NotNull private final ListenerArray<SelectionListener> listeners = new ListenerArray<>(new SelectionListener[0]);
+
+    /** Number of gestures in progress. Notifications are deferred until it goes back to 0. */
+    private int gestureDepth;
+    /** Whether the selection changed during the gestures in progress */
+    private boolean changedDuringGesture;
+
+    @Nullable private SceneGraph graph;
+    private final SceneGraphListener graphListener = new SceneGraphListener() {
+        @Override
+        public void nodeRemoved(@NotNull SceneGraph graph, int node) {
+            deselect(node);
+        }
+
+        @Override
+        public void nodesRemoved(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+            // The listeners are notified once for all the removed nodes
+            boolean changed = false;
+            for (int node : nodes) {
+                if (selection.get(node)) {
+                    selection.clear(node);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                changed();
+            }
+        }
+
+        @Override
+        public void graphCleared(@NotNull SceneGraph graph) {
+            clear();
+        }
+    };
+
+    /**
+     * Sets the graph of the selected nodes, and clears the selection.
+     */
+    public void setGraph(@Nullable SceneGraph graph) {
+        if (this.graph == graph) {
+            return;
+        }
+        if (this.graph != null) {
+            this.graph.removeListener(graphListener);
+        }
+        this.graph = graph;
+        if (graph != null) {
+            graph.addListener(graphListener);
+        }
+        clear();
+    }
+
+    public void addListener(@NotNull SelectionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull SelectionListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isSelected(int node) {
+        return node >= 0 && selection.get(node);
+    }
+
+    public boolean isEmpty() {
+        return selection.isEmpty();
+    }
+
+    public int getSelectedCount() {
+        return selection.cardinality();
+    }
+
+    /**
+     * Calls the consumer with the id of each selected node, in increasing order.
+     */
+    public void forEachSelected(@NotNull IntConsumer consumer) {
+        for (int node = selection.nextSetBit(0); node >= 0; node = selection.nextSetBit(node + 1)) {
+            consumer.accept(node);
+        }
+    }
+
+    /**
+     * Returns the ids of the selected nodes, in increasing order.
+     */
+    @NotNull
+    public int[] getSelection() {
+        int[] nodes = new int[selection.cardinality()];
+        int i = 0;
+        for (int node = selection.nextSetBit(0); node >= 0; node = selection.nextSetBit(node + 1)) {
+            nodes[i++] = node;
+        }
+        return nodes;
+    }
+
+    /**
+     * Replaces the content of the given bitset with the ids of the selected nodes.
+     */
+    public void copySelection(@NotNull BitSet nodes) {
+        nodes.clear();
+        nodes.or(selection);
+    }
+
+    /**
+     * Replaces the selection with the given node.
+     */
+    public void setSelection(int node) {
+        if (selection.cardinality() == 1 && selection.get(node)) {
+            return;
+        }
+        selection.clear();
+        selection.set(node);
+        changed();
+    }
+
+    public void select(int node) {
+        if (!selection.get(node)) {
+            selection.set(node);
+            changed();
+        }
+    }
+
+    public void deselect(int node) {
+        if (selection.get(node)) {
+            selection.clear(node);
+            changed();
+        }
+    }
+
+    public void toggle(int node) {
+        selection.flip(node);
+        changed();
+    }
+
+    /**
+     * Replaces the selection with the nodes set in the given bitset.
+     */
+    public void setSelection(@NotNull BitSet nodes) {
+        if (selection.equals(nodes)) {
+            return;
+        }
+        selection.clear();
+        selection.or(nodes);
+        changed();
+    }
+
+    /**
+     * Adds the nodes set in the given bitset to the selection.
+     */
+    public void select(@NotNull BitSet nodes) {
+        scratch.clear();
+        scratch.or(nodes);
+        scratch.andNot(selection);
+        if (!scratch.isEmpty()) {
+            selection.or(nodes);
+            changed();
+        }
+    }
+
+    public void clear() {
+        if (!selection.isEmpty()) {
+            selection.clear();
+            changed();
+        }
+    }
+
+    /**
+     * Selects all the nodes of the graph.
+     */
+    public void selectAll(@NotNull SceneGraph graph) {
+        graph.copyNodeIds(scratch);
+        if (!scratch.equals(selection)) {
+            swap();
+            changed();
+        }
+    }
+
+    /**
+     * Selects the nodes of the graph that are not selected, and deselects the others.
+     */
+    public void invert(@NotNull SceneGraph graph) {
+        graph.copyNodeIds(scratch);
+        scratch.andNot(selection);
+        swap();
+        changed();
+    }
+
+    /**
+     * Deselects the nodes that are no longer in the graph.
+     */
+    public void retainNodes(@NotNull SceneGraph graph) {
+        int count = selection.cardinality();
+        graph.retainNodeIds(selection);
+        if (selection.cardinality() != count) {
+            changed();
+        }
+    }
+
+    /**
+     * Starts a gesture, like a drag of the mouse, during which the listeners are not notified. They are notified once
+     * when the gesture ends, if the selection changed during the gesture. Gestures can be nested.
+     */
+    public void beginGesture() {
+        gestureDepth++;
+    }
+
+    /**
+     * Ends a gesture started by {@link #beginGesture()}.
+     */
+    public void endGesture() {
+        assert gestureDepth > 0;
+        if (--gestureDepth == 0 && changedDuringGesture) {
+            changedDuringGesture = false;
+            notifyListeners();
+        }
+    }
+
+    private void swap() {
+        BitSet previous = selection;
+        selection = scratch;
+        scratch = previous;
+    }
+
+    private void changed() {
+        if (gestureDepth > 0) {
+            changedDuringGesture = true;
+        } else {
+            notifyListeners();
+        }
+    }
+
+    private void notifyListeners() {
+        for (SelectionListener listener : listeners.get()) {
+            listener.selectionChanged(this);
+        }
+    }
+}
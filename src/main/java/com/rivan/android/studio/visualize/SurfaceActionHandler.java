@@ -21,11 +21,19 @@ import com.intellij.ide.CutProvider;
 import com.intellij.ide.DeleteProvider;
 import com.intellij.ide.PasteProvider;
 import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.psi.PsiElement;
 import org.jetbrains.annotations.NotNull;
 
+import java.awt.datatransfer.DataFlavor;
+import java.io.IOException;
+import java.io.InputStream;
+
 public class SurfaceActionHandler implements DeleteProvider, CutProvider, CopyProvider, PasteProvider {
 
+    private static final Logger LOG = Logger.getInstance(SurfaceActionHandler.class);
+
     protected final VisualEditorSurface<?> surface;
     private CopyPasteManager copyPasteManager;
 
@@ -40,14 +48,14 @@ public class SurfaceActionHandler implements DeleteProvider, CutProvider, CopyPr
 
     @Override
     public void performCopy(@NotNull DataContext dataContext) {
-        //if (!surface.getSelectionModel().isEmpty()) {
-            //copyPasteManager.setContents(surface.getSelectionAsTransferable());
-        //}
+        if (!surface.getSelectionModel().isEmpty()) {
+            copyPasteManager.setContents(surface.getSelectionAsTransferable());
+        }
     }
 
     @Override
     public boolean isCopyEnabled(@NotNull DataContext dataContext) {
-        return false;
+        return hasNonEmptySelection();
     }
 
     @Override
@@ -57,12 +65,17 @@ public class SurfaceActionHandler implements DeleteProvider, CutProvider, CopyPr
 
     @Override
     public void performCut(@NotNull DataContext dataContext) {
-
+        if (!canDeleteElement(dataContext)) {
+            return;
+        }
+        // The code of the nodes is taken when they are copied, before it is removed
+        copyPasteManager.setContents(surface.getSelectionAsTransferable());
+        deleteElement(dataContext);
     }
 
     @Override
     public boolean isCutEnabled(@NotNull DataContext dataContext) {
-        return false;
+        return canDeleteElement(dataContext);
     }
 
     @Override
@@ -72,30 +85,75 @@ public class SurfaceActionHandler implements DeleteProvider, CutProvider, CopyPr
 
     @Override
     public void deleteElement(@NotNull DataContext dataContext) {
-
+        VisualEditorModel model = surface.getModel();
+        if (model == null) {
+            return;
+        }
+        // The code of the nodes is removed by a single write, and the nodes by the translation that follows
+        model.getWriteBack().removeNodes(surface.getSelectionModel().getSelection());
+        surface.getSelectionModel().clear();
     }
 
     @Override
     public boolean canDeleteElement(@NotNull DataContext dataContext) {
-        return false;
+        return surface.getModel() != null && hasNonEmptySelection();
     }
 
     @Override
     public void performPaste(@NotNull DataContext dataContext) {
-
+        VisualEditorModel model = surface.getModel();
+        if (model != null) {
+            // The graph of a model is translated from the code, so the code is pasted, after the last selected node
+            String code = copyPasteManager.getContents(DataFlavor.stringFlavor);
+            int anchor = findLastNodeInFile(model, surface.getSelectionModel().getSelection());
+            if (code != null && anchor >= 0) {
+                model.getWriteBack().insertCode(anchor, code);
+            }
+            return;
+        }
+
+        InputStream data = copyPasteManager.getContents(GraphTransferable.GRAPH_FLAVOR);
+        if (data == null) {
+            return;
+        }
+        try (InputStream in = data) {
+            surface.pasteGraph(GraphTransferable.readGraph(in));
+        } catch (IOException e) {
+            LOG.warn("Unable to paste the copied nodes", e);
+        }
     }
 
     @Override
     public boolean isPastePossible(@NotNull DataContext dataContext) {
-        return false;
+        return isPasteEnabled(dataContext);
     }
 
     @Override
     public boolean isPasteEnabled(@NotNull DataContext dataContext) {
-        return false;
+        if (surface.getModel() != null) {
+            return hasNonEmptySelection() && copyPasteManager.areDataFlavorsAvailable(DataFlavor.stringFlavor);
+        }
+        return surface.getSceneManager() != null && copyPasteManager.areDataFlavorsAvailable(GraphTransferable.GRAPH_FLAVOR);
+    }
+
+    /**
+     * Returns the node whose code ends last in the file, or -1 if none of the given nodes has code. Node ids don't follow
+     * the order of the file, since the nodes of an edited member are translated again with new ids.
+     */
+    private static int findLastNodeInFile(@NotNull VisualEditorModel model, @NotNull int[] nodes) {
+        int lastNode = -1;
+        int lastEnd = -1;
+        for (int node : nodes) {
+            PsiElement element = model.findNodeElement(node);
+            if (element != null && element.getTextRange().getEndOffset() > lastEnd) {
+                lastNode = node;
+                lastEnd = element.getTextRange().getEndOffset();
+            }
+        }
+        return lastNode;
     }
 
-    /*private boolean hasNonEmptySelection() {
+    private boolean hasNonEmptySelection() {
         return !surface.getSelectionModel().isEmpty();
-    }*/
+    }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms of the main operations of the Visual Editor, used to diagnose lag reports.
+ * <p>
+ * Durations are recorded in histograms with logarithmic buckets, so recording is cheap and the memory used doesn't
+ * depend on the number of recorded values. Any operation recorded on the UI thread that takes longer than
+ * {@link #EDT_STALL_THRESHOLD_MS} is also recorded as an {@link Metric#EDT_STALL}.
+ * <p>
+ * The metrics are shared by all the surfaces. They can be displayed over each surface with
+ * {@link #setOverlayEnabled(boolean)}, and exported with {@link #toJson()}.
+ */
+public final class SurfaceMetrics {
+
+    /**
+     * Operations taking longer than this on the UI thread are recorded as stalls.
+     */
+    static final long EDT_STALL_THRESHOLD_MS = 50;
+
+    /**
+     * Number of buckets of the histograms. Bucket {@code i} counts the durations between {@code 2^i} and
+     * {@code 2^(i+1)} microseconds, and the last one all the longer durations.
+     */
+    private static final int BUCKET_COUNT = 25;
+
+    public enum Metric {
+        PAINT("paint"),
+        SET_SCALE("setScale"),
+        REVALIDATE("revalidateScrollArea"),
+        TRANSLATION("translation"),
+        LAYOUT("layout"),
+        LAYOUT_APPLY("layoutApply"),
+        EDT_STALL("edtStall");
+
+        @NotNull final String id;
+
+        Metric(@NotNull String id) {
+            this.id = id;
+        }
+    }
+
+    private static final SurfaceMetrics INSTANCE = new SurfaceMetrics();
+
+    private final Histogram[] histograms = new Histogram[Metric.values().length];
+
+    private volatile boolean overlayEnabled;
+    private final List<Runnable> overlayListeners = new CopyOnWriteArrayList<>();
+
+    private SurfaceMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    @NotNull
+    public static SurfaceMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the duration of an operation of the given kind, started at {@code startNanos} as returned by
+     * {@link System#nanoTime()}, and ending now.
+     */
+    public void record(@NotNull Metric metric, long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        histograms[metric.ordinal()].record(duration);
+        if (duration >= TimeUnit.MILLISECONDS.toNanos(EDT_STALL_THRESHOLD_MS) && SwingUtilities.isEventDispatchThread()) {
+            histograms[Metric.EDT_STALL.ordinal()].record(duration);
+        }
+    }
+
+    /**
+     * Returns a copy of the current state of the histogram of the given metric.
+     */
+    @NotNull
+    public HistogramSnapshot getSnapshot(@NotNull Metric metric) {
+        return histograms[metric.ordinal()].snapshot();
+    }
+
+    /**
+     * Clears all the histograms.
+     */
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    public boolean isOverlayEnabled() {
+        return overlayEnabled;
+    }
+
+    /**
+     * Shows or hides the metrics overlay of all the surfaces.
+     */
+    public void setOverlayEnabled(boolean enabled) {
+        if (overlayEnabled != enabled) {
+            overlayEnabled = enabled;
+            for (Runnable listener : overlayListeners) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Adds a listener called on the UI thread when the overlay is shown or hidden.
+     */
+    void addOverlayListener(@NotNull Runnable listener) {
+        overlayListeners.remove(listener); // ensure single registration
+        overlayListeners.add(listener);
+    }
+
+    void removeOverlayListener(@NotNull Runnable listener) {
+        overlayListeners.remove(listener);
+    }
+
+    /**
+     * Returns all the histograms as a JSON object. Durations are in nanoseconds.
+     */
+    @NotNull
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"unit\": \"ns\",\n  \"metrics\": {");
+        Metric[] metrics = Metric.values();
+        for (int i = 0; i < metrics.length; i++) {
+            HistogramSnapshot snapshot = getSnapshot(metrics[i]);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(metrics[i].id).append("\": {")
+                    .append("\"count\": ").append(snapshot.count)
+                    .append(", \"total\": ").append(snapshot.total)
+                    .append(", \"max\": ").append(snapshot.max)
+                    .append(", \"p50\": ").append(snapshot.getPercentile(50))
+                    .append(", \"p90\": ").append(snapshot.getPercentile(90))
+                    .append(", \"p99\": ").append(snapshot.getPercentile(99))
+                    .append(", \"buckets\": [");
+            boolean first = true;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                if (snapshot.buckets[bucket] == 0) {
+                    continue;
+                }
+                json.append(first ? "" : ", ")
+                        .append("{\"upperBound\": ").append(getBucketUpperBound(bucket))
+                        .append(", \"count\": ").append(snapshot.buckets[bucket]).append('}');
+                first = false;
+            }
+            json.append("]}");
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static int getBucket(long nanos) {
+        long micros = nanos / 1000;
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the largest duration counted by the given bucket, in nanoseconds, or {@link Long#MAX_VALUE} for the last
+     * bucket.
+     */
+    private static long getBucketUpperBound(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(1L << (bucket + 1)) - 1;
+    }
+
+    private static final class Histogram {
+        private final long[] buckets = new long[BUCKET_COUNT];
+        private long count;
+        private long total;
+        private long max;
+
+        synchronized void record(long nanos) {
+            buckets[getBucket(nanos)]++;
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        @NotNull
+        synchronized HistogramSnapshot snapshot() {
+            return new HistogramSnapshot(buckets.clone(), count, total, max);
+        }
+
+        synchronized void reset() {
+            Arrays.fill(buckets, 0);
+            count = 0;
+            total = 0;
+            max = 0;
+        }
+    }
+
+    /**
+     * State of a histogram at some point in time. Durations are in nanoseconds.
+     */
+    public static final class HistogramSnapshot {
+        @NotNull private final long[] buckets;
+        public final long count;
+        public final long total;
+        public final long max;
+
+        private HistogramSnapshot(@NotNull long[] buckets, long count, long total, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the recorded durations, or 0 if nothing was recorded. The
+         * bound is the end of the bucket containing the percentile, capped by the longest recorded duration.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank) {
+                    return Math.min(getBucketUpperBound(bucket), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.intellij.ui.JBColor;
+import com.intellij.util.ui.JBUI;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Layer of a {@link VisualEditorSurface} displaying the {@link SurfaceMetrics} in its top left corner. It is only
+ * visible while the overlay is enabled in the metrics, and refreshes itself periodically while visible.
+ * <p>
+ * The layer covers the whole surface but is not opaque, so every repaint of it also repaints the scene below. Refreshes
+ * only repaint the area of the text.
+ */
+final class SurfaceMetricsOverlay extends JComponent {
+
+    private static final int REFRESH_INTERVAL_MS = 500;
+
+    private static final Color BACKGROUND = new JBColor(new Color(255, 255, 255, 220), new Color(43, 43, 43, 220));
+    private static final Color TEXT = new JBColor(0x202020, 0xBBBBBB);
+
+    private final Timer refreshTimer = new Timer(REFRESH_INTERVAL_MS, e -> refresh());
+    private final Runnable overlayListener = this::updateVisibility;
+
+    /** Lines of text displayed, formatted on refresh */
+    @NotNull private String[] lines = new String[0];
+    @NotNull private Font font = createFont();
+    /** Bounds of the background of the displayed text */
+    @NotNull private Rectangle textBounds = new Rectangle();
+
+    SurfaceMetricsOverlay() {
+        setOpaque(false);
+        setFocusable(false);
+        setVisible(false);
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        SurfaceMetrics.getInstance().addOverlayListener(overlayListener);
+        updateVisibility();
+    }
+
+    @Override
+    public void removeNotify() {
+        SurfaceMetrics.getInstance().removeOverlayListener(overlayListener);
+        refreshTimer.stop();
+        super.removeNotify();
+    }
+
+    private void updateVisibility() {
+        boolean visible = SurfaceMetrics.getInstance().isOverlayEnabled();
+        if (visible) {
+            refresh();
+            refreshTimer.start();
+        } else {
+            refreshTimer.stop();
+        }
+        setVisible(visible);
+    }
+
+    /**
+     * Formats the current metrics and repaints the area of the previous and the new text.
+     */
+    private void refresh() {
+        font = createFont();
+        FontMetrics fontMetrics = getFontMetrics(font);
+        int padding = JBUI.scale(6);
+
+        SurfaceMetrics.Metric[] metrics = SurfaceMetrics.Metric.values();
+        String[] newLines = new String[metrics.length];
+        int width = 0;
+        for (int i = 0; i < metrics.length; i++) {
+            SurfaceMetrics.HistogramSnapshot snapshot = SurfaceMetrics.getInstance().getSnapshot(metrics[i]);
+            newLines[i] = String.format("%-20s n=%-6d p50 %7s  p99 %7s  max %7s", metrics[i].id, snapshot.count,
+                                        formatNanos(snapshot.getPercentile(50)), formatNanos(snapshot.getPercentile(99)),
+                                        formatNanos(snapshot.max));
+            width = Math.max(width, fontMetrics.stringWidth(newLines[i]));
+        }
+        lines = newLines;
+
+        Rectangle dirty = textBounds;
+        textBounds = new Rectangle(padding, padding, width + 2 * padding,
+                                   newLines.length * fontMetrics.getHeight() + 2 * padding);
+        dirty.add(textBounds);
+        repaint(dirty);
+    }
+
+    @Override
+    public boolean contains(int x, int y) {
+        // Never take the mouse events of the surface
+        return false;
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics.create();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setFont(font);
+            FontMetrics fontMetrics = g.getFontMetrics();
+            int lineHeight = fontMetrics.getHeight();
+            int padding = JBUI.scale(6);
+
+            g.setColor(BACKGROUND);
+            g.fillRect(textBounds.x, textBounds.y, textBounds.width, textBounds.height);
+            g.setColor(TEXT);
+            for (int i = 0; i < lines.length; i++) {
+                g.drawString(lines[i], 2 * padding, 2 * padding + i * lineHeight + fontMetrics.getAscent());
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    @NotNull
+    private static Font createFont() {
+        // Monospaced so the columns are aligned
+        return JBUI.Fonts.create(Font.MONOSPACED, 11);
+    }
+
+    @NotNull
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.0fus", nanos / 1e3);
+        }
+        return String.format("%.1fms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.annotations.concurrency.UiThread;
+import com.android.tools.adtui.common.SwingCoordinate;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Coalesces the scale changes requested by a {@link VisualEditorSurface} so at most one of them is applied per frame.
+ * <p>
+ * Gestures like trackpad magnification send many more events than the surface can be laid out and painted. Each request
+ * only records the requested scale and anchor point, and the last request received during a frame is the one applied.
+ */
+final class SurfaceZoomScheduler {
+
+    /**
+     * Minimum time between two applied scale changes, about 60 frames per second.
+     */
+    static final int FRAME_INTERVAL_MS = 16;
+
+    @NotNull private final VisualEditorSurface<?> surface;
+    @NotNull private final MergingUpdateQueue updateQueue;
+
+    private boolean hasPendingScale;
+    @SurfaceScale private double pendingScale;
+    @SwingCoordinate private int pendingX;
+    @SwingCoordinate private int pendingY;
+
+    SurfaceZoomScheduler(@NotNull VisualEditorSurface<?> surface) {
+        this.surface = surface;
+        // The timer is not restarted when a new request comes in, so a continuous gesture still applies a scale every frame
+        updateQueue = new MergingUpdateQueue("visual.editor.zoom", FRAME_INTERVAL_MS,
+                true, null, surface, null, Alarm.ThreadToUse.SWING_THREAD);
+    }
+
+    /**
+     * Requests the surface scale to be changed to {@code scale}, keeping the content at the given anchor point in place.
+     * The change is applied on the next frame unless a newer request replaces it.
+     *
+     * @see VisualEditorSurface#setScale(double, int, int)
+     */
+    @UiThread
+    void scheduleScale(@SurfaceScale double scale, @SwingCoordinate int x, @SwingCoordinate int y) {
+        pendingScale = scale;
+        pendingX = x;
+        pendingY = y;
+        if (!hasPendingScale) {
+            hasPendingScale = true;
+            updateQueue.queue(new Update("apply.scale") {
+                @Override
+                public void run() {
+                    applyPendingScale();
+                }
+            });
+        }
+    }
+
+    /**
+     * Immediately applies the last requested scale, if any. Returns true if the surface scale was changed.
+     */
+    @UiThread
+    boolean applyPendingScale() {
+        if (!hasPendingScale) {
+            return false;
+        }
+        hasPendingScale = false;
+        return surface.setScale(pendingScale, pendingX, pendingY);
+    }
+
+    /**
+     * Drops the pending scale request, if any.
+     */
+    @UiThread
+    void cancel() {
+        hasPendingScale = false;
+        updateQueue.cancelAllUpdates();
+    }
+}
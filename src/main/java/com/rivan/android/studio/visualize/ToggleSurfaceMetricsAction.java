@@ -0,0 +1,37 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.project.DumbAwareToggleAction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Shows or hides the {@link SurfaceMetrics} overlay of all the Visual Editor surfaces.
+ */
+public class ToggleSurfaceMetricsAction extends DumbAwareToggleAction {
+
+    @Override
+    public boolean isSelected(@NotNull AnActionEvent e) {
+        return SurfaceMetrics.getInstance().isOverlayEnabled();
+    }
+
+    @Override
+    public void setSelected(@NotNull AnActionEvent e, boolean state) {
+        SurfaceMetrics.getInstance().setOverlayEnabled(state);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.annotations.concurrency.Slow;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.psi.PsiJavaFile;
+import com.rivan.android.studio.visualize.scene.LayeredLayout;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Map;
+
+/**
+ * A {@link SceneGraph} translated from a file and laid out, ready to be displayed by a {@link VisualEditorModel}.
+ * <p>
+ * Translating and laying out a large file is slow, so editors compute it in the background while they are being opened
+ * and hand it to their model. The model only translates the file again on activation if it changed in the meantime.
+ * <p>
+ * The graphs are also stored in the {@link GraphSnapshotCache}, so a file whose content was already translated is not
+ * translated nor laid out again.
+ */
+public final class TranslatedGraph {
+
+    @NotNull private final SceneGraph graph;
+    @NotNull private final PsiGraphTranslator translator;
+    @NotNull private final Map<Integer, Rectangle2D.Double> groupBounds;
+    private final long fileModificationStamp;
+
+    private TranslatedGraph(@NotNull SceneGraph graph,
+                            @NotNull PsiGraphTranslator translator,
+                            @NotNull Map<Integer, Rectangle2D.Double> groupBounds,
+                            long fileModificationStamp) {
+        this.graph = graph;
+        this.translator = translator;
+        this.groupBounds = groupBounds;
+        this.fileModificationStamp = fileModificationStamp;
+    }
+
+    /**
+     * Translates the given file into a new graph and lays it out, or reads it from the {@link GraphSnapshotCache} if the
+     * same content was already translated. This must be called under a read action, and can be cancelled through the
+     * current progress indicator.
+     */
+    @Slow
+    @NotNull
+    public static TranslatedGraph create(@NotNull PsiJavaFile file) {
+        long stamp = file.getModificationStamp();
+        GraphSnapshotCache cache = GraphSnapshotCache.getInstance();
+        String key = GraphSnapshotCache.computeKey(file.getViewProvider().getContents());
+        GraphSnapshotCache.Snapshot snapshot = cache.read(key);
+        if (snapshot != null) {
+            PsiGraphTranslator translator = new PsiGraphTranslator(snapshot.getGraph());
+            if (translator.restore(file)) {
+                return new TranslatedGraph(snapshot.getGraph(), translator, snapshot.getGroupBounds(), stamp);
+            }
+        }
+        ProgressManager.checkCanceled();
+
+        long start = System.nanoTime();
+        SceneGraph graph = new SceneGraph();
+        PsiGraphTranslator translator = new PsiGraphTranslator(graph);
+        translator.translate(file);
+        SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.TRANSLATION, start);
+        ProgressManager.checkCanceled();
+
+        start = System.nanoTime();
+        LayeredLayout.Result result = LayeredLayout.create(graph).compute(ProgressManager::checkCanceled);
+        SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.LAYOUT, start);
+        result.apply(graph);
+        cache.write(key, graph, result.getGroupBounds());
+        return new TranslatedGraph(graph, translator, result.getGroupBounds(), stamp);
+    }
+
+    @NotNull
+    public SceneGraph getGraph() {
+        return graph;
+    }
+
+    @NotNull
+    PsiGraphTranslator getTranslator() {
+        return translator;
+    }
+
+    @NotNull
+    Map<Integer, Rectangle2D.Double> getGroupBounds() {
+        return groupBounds;
+    }
+
+    /**
+     * Returns the PSI modification stamp of the file when it was translated.
+     */
+    public long getFileModificationStamp() {
+        return fileModificationStamp;
+    }
+}
@@ -24,26 +24,41 @@ import com.android.resources.ResourceUrl;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.devices.Device;
 import com.android.tools.idea.AndroidPsiUtils;
+import com.android.tools.idea.common.model.AndroidCoordinate;
 import com.android.tools.idea.configurations.Configuration;
+import com.android.tools.idea.configurations.ConfigurationManager;
 import com.android.tools.idea.configurations.ResourceResolverCache;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.command.undo.BasicUndoableAction;
+import com.intellij.openapi.command.undo.DocumentReferenceManager;
+import com.intellij.openapi.command.undo.UndoManager;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.Alarm;
 import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
+import com.rivan.android.studio.visualize.scene.GraphHistory;
+import com.rivan.android.studio.visualize.scene.LayeredLayout;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
+import com.rivan.android.studio.visualize.scene.SceneGraphListener;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.VisibleForTesting;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.awt.geom.Rectangle2D;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 
@@ -53,6 +68,13 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
 
     public static final int DELAY_AFTER_TYPING_MS = 250;
 
+    /**
+     * Limits of the graph changes retained for undo. The IDE keeps a bounded number of undoable commands too, but each of
+     * ours could reference the state of thousands of nodes.
+     */
+    private static final int MAX_UNDO_STEPS = 100;
+    private static final long MAX_UNDO_BYTES = 16 * 1024 * 1024;
+
     @NotNull private final AndroidFacet facet;
     @NotNull private final VirtualFile file;
 
@@ -68,7 +90,41 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
 
     private final MergingUpdateQueue updateQueue;
 
+    @NotNull private final SceneGraph graph;
+    @NotNull private final PsiGraphTranslator translator;
+    @NotNull private final PsiTreeChangeListener psiListener = new PsiChangeListener();
+    @NotNull private final GraphWriteBack writeBack;
+    @NotNull private final GraphHistory history = new GraphHistory(MAX_UNDO_STEPS, MAX_UNDO_BYTES);
+
+    /**
+     * Members changed since the graph was last updated. Only accessed from the UI thread.
+     */
+    private final Set<PsiMember> changedMembers = new LinkedHashSet<>();
+    private boolean structureChanged;
+
     private final @NotNull AtomicReference<Disposable> themeUpdateComputation = new AtomicReference<>();
+    private final @NotNull AtomicReference<Disposable> layoutComputation = new AtomicReference<>();
+
+    // Layout state, only accessed from the UI thread
+    /** Whether the whole graph needs to be laid out, instead of only {@link #pendingLayoutGroups} */
+    private boolean fullLayoutPending;
+    /** Graph groups translated since the last applied layout */
+    private final BitSet pendingLayoutGroups = new BitSet();
+    /** Bounds of the graph groups in the last applied layout */
+    @NotNull private Map<Integer, Rectangle2D.Double> groupBounds;
+    /** Nodes moved by the user since the snapshot of the layout in progress was taken, which keep their position */
+    private final BitSet movedNodes = new BitSet();
+    private boolean applyingLayout;
+    /**
+     * PSI modification stamp of the file when {@link #graph} was translated in the background, before the first
+     * activation, or -1 if the graph has to be translated on activation.
+     */
+    private long translatedStamp = -1;
+    /**
+     * Key in the {@link GraphSnapshotCache} of the content the graph was translated from on activation, until the graph
+     * is laid out and stored in the cache, or null if there is nothing to store.
+     */
+    @Nullable private String snapshotKey;
     private boolean disposed;
 
     private final BiFunction<Project, VirtualFile, PsiJavaFile> javaFileProvider;
@@ -79,7 +135,22 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
                                 @NotNull AndroidFacet facet,
                                 @NotNull VirtualFile file,
                                 @NotNull Configuration configuration) {
-        this(parent, modelDisplayName, modelTooltip, facet, file, configuration, VisualEditorModel::getDefaultJavaFile);
+        this(parent, modelDisplayName, modelTooltip, facet, file, configuration, (TranslatedGraph) null);
+    }
+
+    /**
+     * Creates a model displaying a graph already translated from the file, usually in the background while the editor
+     * was being opened. The graph is only translated again on activation if the file changed in the meantime.
+     */
+    protected VisualEditorModel(@Nullable Disposable parent,
+                                @Nullable String modelDisplayName,
+                                @Nullable String modelTooltip,
+                                @NotNull AndroidFacet facet,
+                                @NotNull VirtualFile file,
+                                @NotNull Configuration configuration,
+                                @Nullable TranslatedGraph translatedGraph) {
+        this(parent, modelDisplayName, modelTooltip, facet, file, configuration, VisualEditorModel::getDefaultJavaFile,
+             translatedGraph);
     }
 
     @VisibleForTesting
@@ -90,6 +161,27 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
                                 @NotNull VirtualFile file,
                                 @NotNull Configuration configuration,
                                 @NotNull BiFunction<Project, VirtualFile, PsiJavaFile> javaFileProvider) {
+        this(parent, modelDisplayName, modelTooltip, facet, file, configuration, javaFileProvider, null);
+    }
+
+    private VisualEditorModel(@Nullable Disposable parent,
+                              @Nullable String modelDisplayName,
+                              @Nullable String modelTooltip,
+                              @NotNull AndroidFacet facet,
+                              @NotNull VirtualFile file,
+                              @NotNull Configuration configuration,
+                              @NotNull BiFunction<Project, VirtualFile, PsiJavaFile> javaFileProvider,
+                              @Nullable TranslatedGraph translatedGraph) {
+        if (translatedGraph != null) {
+            graph = translatedGraph.getGraph();
+            translator = translatedGraph.getTranslator();
+            groupBounds = translatedGraph.getGroupBounds();
+            translatedStamp = translatedGraph.getFileModificationStamp();
+        } else {
+            graph = new SceneGraph();
+            translator = new PsiGraphTranslator(graph);
+            groupBounds = new HashMap<>();
+        }
         this.facet = facet;
         this.javaFileProvider = javaFileProvider;
         this.modelDisplayName = modelDisplayName;
@@ -105,6 +197,34 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
         updateQueue = new MergingUpdateQueue("visual.editor.preview", DELAY_AFTER_TYPING_MS,
                 true, null, this, null, Alarm.ThreadToUse.SWING_THREAD);
         updateQueue.setRestartTimerOnAdd(true);
+        writeBack = new GraphWriteBack(this);
+        graph.addListener(new SceneGraphListener() {
+            @Override
+            public void graphCleared(@NotNull SceneGraph graph) {
+                // The node ids of the recorded steps are reused by the new nodes
+                history.clear();
+            }
+
+            @Override
+            public void nodeMoved(@NotNull SceneGraph graph, int node) {
+                if (!applyingLayout) {
+                    movedNodes.set(node);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the model of the given file, with the configuration of the file in its module. The model displays the given
+     * graph, if any, which was translated from the file in the background while its editor was being opened.
+     */
+    @NotNull
+    public static VisualEditorModel create(@Nullable Disposable parent,
+                                           @NotNull AndroidFacet facet,
+                                           @NotNull VirtualFile file,
+                                           @Nullable TranslatedGraph translatedGraph) {
+        Configuration configuration = ConfigurationManager.getOrCreateInstance(facet.getModule()).getConfiguration(file);
+        return new VisualEditorModel(parent, null, null, facet, file, configuration, translatedGraph);
     }
 
     @NotNull
@@ -126,7 +246,22 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
 
         if (!wasActive) {
             // This was the first activation so enable listeners
-
+            PsiManager.getInstance(getProject()).addPsiTreeChangeListener(psiListener, this);
+            // Changes made while the model was inactive were not tracked
+            changedMembers.clear();
+            structureChanged = false;
+            PsiJavaFile javaFile = getFile();
+            if (translatedStamp != javaFile.getModificationStamp()) {
+                long start = System.nanoTime();
+                translator.translate(javaFile);
+                SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.TRANSLATION, start);
+                // Reopening the file translates it in the background, and finds this graph in the cache once laid out
+                snapshotKey = GraphSnapshotCache.computeKey(javaFile.getViewProvider().getContents());
+                fullLayoutPending = true;
+                layout();
+            }
+            // Only the first activation can reuse the graph translated in the background
+            translatedStamp = -1;
             return true;
         } else {
             return false;
@@ -183,7 +318,134 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
     }
 
     private void deactivate() {
+        if (disposed) {
+            writeBack.cancel();
+        } else {
+            // Edits made just before the editor was closed must not be lost
+            writeBack.flush();
+        }
+        PsiManager.getInstance(getProject()).removePsiTreeChangeListener(psiListener);
+        updateQueue.cancelAllUpdates();
+        Disposable layout = layoutComputation.getAndSet(null);
+        if (layout != null) {
+            Disposer.dispose(layout);
+        }
+    }
+
+    /**
+     * Records a PSI change of the model file and schedules the update of the graph. The update is delayed until the user
+     * stops typing, and only the members changed in the meantime are translated again.
+     */
+    private void psiChanged(@Nullable PsiElement parent) {
+        // The graph no longer matches the content it would be cached under
+        snapshotKey = null;
+        if (parent == null || parent instanceof PsiFile || parent instanceof PsiClass) {
+            structureChanged = true;
+        } else {
+            PsiMember member = PsiTreeUtil.getParentOfType(parent, PsiMember.class, false);
+            if (member == null || member instanceof PsiClass) {
+                structureChanged = true;
+            } else {
+                changedMembers.add(member);
+            }
+        }
+
+        updateQueue.queue(new Update("update.graph") {
+            @Override
+            public void run() {
+                updateGraph();
+            }
+        });
+    }
+
+    private void updateGraph() {
+        if (disposed) {
+            return;
+        }
+        List<PsiMember> members = new ArrayList<>(changedMembers);
+        boolean structure = structureChanged;
+        changedMembers.clear();
+        structureChanged = false;
+        long start = System.nanoTime();
+        BitSet translatedGroups = translator.update(getFile(), members, structure);
+        SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.TRANSLATION, start);
+        if (!translatedGroups.isEmpty()) {
+            pendingLayoutGroups.or(translatedGroups);
+            layout();
+        }
+    }
+
+    /**
+     * Lays out the graph in the background. The layout in progress, if any, is cancelled. The computed positions are
+     * applied to the graph on the UI thread, all at once, unless the graph changed in the meantime.
+     * <p>
+     * After an edit, only the groups of the translated members are laid out again, in place, so the cost of the layout
+     * is proportional to the edit and the rest of the graph doesn't move.
+     * <p>
+     * Nodes moved by the user while the layout is computed keep the position they were moved to. Changes of the file
+     * start a new layout, which cancels this one.
+     */
+    private void layout() {
+        LayeredLayout layout = fullLayoutPending
+                ? LayeredLayout.create(graph)
+                : LayeredLayout.create(graph, pendingLayoutGroups, translator::getGroupNodes, groupBounds);
+        movedNodes.clear();
+        Disposable computationToken = Disposer.newDisposable();
+        Disposer.register(this, computationToken);
+        Disposable oldComputation = layoutComputation.getAndSet(computationToken);
+        if (oldComputation != null) {
+            Disposer.dispose(oldComputation);
+        }
+
+        ProgressIndicator indicator = new EmptyProgressIndicator();
+        Disposer.register(computationToken, indicator::cancel);
+        ApplicationManager.getApplication().executeOnPooledThread(
+                () -> ProgressManager.getInstance().runProcess(() -> layout(layout, computationToken), indicator));
+    }
+
+    @Slow
+    private void layout(@NotNull LayeredLayout layout, @NotNull Disposable computationToken) {
+        if (layoutComputation.get() != computationToken) {
+            return; // A new layout has already been scheduled
+        }
+
+        LayeredLayout.Result result;
+        try {
+            long start = System.nanoTime();
+            result = layout.compute(ProgressManager::checkCanceled);
+            SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.LAYOUT, start);
+        } catch (ProcessCanceledException e) {
+            return; // The token was disposed by a new layout or by the model disposal
+        }
 
+        ApplicationManager.getApplication().invokeLater(() -> {
+            if (layoutComputation.compareAndSet(computationToken, null)) {
+                Disposer.dispose(computationToken);
+                long start = System.nanoTime();
+                boolean applied;
+                applyingLayout = true;
+                try {
+                    applied = result.apply(graph);
+                    if (!applied && !movedNodes.isEmpty()) {
+                        // The graph was only changed by the user, since the file changes cancel the layout
+                        result.applyExcept(graph, movedNodes);
+                        applied = true;
+                    }
+                } finally {
+                    applyingLayout = false;
+                }
+                SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.LAYOUT_APPLY, start);
+                if (applied) {
+                    groupBounds = result.getGroupBounds();
+                    if (fullLayoutPending && snapshotKey != null) {
+                        GraphSnapshotCache.getInstance().write(snapshotKey, graph, groupBounds);
+                    }
+                    snapshotKey = null;
+                    fullLayoutPending = false;
+                    pendingLayoutGroups.clear();
+                }
+            }
+        }, a -> disposed);
     }
 
     /**
@@ -225,6 +487,64 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
         return javaFileProvider.apply(getProject(), file);
     }
 
+    /**
+     * Returns the graph translated from the model file. It is kept up to date with the file while the model is active.
+     */
+    @NotNull
+    public SceneGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Moves the given nodes as a user action that can be undone, {@code nodes[i]} to {@code (x[i], y[i])}. The move is
+     * recorded as a single step of the undo history of the file, unless the step alone exceeds the memory cap of the
+     * history, in which case the move can't be undone.
+     */
+    public void moveNodes(@NotNull int[] nodes, @AndroidCoordinate @NotNull double[] x, @AndroidCoordinate @NotNull double[] y) {
+        registerMoveStep(history.recordMove(graph, nodes, x, y));
+    }
+
+    /**
+     * Moves the given nodes by the same offset as a user action that can be undone. The move is recorded as a single step
+     * of the undo history of the file, holding only the ids of the nodes and the offset.
+     */
+    public void translateNodes(@NotNull int[] nodes, @AndroidCoordinate double dx, @AndroidCoordinate double dy) {
+        registerMoveStep(history.recordTranslation(graph, nodes, dx, dy));
+    }
+
+    private void registerMoveStep(long step) {
+        if (step < 0) {
+            return;
+        }
+        UndoManager undoManager = UndoManager.getInstance(getProject());
+        if (undoManager.isUndoOrRedoInProgress()) {
+            return;
+        }
+        CommandProcessor.getInstance().executeCommand(
+                getProject(), () -> undoManager.undoableActionPerformed(new MoveNodesUndoableAction(step)), "Move Nodes", null);
+    }
+
+    /**
+     * Returns the writer of the edits of the graph back to the model file.
+     */
+    @NotNull
+    public GraphWriteBack getWriteBack() {
+        return writeBack;
+    }
+
+    /**
+     * Returns the PSI element translated into the given node, or null if there is none or the graph is not up to date
+     * with the file, in which case the node can't be edited yet.
+     */
+    @Nullable
+    PsiElement findNodeElement(int node) {
+        if (structureChanged || !changedMembers.isEmpty()) {
+            return null;
+        }
+        PsiElement element = translator.getNodeElement(node);
+        return element != null && element.isValid() ? element : null;
+    }
+
     public long getId() {
         return id;
     }
@@ -252,6 +572,7 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
     @Override
     public void dispose() {
         disposed = true;
+        history.clear();
         boolean shouldDeactivate;
 
         synchronized (activations) {
@@ -265,9 +586,20 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
         }
     }
 
+    /**
+     * Returns a number incremented every time the graph of this model changes.
+     */
     @Override
     public long getModificationCount() {
-        return 0;
+        return graph.getModificationCount();
+    }
+
+    /**
+     * Returns a tracker of the changes of the part of the graph translated from the given member, like a single method.
+     */
+    @NotNull
+    public ModificationTracker getModificationTracker(@NotNull PsiMember member) {
+        return translator.getModificationTracker(member);
     }
 
     public void setModelDisplayName(@Nullable String name) {
@@ -289,4 +621,59 @@ public class VisualEditorModel implements Disposable, ModificationTracker {
     public String toString() {
        return VisualEditorModel.class.getSimpleName() + "for" + file;
     }
+
+    /**
+     * Undoable action of a step of the graph history. It is attached to the model file, so it is undone with the edits
+     * of the file, in the order they were made. It only references the step by id, so the memory of the steps dropped
+     * by the history can be reclaimed even though the IDE keeps the action.
+     */
+    private class MoveNodesUndoableAction extends BasicUndoableAction {
+        private final long step;
+
+        MoveNodesUndoableAction(long step) {
+            super(DocumentReferenceManager.getInstance().create(file));
+            this.step = step;
+        }
+
+        @Override
+        public void undo() {
+            history.undo(graph, step);
+        }
+
+        @Override
+        public void redo() {
+            history.redo(graph, step);
+        }
+    }
+
+    private class PsiChangeListener extends PsiTreeChangeAdapter {
+        @Override
+        public void childAdded(@NotNull PsiTreeChangeEvent event) {
+            childrenChanged(event);
+        }
+
+        @Override
+        public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+            childrenChanged(event);
+        }
+
+        @Override
+        public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+            childrenChanged(event);
+        }
+
+        @Override
+        public void childMoved(@NotNull PsiTreeChangeEvent event) {
+            childrenChanged(event);
+        }
+
+        @Override
+        public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+            PsiFile psiFile = event.getFile();
+            if (psiFile == null || !file.equals(psiFile.getVirtualFile())) {
+                return;
+            }
+            psiChanged(event.getParent());
+        }
+    }
 }
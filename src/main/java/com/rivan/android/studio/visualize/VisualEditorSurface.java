@@ -17,7 +17,6 @@
 package com.rivan.android.studio.visualize;
 
 import com.android.annotations.VisibleForTesting;
-import com.android.annotations.concurrency.GuardedBy;
 import com.android.annotations.concurrency.UiThread;
 import com.android.tools.adtui.Pannable;
 import com.android.tools.adtui.Zoomable;
@@ -25,12 +24,10 @@ import com.android.tools.adtui.actions.ZoomType;
 import com.android.tools.adtui.common.SwingCoordinate;
 import com.android.tools.editor.PanZoomListener;
 import com.android.tools.idea.common.model.AndroidCoordinate;
-import com.android.tools.idea.common.model.ItemTransferable;
 import com.android.tools.idea.common.surface.MouseClickDisplayPanel;
 import com.android.tools.idea.common.surface.SurfaceScreenScalingFactor;
 import com.android.tools.idea.common.surface.layout.MatchParentLayoutManager;
 import com.android.tools.idea.ui.designer.EditorDesignSurface;
-import com.google.common.collect.ImmutableList;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.DataProvider;
 import com.intellij.openapi.project.Project;
@@ -41,13 +38,15 @@ import com.intellij.ui.components.ZoomableViewport;
 import com.intellij.util.ui.AsyncProcessIcon;
 import com.intellij.util.ui.JBUI;
 import com.intellij.util.ui.UIUtil;
+import com.rivan.android.studio.visualize.scene.SceneGraph;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.datatransfer.Transferable;
 import java.awt.event.*;
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.function.Function;
 
 public abstract class VisualEditorSurface<T extends SceneManager> extends EditorDesignSurface implements Disposable,
@@ -65,22 +64,73 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
         AUTO_HIDE
     }
 
+    /**
+     * Determines how much detail is painted for the scene elements. Details that can't be read at the current zoom level
+     * are skipped, see {@link #getDetailLevel()}.
+     */
+    public enum DetailLevel {
+        /** Nodes are painted with their labels and ports, and edges are anti-aliased. */
+        FULL,
+        /** Same as {@link #FULL} but without the node labels. */
+        NO_LABELS,
+        /** Nodes are painted as plain boxes, without labels or ports, and edges are not anti-aliased. */
+        SIMPLIFIED
+    }
+
     /**
      * If the difference between old and new scaling values is less than threshold, the scaling will be ignored.
      */
     @SurfaceZoomLevel
     protected static final double SCALING_THRESHOLD = 0.005;
 
+    /**
+     * Default zoom level from which the scene is painted with {@link DetailLevel#FULL}.
+     */
+    @SurfaceZoomLevel
+    protected static final double DEFAULT_FULL_DETAIL_ZOOM_LEVEL = 0.6;
+
+    /**
+     * Default zoom level below which the scene is painted with {@link DetailLevel#SIMPLIFIED}.
+     */
+    @SurfaceZoomLevel
+    protected static final double DEFAULT_SIMPLIFIED_DETAIL_ZOOM_LEVEL = 0.4;
+
+    /**
+     * Offset of pasted nodes from the position of the copied ones, so they don't hide them.
+     */
+    @AndroidCoordinate private static final double PASTE_OFFSET = 20;
+
     private static final Integer LAYER_PROGRESS = JLayeredPane.POPUP_LAYER + 10;
+    private static final Integer LAYER_METRICS = LAYER_PROGRESS + 5;
     private static final Integer LAYER_MOUSE_CLICK = LAYER_PROGRESS + 10;
 
     private final Project project;
 
+    /**
+     * The model displayed by this surface, or null if there is none yet. See {@link #setModel(VisualEditorModel)}.
+     */
+    @Nullable private VisualEditorModel model;
+
     @SurfaceScale private double scale = 1;
+    /**
+     * Scroll position of the view, tracked from the scroll bars so it is saved without reading the viewport. The view
+     * state is only saved when the model changes or the surface is deactivated or disposed, not on every zoom and pan.
+     */
+    @SwingCoordinate private int scrollX;
+    @SwingCoordinate private int scrollY;
     /**
      * The scale level when magnification started. This is used as a standard when the new scale level is evaluated.
      */
     @SurfaceScale private double magnificationStartedScale;
+    /**
+     * The scale the current magnification gesture is at. It is only applied to the surface when the gesture finishes.
+     */
+    @SurfaceScale private double magnificationScale;
+    /**
+     * Point, relative to the viewport, around which the current magnification gesture is previewed. Null when there is
+     * no gesture being previewed.
+     */
+    @Nullable private Point magnificationAnchor;
 
     /**
      * {@link JScrollPane} contained in this surface when zooming is enabled.
@@ -92,20 +142,30 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
      */
     //@NotNull private final JComponent contentContainerPane;
     @NotNull private final VisualEditorSurfaceViewport viewport;
+    /**
+     * Component painting the {@link SceneManager} of this surface. This is the view displayed in the {@link #viewport}.
+     */
+    @NotNull private final SceneViewPanel sceneViewPanel;
     @NotNull private final JLayeredPane layeredPane;
     @NotNull private final MouseClickDisplayPanel mouseClickDisplayPanel;
 
-    private final Object listenersLock = new Object();
-    @GuardedBy("listenersLock")
-    protected final ArrayList<EditorSurfaceListener> listeners = new ArrayList<>();
-    @GuardedBy("listenersLock")
-    @NotNull private ArrayList<PanZoomListener> zoomListeners = new ArrayList<>();
+    @NotNull private final ListenerArray<EditorSurfaceListener> listeners =
+            new ListenerArray<>(new EditorSurfaceListener[0]);
+    /**
+     * Notified on every zoom and scroll adjustment, so dispatching to them must not allocate.
+     */
+    @NotNull private final ListenerArray<PanZoomListener> zoomListeners = new ListenerArray<>(new PanZoomListener[0]);
     private final EditorActionManager<? extends VisualEditorSurface<T>> actionManager;
 
-    //private final SelectionModel selectionModel;
+    @NotNull private final SelectionModel selectionModel;
 
     private boolean isActive = false;
 
+    /**
+     * Coalesces the scale changes requested by magnification gestures to one per frame.
+     */
+    @NotNull private final SurfaceZoomScheduler zoomScheduler;
+
     @SurfaceScale private final double maxFitIntoScale;
 
     @NotNull
@@ -124,21 +184,21 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
                                @NotNull Function<VisualEditorSurface<T>, EditorActionManager<? extends VisualEditorSurface<T>>> actionManagerProvider,
                                @NotNull Function<VisualEditorSurface<T>, SurfaceActionHandler> editorSurfaceActionHandlerProvider,
                                @NotNull ZoomControlsPolicy zoomControlsPolicy) {
-        this(project, parentDisposable, actionManagerProvider, editorSurfaceActionHandlerProvider, //new DefaultSelectionModel(),
+        this(project, parentDisposable, actionManagerProvider, editorSurfaceActionHandlerProvider, new SelectionModel(),
                 zoomControlsPolicy, Double.MAX_VALUE);
     }
 
     public VisualEditorSurface(@NotNull Project project, @NotNull Disposable parentDisposable,
                                @NotNull Function<VisualEditorSurface<T>, EditorActionManager<? extends VisualEditorSurface<T>>> actionManagerProvider,
                                @NotNull Function<VisualEditorSurface<T>, SurfaceActionHandler> actionHandlerProvider,
-                               //@NotNull SelectionModel selectionModel,
+                               @NotNull SelectionModel selectionModel,
                                @NotNull ZoomControlsPolicy zoomControlsPolicy,
                                double maxFitIntoZoomLevel) {
         super(new BorderLayout());
 
         Disposer.register(parentDisposable, this);
         this.project = project;
-        //this.selectionModel = selectionModel;
+        this.selectionModel = selectionModel;
         this.zoomControlsPolicy = zoomControlsPolicy;
 
         boolean hasZoomControls = this.zoomControlsPolicy != ZoomControlsPolicy.HIDDEN;
@@ -151,8 +211,10 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
         progressPanel = new MyProgressPanel();
         progressPanel.setName("Visual Editor Progress Panel");
 
+        sceneViewPanel = new SceneViewPanel(this);
+
         if (hasZoomControls) {
-            scrollPane = VisualEditorSurfaceScrollPane.createDefaultScrollPane(this, getBackground(), this::notifyPanningChanged);
+            scrollPane = VisualEditorSurfaceScrollPane.createDefaultScrollPane(sceneViewPanel, getBackground(), this::notifyPanningChanged);
         } else {
             scrollPane = null;
         }
@@ -168,9 +230,11 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
             viewport = new ScrollableEditorSurfaceViewport(scrollPane.getViewport());
         } else {
             layeredPane.setLayout(new OverlayLayout(layeredPane));
+            layeredPane.add(sceneViewPanel, JLayeredPane.DEFAULT_LAYER);
             viewport = new NonScrollableDesignSurfaceViewport(this);
         }
         layeredPane.add(progressPanel, LAYER_PROGRESS);
+        layeredPane.add(new SurfaceMetricsOverlay(), LAYER_METRICS);
         layeredPane.add(mouseClickDisplayPanel, LAYER_MOUSE_CLICK);
 
         add(layeredPane);
@@ -215,6 +279,8 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
 
         // Sets the maximum zoom level allowed for ZoomType#FIT.
         maxFitIntoScale = maxFitIntoZoomLevel / getScreenScalingFactor();
+
+        zoomScheduler = new SurfaceZoomScheduler(this);
     }
 
     @NotNull
@@ -249,51 +315,145 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
         return project;
     }
 
+    /**
+     * Returns the model displayed by this surface, or null if there is none.
+     */
+    @Nullable
+    public VisualEditorModel getModel() {
+        return model;
+    }
+
+    /**
+     * Sets the model displayed by this surface. The view state of the previous model is saved, and the one saved for the
+     * new model, if any, is restored. Otherwise, the new model is zoomed to fit.
+     */
+    @UiThread
+    public void setModel(@Nullable VisualEditorModel model) {
+        VisualEditorModel oldModel = this.model;
+        if (oldModel == model) {
+            return;
+        }
+
+        if (oldModel != null) {
+            storeCurrentScale(oldModel);
+            oldModel.deactivate(this);
+        }
+
+        this.model = model;
+        // The selected ids belong to the graph of the model
+        selectionModel.setGraph(model != null ? model.getGraph() : null);
+        if (model != null) {
+            model.activate(this);
+        }
+
+        revalidateScrollArea();
+        if (model != null && !restoreScale(model)) {
+            zoomToFit();
+        }
+
+        notifyModelChanged(model);
+    }
+
     @NotNull
     public Function<VisualEditorSurface<T>, SurfaceActionHandler> getActionHandlerProvider() {
         return actionHandlerProvider;
     }
 
-    /*@NotNull
+    @NotNull
     public SelectionModel getSelectionModel() {
         return selectionModel;
     }
 
-    @NotNull
-    public SecondarySelectionModel getSecondarySelectionModel() {
-        return (SecondarySelectionModel) selectionModel;
-    }*/
+    /**
+     * Moves the selected nodes by the given offset. The move can be undone when the surface displays a model.
+     */
+    @UiThread
+    public void moveSelection(@AndroidCoordinate double dx, @AndroidCoordinate double dy) {
+        T sceneManager = getSceneManager();
+        if (sceneManager == null || selectionModel.isEmpty()) {
+            return;
+        }
+        SceneGraph graph = sceneManager.getGraph();
+        selectionModel.retainNodes(graph);
+        int[] nodes = selectionModel.getSelection();
+        if (model != null && model.getGraph() == graph) {
+            model.translateNodes(nodes, dx, dy);
+            return;
+        }
+        double[] x = new double[nodes.length];
+        double[] y = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            x[i] = graph.getNodeX(nodes[i]) + dx;
+            y[i] = graph.getNodeY(nodes[i]) + dy;
+        }
+        sceneManager.moveNodes(nodes, x, y);
+    }
 
+    /**
+     * Returns the content of the clipboard for the selected nodes. See {@link GraphTransferable}.
+     * <p>
+     * This is not an {@code ItemTransferable}: its {@code DnDTransferItem} describes components by their XML, which the
+     * nodes of a graph don't have, so the nodes are copied in their own flavors instead.
+     */
     @NotNull
-    public abstract ItemTransferable getSelectionAsTransferable();
+    public Transferable getSelectionAsTransferable() {
+        T sceneManager = getSceneManager();
+        SceneGraph graph = sceneManager != null ? sceneManager.getGraph() : new SceneGraph();
+        selectionModel.retainNodes(graph);
+        VisualEditorModel model = this.model != null && this.model.getGraph() == graph ? this.model : null;
+        return GraphTransferable.create(graph, selectionModel.getSelection(), model);
+    }
 
     /**
-     * Gets a copy of {@code zoomListeners} under a lock. Use this method instead of accessing the listeners directly.
+     * Adds the nodes of the given graph to the displayed graph, next to their original position, and selects them. The
+     * added nodes are not translated from the code, so this is only possible when the surface doesn't display a model.
      */
-    @NotNull
-    private ImmutableList<PanZoomListener> getZoomListeners() {
-        synchronized (listenersLock) {
-            return ImmutableList.copyOf(zoomListeners);
+    @UiThread
+    public void pasteGraph(@NotNull SceneGraph fragment) {
+        T sceneManager = getSceneManager();
+        if (sceneManager == null || model != null && model.getGraph() == sceneManager.getGraph()) {
+            return;
+        }
+        int[] nodes = sceneManager.getGraph().addGraph(fragment, PASTE_OFFSET, PASTE_OFFSET);
+        BitSet pasted = new BitSet();
+        for (int node : nodes) {
+            pasted.set(node);
         }
+        selectionModel.setSelection(pasted);
     }
 
+    /**
+     * Returns the {@link SceneManager} displayed by this surface or null if there is nothing to display yet.
+     */
+    @Nullable
+    public abstract T getSceneManager();
+
     @Override
     public void dispose() {
-        synchronized (listenersLock) {
-            zoomListeners.clear();
+        zoomScheduler.cancel();
+        if (model != null) {
+            storeCurrentScale(model);
+            model.deactivate(this);
+            model = null;
         }
+        selectionModel.setGraph(null);
+        zoomListeners.clear();
 
         Toolkit.getDefaultToolkit().removeAWTEventListener(onHoverListener);
     }
 
     @UiThread
     public void validateScrollArea() {
-
+        sceneViewPanel.invalidate();
+        layeredPane.validate();
     }
 
     @UiThread
     public void revalidateScrollArea() {
-
+        long start = System.nanoTime();
+        sceneViewPanel.revalidate();
+        sceneViewPanel.repaint();
+        SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.REVALIDATE, start);
     }
 
     @Nullable
@@ -306,14 +466,39 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
         return (scale, at) -> null;
     }
 
+    /**
+     * While a magnification gesture is in progress, the content is not laid out or rendered again. Instead, a snapshot of
+     * the viewport taken when the gesture starts is scaled around the mouse position. The content is rendered at the new
+     * scale once, when the gesture finishes.
+     */
     @Override
     public void magnificationStarted(Point at) {
         magnificationStartedScale = getScale();
+        magnificationScale = magnificationStartedScale;
+        magnificationAnchor = null;
+
+        Point anchor = getMagnificationAnchor();
+        if (anchor != null && magnificationStartedScale > 0 && sceneViewPanel.startTransformPreview(anchor)) {
+            magnificationAnchor = anchor;
+        }
     }
 
     @Override
     public void magnificationFinished(double magnification) {
+        Point anchor = magnificationAnchor;
+        if (anchor == null) {
+            // Apply the last scale of the gesture right away instead of waiting for the next frame
+            zoomScheduler.applyPendingScale();
+            return;
+        }
 
+        magnificationAnchor = null;
+        zoomScheduler.cancel();
+        sceneViewPanel.stopTransformPreview();
+        if (!setScale(magnificationScale, anchor.x, anchor.y)) {
+            // The scale didn't change, so nothing else will remove the preview from the screen
+            sceneViewPanel.repaint();
+        }
     }
 
     @Override
@@ -322,11 +507,32 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
             return;
         }
 
+        double sensitivity = 1d;
+        @SurfaceScale double newScale = magnificationStartedScale + magnification * sensitivity;
+        if (magnificationAnchor != null) {
+            magnificationScale = Math.min(Math.max(newScale, getMinScale()), getMaxScale());
+            sceneViewPanel.setTransformPreviewScale(magnificationScale / magnificationStartedScale);
+            return;
+        }
+
+        Point mouse = getMagnificationAnchor();
+        if (mouse != null) {
+            zoomScheduler.scheduleScale(newScale, mouse.x, mouse.y);
+        }
+    }
+
+    /**
+     * Returns the point, relative to the viewport, around which magnification gestures scale the content. This is the
+     * mouse position, or null if it can't be found.
+     */
+    @Nullable
+    @SwingCoordinate
+    private Point getMagnificationAnchor() {
         Point mouse;
         if(!GraphicsEnvironment.isHeadless()) {
             PointerInfo pointerInfo = MouseInfo.getPointerInfo();
             if (pointerInfo == null) {
-                return;
+                return null;
             }
             mouse = pointerInfo.getLocation();
             SwingUtilities.convertPointFromScreen(mouse, getViewport().getViewportComponent());
@@ -334,9 +540,7 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
             // In headless mode we assume the scale point is at the center.
             mouse = new Point(getWidth() / 2, getHeight() / 2);
         }
-        double sensitivity = 1d;
-        @SurfaceScale double newScale = magnificationStartedScale + magnification * sensitivity;
-        setScale(newScale, mouse.x, mouse.y);
+        return mouse;
     }
 
     /**
@@ -501,18 +705,39 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
         return setScale(scale, -1, -1);
     }
 
+    /**
+     * Set the scale factor used to multiply the content size, keeping the content at the given point in place.
+     *
+     * @param x Coordinate, relative to the viewport, that will stay in place. If x or y are negative, the scroll position
+     *          is not changed.
+     * @param y Coordinate, relative to the viewport, that will stay in place.
+     * @return True if the scaling was changed, false if this was a noop.
+     */
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PROTECTED)
     public boolean setScale(@SurfaceScale double scale, @SwingCoordinate int x, @SwingCoordinate int y) {
         @SurfaceScale final double newScale = Math.min(Math.max(scale, getMinScale()), getMaxScale());
-        if (Math.abs(newScale - scale) < SCALING_THRESHOLD / getScreenScalingFactor()) {
+        if (Math.abs(newScale - this.scale) < SCALING_THRESHOLD / getScreenScalingFactor()) {
             return false;
         }
 
-        double previousScale = scale;
-        scale = newScale;
+        long start = System.nanoTime();
+        @SurfaceScale double previousScale = this.scale;
+        boolean keepAnchor = x >= 0 && y >= 0 && previousScale > 0;
+        Point viewPosition = getViewport().getViewPosition();
+        // Content position under the anchor, in AndroidCoordinate
+        double anchorX = (viewPosition.x + x) / previousScale;
+        double anchorY = (viewPosition.y + y) / previousScale;
+
+        this.scale = newScale;
 
         revalidateScrollArea();
-        notifyScaleChanged(previousScale, scale);
+        if (keepAnchor) {
+            // The view needs its new size before it can be scrolled to keep the anchor in place
+            validateScrollArea();
+            setScrollPosition((int) Math.round(anchorX * newScale) - x, (int) Math.round(anchorY * newScale) - y);
+        }
+        notifyScaleChanged(previousScale, newScale);
+        SurfaceMetrics.getInstance().record(SurfaceMetrics.Metric.SET_SCALE, start);
         return true;
     }
 
@@ -521,25 +746,36 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
     }
 
     /**
-     * Save the current zoom level from the file of the given {@link VisualEditorModel}.
+     * Save the current zoom level and scroll position for the file of the given {@link VisualEditorModel}.
+     * The state is written to the {@link VisualEditorSurfaceSettings} in the background.
      */
     private void storeCurrentScale(@NotNull VisualEditorModel model) {
         if (!isKeepingScaleWhenReopen()) {
             return;
         }
-        // TODO: Create a custom class for saving the zoom level
+        VisualEditorSurfaceSettings.getInstance(project)
+                .setFileState(model.getVirtualFile().getUrl(), getScale(), scrollX, scrollY);
     }
 
     /**
-     * Load the saved zoom level from the file of the given {@link VisualEditorModel}.
+     * Load the saved zoom level and scroll position for the file of the given {@link VisualEditorModel}.
      * Return true if the previous zoom level is restored, false otherwise.
      */
     private boolean restoreScale(@NotNull VisualEditorModel model) {
         if (!isKeepingScaleWhenReopen()) {
             return false;
         }
-        // TODO: Restore saved zoom level with the help of custom class
-        return false;
+        VisualEditorSurfaceSettings.FileViewState state =
+                VisualEditorSurfaceSettings.getInstance(project).getFileState(model.getVirtualFile().getUrl());
+        if (state == null || state.scale <= 0) {
+            return false;
+        }
+
+        setScale(state.scale);
+        // The view needs its size at the restored scale before it can be scrolled
+        validateScrollArea();
+        setScrollPosition(state.scrollX, state.scrollY);
+        return true;
     }
 
     public void setScrollPosition(@SwingCoordinate int x, @SwingCoordinate int y) {
@@ -593,14 +829,50 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
         return 1;
     }
 
+    /**
+     * The zoom level from which the scene is painted with {@link DetailLevel#FULL}.
+     */
+    @SurfaceZoomLevel
+    protected double getFullDetailZoomLevel() {
+        return DEFAULT_FULL_DETAIL_ZOOM_LEVEL;
+    }
+
+    /**
+     * The zoom level below which the scene is painted with {@link DetailLevel#SIMPLIFIED}.
+     */
+    @SurfaceZoomLevel
+    protected double getSimplifiedDetailZoomLevel() {
+        return DEFAULT_SIMPLIFIED_DETAIL_ZOOM_LEVEL;
+    }
+
+    /**
+     * Returns the {@link DetailLevel} used to paint the scene at the current zoom level.
+     */
+    @NotNull
+    public DetailLevel getDetailLevel() {
+        @SurfaceZoomLevel double zoomLevel = getScale() * getScreenScalingFactor();
+        if (zoomLevel >= getFullDetailZoomLevel()) {
+            return DetailLevel.FULL;
+        }
+        if (zoomLevel >= getSimplifiedDetailZoomLevel()) {
+            return DetailLevel.NO_LABELS;
+        }
+        return DetailLevel.SIMPLIFIED;
+    }
+
     private void notifyScaleChanged(double previousScale, double newScale) {
-        for (PanZoomListener myZoomListener : getZoomListeners()) {
+        for (PanZoomListener myZoomListener : zoomListeners.get()) {
             myZoomListener.zoomChanged(previousScale, newScale);
         }
     }
 
     private void notifyPanningChanged(AdjustmentEvent adjustmentEvent) {
-        for (PanZoomListener myZoomListener : getZoomListeners()) {
+        if (adjustmentEvent.getAdjustable().getOrientation() == Adjustable.HORIZONTAL) {
+            scrollX = adjustmentEvent.getValue();
+        } else {
+            scrollY = adjustmentEvent.getValue();
+        }
+        for (PanZoomListener myZoomListener : zoomListeners.get()) {
             myZoomListener.panningChanged(adjustmentEvent);
         }
     }
@@ -617,30 +889,26 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
     @SuppressWarnings("FieldAccessedSynchronizedAndUnsynchronized")
     private final MyProgressPanel progressPanel;
 
-    public void addListener(@NotNull EditorSurfaceListener listener) {
-        synchronized (listenersLock) {
-            listeners.remove(listener); // ensure single registration
-            listeners.add(listener);
+    private void notifyModelChanged(@Nullable VisualEditorModel model) {
+        for (EditorSurfaceListener listener : listeners.get()) {
+            listener.modelChanged(this, model);
         }
     }
 
+    public void addListener(@NotNull EditorSurfaceListener listener) {
+        listeners.add(listener);
+    }
+
     public void removeListener(@NotNull EditorSurfaceListener listener) {
-        synchronized (listenersLock) {
-            listeners.remove(listener);
-        }
+        listeners.remove(listener);
     }
 
     public void addPanZoomListener(@NotNull PanZoomListener listener) {
-        synchronized (listenersLock) {
-            zoomListeners.remove(listener);
-            zoomListeners.add(listener);
-        }
+        zoomListeners.add(listener);
     }
 
     public void removePanZoomListener(@NotNull PanZoomListener listener) {
-        synchronized (listenersLock) {
-            zoomListeners.remove(listener);
-        }
+        zoomListeners.remove(listener);
     }
 
     public void activate() {
@@ -658,6 +926,9 @@ public abstract class VisualEditorSurface<T extends SceneManager> extends Editor
     }
 
     public void deactivate() {
+        if (model != null) {
+            storeCurrentScale(model);
+        }
         if (isActive) {
             Toolkit.getDefaultToolkit().removeAWTEventListener(onHoverListener);
         }
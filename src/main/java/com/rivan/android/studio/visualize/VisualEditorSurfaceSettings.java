@@ -0,0 +1,166 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize;
+
+import com.android.tools.adtui.common.SwingCoordinate;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.*;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.Alarm;
+import com.intellij.util.xmlb.annotations.Attribute;
+import com.intellij.util.xmlb.annotations.Tag;
+import com.intellij.util.xmlb.annotations.XMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Project level storage of the scale and scroll position of the {@link VisualEditorSurface} for each file, so reopening a
+ * file restores its previous view instead of computing a fit scale again.
+ * <p>
+ * Surfaces record their view state when they switch to another model, or are deactivated or disposed. The new states
+ * are kept aside and only merged into the persisted state once they stop changing, on a pooled thread. Reading a state is cheap and can be done from the UI
+ * thread when a file is opened.
+ */
+@State(name = "VisualEditorSurfaceSettings", storages = @Storage(StoragePathMacros.WORKSPACE_FILE))
+public final class VisualEditorSurfaceSettings implements PersistentStateComponent<VisualEditorSurfaceSettings.SurfaceState>, Disposable {
+
+    /**
+     * Delay after the last change of a view state before it is merged into the persisted state.
+     */
+    private static final int STORE_DELAY_MS = 1000;
+
+    /**
+     * Maximum number of files for which a view state is kept. The states of the least recently opened files are dropped.
+     */
+    private static final int MAX_FILES = 100;
+
+    private final Object lock = new Object();
+    /**
+     * The persisted view states, from the least to the most recently stored.
+     */
+    private SurfaceState state = new SurfaceState();
+    /**
+     * The view states recorded since the last merge into {@link #state}.
+     */
+    private final Map<String, FileViewState> pendingStates = new LinkedHashMap<>();
+
+    private final Alarm storeAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+
+    @NotNull
+    public static VisualEditorSurfaceSettings getInstance(@NotNull Project project) {
+        return project.getService(VisualEditorSurfaceSettings.class);
+    }
+
+    /**
+     * Returns the last view state recorded for the file with the given url, or null if there is none.
+     */
+    @Nullable
+    public FileViewState getFileState(@NotNull String fileUrl) {
+        synchronized (lock) {
+            FileViewState fileState = pendingStates.get(fileUrl);
+            return fileState != null ? fileState : state.files.get(fileUrl);
+        }
+    }
+
+    /**
+     * Records the view state of the file with the given url. It is persisted once no other state has been recorded for
+     * {@link #STORE_DELAY_MS}.
+     */
+    public void setFileState(@NotNull String fileUrl,
+                             @SurfaceScale double scale,
+                             @SwingCoordinate int scrollX,
+                             @SwingCoordinate int scrollY) {
+        synchronized (lock) {
+            pendingStates.remove(fileUrl);
+            pendingStates.put(fileUrl, new FileViewState(scale, scrollX, scrollY));
+        }
+        storeAlarm.cancelAllRequests();
+        storeAlarm.addRequest(this::storePendingStates, STORE_DELAY_MS);
+    }
+
+    private void storePendingStates() {
+        synchronized (lock) {
+            Map<String, FileViewState> files = new LinkedHashMap<>(state.files);
+            for (Map.Entry<String, FileViewState> entry : pendingStates.entrySet()) {
+                // Move the file to the end so the least recently stored files are the first ones dropped
+                files.remove(entry.getKey());
+                files.put(entry.getKey(), entry.getValue());
+            }
+            pendingStates.clear();
+
+            Iterator<String> iterator = files.keySet().iterator();
+            while (files.size() > MAX_FILES && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+
+            SurfaceState newState = new SurfaceState();
+            newState.files = files;
+            state = newState;
+        }
+    }
+
+    @NotNull
+    @Override
+    public SurfaceState getState() {
+        // Don't lose the states recorded just before the project is saved
+        storePendingStates();
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    @Override
+    public void loadState(@NotNull SurfaceState state) {
+        synchronized (lock) {
+            this.state = state;
+        }
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    public static class SurfaceState {
+        @XMap(propertyElementName = "files", keyAttributeName = "url")
+        public Map<String, FileViewState> files = new LinkedHashMap<>();
+    }
+
+    @Tag("view")
+    public static class FileViewState {
+        @Attribute("scale")
+        @SurfaceScale public double scale;
+        @Attribute("x")
+        @SwingCoordinate public int scrollX;
+        @Attribute("y")
+        @SwingCoordinate public int scrollY;
+
+        @SuppressWarnings("unused") // Used for deserialization
+        public FileViewState() {
+        }
+
+        public FileViewState(@SurfaceScale double scale, @SwingCoordinate int scrollX, @SwingCoordinate int scrollY) {
+            this.scale = scale;
+            this.scrollX = scrollX;
+            this.scrollY = scrollY;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.editor;
+
+import com.intellij.ProjectTopics;
+import com.intellij.facet.Facet;
+import com.intellij.facet.FacetManager;
+import com.intellij.facet.FacetManagerAdapter;
+import com.intellij.facet.ProjectFacetManager;
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageUtil;
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.LanguageFileType;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.ModuleListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.android.facet.AndroidFacet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.kotlin.idea.KotlinFileType;
+import org.jetbrains.kotlin.idea.KotlinLanguage;
+
+/**
+ * Project service deciding which files can be opened in the Visual Editor.
+ * <p>
+ * The IDE asks the editor providers whether they accept a file every time it opens one, including every tab restored
+ * when a project is opened, so this has to be cheap. Files are first filtered by file type, which is cached by the
+ * platform for each file. Whether the project has an Android facet is cached until the facets or the modules of the
+ * project change. The PSI of the file is never loaded: the language it would have is resolved from the file type and
+ * the language substitutors, which is what the PSI would be created with.
+ */
+public final class VScriptingFileSupport implements Disposable {
+
+    private final Project project;
+
+    /**
+     * Whether the project has an Android facet, or null if it needs to be computed again.
+     */
+    private volatile Boolean hasAndroidFacets;
+
+    public VScriptingFileSupport(@NotNull Project project) {
+        this.project = project;
+
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(FacetManager.FACETS_TOPIC, new FacetManagerAdapter() {
+            @Override
+            public void facetAdded(@NotNull Facet facet) {
+                hasAndroidFacets = null;
+            }
+
+            @Override
+            public void facetRemoved(@NotNull Facet facet) {
+                hasAndroidFacets = null;
+            }
+        });
+        connection.subscribe(ProjectTopics.MODULES, new ModuleListener() {
+            @Override
+            public void moduleAdded(@NotNull Project project, @NotNull Module module) {
+                hasAndroidFacets = null;
+            }
+
+            @Override
+            public void moduleRemoved(@NotNull Project project, @NotNull Module module) {
+                hasAndroidFacets = null;
+            }
+        });
+    }
+
+    @NotNull
+    public static VScriptingFileSupport getInstance(@NotNull Project project) {
+        return project.getService(VScriptingFileSupport.class);
+    }
+
+    /**
+     * Returns true if the given file is a Java or Kotlin file of an Android project, including Kotlin scripts and files
+     * of any extension associated with these languages.
+     */
+    public boolean isSupported(@NotNull VirtualFile file) {
+        if (file.isDirectory()) {
+            return false;
+        }
+        FileType fileType = file.getFileType();
+        if (!(fileType instanceof LanguageFileType) || !hasAndroidFacets()) {
+            return false;
+        }
+        if (fileType == JavaFileType.INSTANCE || fileType == KotlinFileType.INSTANCE) {
+            return true;
+        }
+
+        // The language of the file may still be substituted to Java or Kotlin
+        Language language = LanguageUtil.getLanguageForPsi(project, file);
+        return language == JavaLanguage.INSTANCE || language == KotlinLanguage.INSTANCE;
+    }
+
+    private boolean hasAndroidFacets() {
+        Boolean result = hasAndroidFacets;
+        if (result == null) {
+            result = ProjectFacetManager.getInstance(project).hasFacets(AndroidFacet.ID);
+            hasAndroidFacets = result;
+        }
+        return result;
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -19,10 +19,14 @@ package com.rivan.android.studio.visualize.editor;
 import com.intellij.ide.structureView.StructureViewBuilder;
 import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorLocation;
+import com.intellij.ide.highlighter.JavaFileType;
 import com.intellij.openapi.fileEditor.FileEditorState;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.rivan.android.studio.visualize.TranslatedGraph;
+import com.rivan.android.studio.visualize.VisualEditorModel;
+import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -38,18 +42,37 @@ class VScriptingPreviewFileEditor extends UserDataHolderBase implements FileEdit
     private final Project project;
     private final VirtualFile file;
     private JPanel panel;
+    @Nullable private final VisualEditorModel model;
 
     /**
-     * Constructor for creating the Visual Editor. For now, it creates an empty {@link JPanel} without anything inside it.
+     * Constructor for creating the Visual Editor. For now, it creates an empty {@link JPanel} without anything inside it,
+     * and the model of the file. This is called on the UI thread, so the file is only translated here if it wasn't in
+     * the background.
      *
      * @param project The currently opened {@link Project}.
      * @param file The currently opened {@link VirtualFile}.
+     * @param translatedGraph The graph of the file, translated in the background while the editor was being opened, or
+     *                        null if it has to be translated by the model on activation.
      */
-    public VScriptingPreviewFileEditor(@NotNull Project project, @NotNull VirtualFile file) {
+    public VScriptingPreviewFileEditor(@NotNull Project project,
+                                       @NotNull VirtualFile file,
+                                       @Nullable TranslatedGraph translatedGraph) {
         this.project = project;
         this.file = file;
 
         panel = new JPanel();
+
+        // Only Java files are translated into a graph for now
+        AndroidFacet facet = file.getFileType() == JavaFileType.INSTANCE ? AndroidFacet.getInstance(file, project) : null;
+        model = facet != null ? VisualEditorModel.create(this, facet, file, translatedGraph) : null;
+    }
+
+    /**
+     * Returns the model of the file, or null if the file can't be displayed as a graph.
+     */
+    @Nullable
+    public VisualEditorModel getModel() {
+        return model;
     }
 
     // Return the empty JPanel to be shown in the editor.
@@ -74,6 +97,21 @@ class VScriptingPreviewFileEditor extends UserDataHolderBase implements FileEdit
 
     }
 
+    // Keep the graph up to date with the file only while the editor is visible
+    @Override
+    public void selectNotify() {
+        if (model != null) {
+            model.activate(this);
+        }
+    }
+
+    @Override
+    public void deselectNotify() {
+        if (model != null) {
+            model.deactivate(this);
+        }
+    }
+
     @Override
     public boolean isModified() {
         return false;
@@ -16,41 +16,71 @@
 
 package com.rivan.android.studio.visualize.editor;
 
-import com.intellij.facet.ProjectFacetManager;
-import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileEditor.AsyncFileEditorProvider;
 import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorPolicy;
-import com.intellij.openapi.fileEditor.FileEditorProvider;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
 import com.intellij.psi.PsiManager;
-import org.jetbrains.android.facet.AndroidFacet;
+import com.rivan.android.studio.visualize.TranslatedGraph;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.kotlin.idea.KotlinLanguage;
+import org.jetbrains.annotations.Nullable;
 
 /**
  *  File Editor Provider that provides the {@link VScriptingPreviewFileEditor} as the editor.
+ *  <p>
+ *  The graph of the file is translated and laid out by {@link #createEditorAsync}, in the background, so that only the
+ *  Swing components and the model displaying the graph are created on the UI thread when the editor is built.
  */
 
-public class VScriptingPreviewFileEditorProvider implements FileEditorProvider {
+public class VScriptingPreviewFileEditorProvider implements AsyncFileEditorProvider {
 
-    // Override this to accept only Java and Kotlin files
+    // Override this to accept only Java and Kotlin files of Android projects
     @Override
     public boolean accept(@NotNull Project project, @NotNull VirtualFile file) {
-        // Find the currently opened file
-        PsiFile checkedFile = PsiManager.getInstance(project).findFile(file);
-        // Return true if the opened project is of Android, i.e., it has AndroidFacet and the file is an instance of
-        // JavaLanguage or KotlinLanguage
-        return (checkedFile.getLanguage() == JavaLanguage.INSTANCE || checkedFile.getLanguage() == KotlinLanguage.INSTANCE)
-                && ProjectFacetManager.getInstance(project).hasFacets(AndroidFacet.ID);
+        return VScriptingFileSupport.getInstance(project).isSupported(file);
     }
 
     // Create VScriptingPreviewFileEditor
     @NotNull
     @Override
     public FileEditor createEditor(@NotNull Project project, @NotNull VirtualFile file) {
-        return new VScriptingPreviewFileEditor(project, file);
+        return createEditorAsync(project, file).build();
+    }
+
+    // Translate the file before returning the Builder, which only creates the editor and its model
+    @NotNull
+    @Override
+    public Builder createEditorAsync(@NotNull Project project, @NotNull VirtualFile file) {
+        TranslatedGraph translatedGraph = translateInBackground(project, file);
+        return new Builder() {
+            @Override
+            public FileEditor build() {
+                return new VScriptingPreviewFileEditor(project, file, translatedGraph);
+            }
+        };
+    }
+
+    /**
+     * Translates the given file under a non-blocking read action, which is restarted if a write action comes in. Returns
+     * null when called on the UI thread, where the model translates the file on activation instead, or if the file is not
+     * a Java file.
+     */
+    @Nullable
+    private static TranslatedGraph translateInBackground(@NotNull Project project, @NotNull VirtualFile file) {
+        if (ApplicationManager.getApplication().isDispatchThread()) {
+            return null;
+        }
+        return ReadAction.nonBlocking(() -> {
+                    PsiFile psiFile = file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+                    return psiFile instanceof PsiJavaFile ? TranslatedGraph.create((PsiJavaFile) psiFile) : null;
+                })
+                .expireWith(project)
+                .executeSynchronously();
     }
 
     // Return editorTypeId
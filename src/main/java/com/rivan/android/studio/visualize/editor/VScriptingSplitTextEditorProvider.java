@@ -61,6 +61,8 @@ public abstract class VScriptingSplitTextEditorProvider implements AsyncFileEdit
         return createEditorAsync(project, file).build();
     }
 
+    // The Builders of both providers are created here, in the background, so their slow work like reading the PSI is
+    // done before build() is called on the UI thread
     @NotNull
     @Override
     public Builder createEditorAsync(@NotNull final Project project, @NotNull final VirtualFile file) {
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Computes orthogonal routes for the edges of a {@link SceneGraph}, avoiding the nodes where possible.
+ * <p>
+ * A route leaves its source port perpendicularly to the side of the node the port is on, and enters its target port the
+ * same way. In between, a few candidate routes with one or two bends are tried, and the one crossing the fewest nodes,
+ * then the shortest, is kept. The nodes crossed by a candidate are found through the {@link SpatialIndex} of the nodes,
+ * so routing an edge only looks at the nodes around it.
+ * <p>
+ * Routes are cached per edge. An edge is only routed again after it is invalidated, usually because one of the nodes it
+ * connects moved. This class is not thread safe.
+ */
+public class EdgeRouter {
+
+    /**
+     * Length of the straight segment leaving or entering a port before the route can turn.
+     */
+    @AndroidCoordinate public static final double STUB_LENGTH = 12;
+
+    /**
+     * Space kept between a route going around a node and that node.
+     */
+    @AndroidCoordinate private static final double CLEARANCE = 10;
+
+    /**
+     * Cost of a crossed node, in route length. A route crossing fewer nodes is always preferred.
+     */
+    private static final double CROSSING_COST = 1e6;
+
+    private static final double[] NO_ROUTE = new double[0];
+
+    @NotNull private final SceneGraph graph;
+    @NotNull private final SpatialIndex nodeIndex;
+
+    /**
+     * Route of each edge, indexed by id, as a sequence of {@code x, y} points. Empty for edges that are not routed.
+     */
+    @NotNull private double[][] routes = new double[16][];
+    /**
+     * Edges whose route needs to be computed again.
+     */
+    @NotNull private final BitSet dirtyEdges = new BitSet();
+
+    // Scratch state used while routing an edge
+    private final Rectangle2D.Double tmpBounds = new Rectangle2D.Double();
+    private final Rectangle2D.Double tmpSegment = new Rectangle2D.Double();
+    private int excludedSource;
+    private int excludedTarget;
+    private int crossings;
+    private final double[] candidate = new double[16];
+
+    /**
+     * @param graph     the graph whose edges are routed.
+     * @param nodeIndex index of the bounds of the nodes of {@code graph}, used to find the nodes a route would cross.
+     */
+    public EdgeRouter(@NotNull SceneGraph graph, @NotNull SpatialIndex nodeIndex) {
+        this.graph = graph;
+        this.nodeIndex = nodeIndex;
+    }
+
+    /**
+     * Marks the route of the given edge as needing to be computed again.
+     */
+    public void invalidate(int edge) {
+        dirtyEdges.set(edge);
+    }
+
+    /**
+     * Marks the routes of all the edges connected to the given node as needing to be computed again.
+     */
+    public void invalidateNodeEdges(int node) {
+        graph.forEachNodeEdge(node, dirtyEdges::set);
+    }
+
+    /**
+     * Computes the routes of all the invalidated edges still in the graph, and calls {@code consumer} with the id of each
+     * of them. The nodes of the graph must be in their final position, since they are the obstacles of the routes.
+     */
+    public void routeDirtyEdges(@NotNull IntConsumer consumer) {
+        for (int edge = dirtyEdges.nextSetBit(0); edge >= 0; edge = dirtyEdges.nextSetBit(edge + 1)) {
+            if (graph.containsEdge(edge)) {
+                route(edge);
+                consumer.accept(edge);
+            }
+        }
+        dirtyEdges.clear();
+    }
+
+    /**
+     * Returns the route of the given edge as a sequence of {@code x, y} points, going from the source port to the target
+     * port. The route is computed if it was invalidated. The returned array must not be modified.
+     */
+    @AndroidCoordinate
+    @NotNull
+    public double[] getRoute(int edge) {
+        if (dirtyEdges.get(edge) || edge >= routes.length || routes[edge] == null) {
+            route(edge);
+            dirtyEdges.clear(edge);
+        }
+        return routes[edge];
+    }
+
+    /**
+     * Sets {@code out} to the rectangle enclosing the route of the given edge and returns it.
+     */
+    @AndroidCoordinate
+    @NotNull
+    public Rectangle2D.Double getRouteBounds(int edge, @NotNull Rectangle2D.Double out) {
+        double[] route = getRoute(edge);
+        if (route.length == 0) {
+            return graph.getEdgeBounds(edge, out);
+        }
+        double minX = route[0];
+        double minY = route[1];
+        double maxX = minX;
+        double maxY = minY;
+        for (int i = 2; i < route.length; i += 2) {
+            minX = Math.min(minX, route[i]);
+            maxX = Math.max(maxX, route[i]);
+            minY = Math.min(minY, route[i + 1]);
+            maxY = Math.max(maxY, route[i + 1]);
+        }
+        out.setRect(minX, minY, maxX - minX, maxY - minY);
+        return out;
+    }
+
+    /**
+     * Drops the cached route of the given edge.
+     */
+    public void remove(int edge) {
+        if (edge < routes.length) {
+            routes[edge] = null;
+        }
+        dirtyEdges.clear(edge);
+    }
+
+    /**
+     * Drops all the cached routes.
+     */
+    public void clear() {
+        Arrays.fill(routes, null);
+        dirtyEdges.clear();
+    }
+
+    private void route(int edge) {
+        if (edge >= routes.length) {
+            routes = Arrays.copyOf(routes, Math.max(routes.length * 2, edge + 1));
+        }
+        if (!graph.containsEdge(edge)) {
+            routes[edge] = NO_ROUTE;
+            return;
+        }
+
+        int source = graph.getEdgeSource(edge);
+        int target = graph.getEdgeTarget(edge);
+        excludedSource = graph.getPortNode(source);
+        excludedTarget = graph.getPortNode(target);
+
+        double sx = graph.getPortX(source);
+        double sy = graph.getPortY(source);
+        double tx = graph.getPortX(target);
+        double ty = graph.getPortY(target);
+        int sourceSide = getSide(source);
+        int targetSide = getSide(target);
+        // End of the stubs leaving the source and entering the target
+        double ax = sx + STUB_LENGTH * SIDE_DX[sourceSide];
+        double ay = sy + STUB_LENGTH * SIDE_DY[sourceSide];
+        double bx = tx + STUB_LENGTH * SIDE_DX[targetSide];
+        double by = ty + STUB_LENGTH * SIDE_DY[targetSide];
+
+        double[] best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+
+        // Horizontal, vertical, horizontal: try the middle, then around the nodes crossed by the middle
+        double[] midXs = { (ax + bx) / 2, 0, 0 };
+        int midXCount = 1;
+        double[] midYs = { (ay + by) / 2, 0, 0 };
+        int midYCount = 1;
+        for (int i = 0; i < midXCount; i++) {
+            int length = setCandidate(sx, sy, ax, ay, midXs[i], ay, midXs[i], by, bx, by, tx, ty);
+            double cost = evaluate(length);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = Arrays.copyOf(candidate, length);
+            }
+            if (i == 0 && crossings > 0 && findCrossedNode(midXs[0], Math.min(ay, by), midXs[0], Math.max(ay, by))) {
+                midXs[midXCount++] = tmpBounds.getMinX() - CLEARANCE;
+                midXs[midXCount++] = tmpBounds.getMaxX() + CLEARANCE;
+            }
+        }
+        // Vertical, horizontal, vertical
+        for (int i = 0; i < midYCount; i++) {
+            int length = setCandidate(sx, sy, ax, ay, ax, midYs[i], bx, midYs[i], bx, by, tx, ty);
+            double cost = evaluate(length);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = Arrays.copyOf(candidate, length);
+            }
+            if (i == 0 && crossings > 0 && findCrossedNode(Math.min(ax, bx), midYs[0], Math.max(ax, bx), midYs[0])) {
+                midYs[midYCount++] = tmpBounds.getMinY() - CLEARANCE;
+                midYs[midYCount++] = tmpBounds.getMaxY() + CLEARANCE;
+            }
+        }
+
+        routes[edge] = best != null ? best : new double[] { sx, sy, tx, ty };
+    }
+
+    // Sides of a node a port can be on, and the direction a route leaves the port in
+    private static final int SIDE_LEFT = 0;
+    private static final int SIDE_RIGHT = 1;
+    private static final int SIDE_TOP = 2;
+    private static final int SIDE_BOTTOM = 3;
+    private static final int[] SIDE_DX = { -1, 1, 0, 0 };
+    private static final int[] SIDE_DY = { 0, 0, -1, 1 };
+
+    /**
+     * Returns the side of its node the given port is the closest to.
+     */
+    private int getSide(int port) {
+        graph.getNodeBounds(graph.getPortNode(port), tmpBounds);
+        double x = graph.getPortX(port);
+        double y = graph.getPortY(port);
+        double left = Math.abs(x - tmpBounds.getMinX());
+        double right = Math.abs(tmpBounds.getMaxX() - x);
+        double top = Math.abs(y - tmpBounds.getMinY());
+        double bottom = Math.abs(tmpBounds.getMaxY() - y);
+        double min = Math.min(Math.min(left, right), Math.min(top, bottom));
+        if (min == right) {
+            return SIDE_RIGHT;
+        }
+        if (min == left) {
+            return SIDE_LEFT;
+        }
+        return min == bottom ? SIDE_BOTTOM : SIDE_TOP;
+    }
+
+    /**
+     * Sets {@link #candidate} to the given points, dropping the points that don't change the route, and returns the number
+     * of values set.
+     */
+    private int setCandidate(double... points) {
+        int length = 0;
+        for (int i = 0; i < points.length; i += 2) {
+            double x = points[i];
+            double y = points[i + 1];
+            if (length >= 2 && candidate[length - 2] == x && candidate[length - 1] == y) {
+                continue; // Duplicate point
+            }
+            if (length >= 4) {
+                double px = candidate[length - 4];
+                double py = candidate[length - 3];
+                double cx = candidate[length - 2];
+                double cy = candidate[length - 1];
+                if ((px == cx && cx == x) || (py == cy && cy == y)) {
+                    // The previous point is in the middle of a straight line
+                    length -= 2;
+                }
+            }
+            candidate[length++] = x;
+            candidate[length++] = y;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the cost of the first {@code length} values of {@link #candidate}, and sets {@link #crossings} to the number
+     * of nodes it crosses.
+     */
+    private double evaluate(int length) {
+        crossings = 0;
+        double distance = 0;
+        for (int i = 2; i < length; i += 2) {
+            double x1 = candidate[i - 2];
+            double y1 = candidate[i - 1];
+            double x2 = candidate[i];
+            double y2 = candidate[i + 1];
+            distance += Math.abs(x2 - x1) + Math.abs(y2 - y1);
+            tmpSegment.setRect(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+            nodeIndex.query(tmpSegment, node -> {
+                if (node != excludedSource && node != excludedTarget) {
+                    crossings++;
+                }
+            });
+        }
+        return crossings * CROSSING_COST + distance;
+    }
+
+    /**
+     * Finds a node, other than the ones connected by the edge being routed, crossed by the given segment. If there is
+     * one, its bounds are stored in {@link #tmpBounds} and true is returned.
+     */
+    private boolean findCrossedNode(double x1, double y1, double x2, double y2) {
+        tmpSegment.setRect(x1, y1, x2 - x1, y2 - y1);
+        int[] found = { -1 };
+        nodeIndex.query(tmpSegment, node -> {
+            if (found[0] == -1 && node != excludedSource && node != excludedTarget) {
+                found[0] = node;
+            }
+        });
+        if (found[0] == -1) {
+            return false;
+        }
+        graph.getNodeBounds(found[0], tmpBounds);
+        return true;
+    }
+}
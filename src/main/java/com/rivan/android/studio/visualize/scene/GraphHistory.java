@@ -0,0 +1,352 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * History of the changes made by the user to the nodes of a {@link SceneGraph}, used to undo and redo them.
+ * <p>
+ * Moving nodes by the same offset, like dragging a selection, is stored as a single step holding the ids of the moved
+ * nodes and the offset. Other moves keep snapshots of the state of every node the history has seen, in a
+ * {@link PersistentIntMap}. Each such step stores the snapshots before and after the change, which share everything but
+ * the changed nodes with each other and with the other steps, and the ids of the changed nodes. Recording, undoing and
+ * redoing a step therefore cost time and memory proportional to the number of changed nodes, not to the size of the
+ * graph.
+ * <p>
+ * The retained steps are capped both in number and in estimated memory, the oldest ones being dropped first. A change
+ * that alone exceeds the memory cap is applied but not recorded. Steps are addressed by id, so undoing a dropped step is
+ * a no-op. Node ids are only valid until the graph is cleared, so the history must be {@link #clear() cleared} with it.
+ */
+public final class GraphHistory {
+
+    /**
+     * Estimated size in bytes of a step, without its snapshots or node ids.
+     */
+    private static final int STEP_BYTES = 64;
+    private static final int NODE_ID_BYTES = 4;
+    private static final int NODE_STATE_BYTES = 32;
+
+    private final int maxSteps;
+    private final long maxBytes;
+
+    /**
+     * The retained steps by id, from the oldest to the most recent.
+     */
+    private final Map<Long, Step> steps = new LinkedHashMap<>();
+    private long nextStepId;
+    private long retainedBytes;
+
+    /**
+     * State of all the nodes seen by the history, as of the last recorded, undone or redone step.
+     */
+    @NotNull private PersistentIntMap<NodeState> current = PersistentIntMap.empty();
+
+    public GraphHistory(int maxSteps, long maxBytes) {
+        this.maxSteps = maxSteps;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Moves the given nodes by the same offset and records the move as a step. The step only stores the node ids and the
+     * offset, so undoing and redoing it move the nodes back and forth by the offset.
+     *
+     * @return the id of the recorded step, or -1 if nothing was recorded: no node moved, or the step would exceed the
+     * memory cap on its own.
+     */
+    public long recordTranslation(@NotNull SceneGraph graph,
+                                  @NotNull int[] nodes,
+                                  @AndroidCoordinate double dx,
+                                  @AndroidCoordinate double dy) {
+        if (dx == 0 && dy == 0) {
+            return -1;
+        }
+        int[] moved = filterAlive(graph, nodes);
+        if (moved.length == 0) {
+            return -1;
+        }
+
+        translate(graph, moved, dx, dy);
+        long bytes = STEP_BYTES + (long) NODE_ID_BYTES * moved.length;
+        if (bytes > maxBytes) {
+            return -1;
+        }
+        return addStep(new TranslationStep(moved, dx, dy, bytes));
+    }
+
+    /**
+     * Moves the given nodes, {@code nodes[i]} to {@code (x[i], y[i])}, and records the move as a step. Prefer
+     * {@link #recordTranslation} when all the nodes are moved by the same offset.
+     *
+     * @return the id of the recorded step, or -1 if nothing was recorded: no node moved, or the step would exceed the
+     * memory cap on its own.
+     */
+    public long recordMove(@NotNull SceneGraph graph,
+                           @NotNull int[] nodes,
+                           @AndroidCoordinate @NotNull double[] x,
+                           @AndroidCoordinate @NotNull double[] y) {
+        PersistentIntMap<NodeState> before = current;
+        PersistentIntMap<NodeState> after = current;
+        int[] changed = new int[nodes.length];
+        int changedCount = 0;
+        long bytes = STEP_BYTES;
+        for (int i = 0; i < nodes.length; i++) {
+            int node = nodes[i];
+            if (!graph.containsNode(node) || graph.getNodeX(node) == x[i] && graph.getNodeY(node) == y[i]) {
+                continue;
+            }
+            // The node may have been moved by something else than a recorded step, like a layout
+            bytes += before.estimatePutBytes() + after.estimatePutBytes() + 2 * NODE_STATE_BYTES + NODE_ID_BYTES;
+            if (bytes > maxBytes) {
+                // Too big to be retained, stop building the snapshots and only move the nodes
+                moveAlive(graph, nodes, x, y);
+                return -1;
+            }
+            before = before.put(node, new NodeState(graph.getNodeX(node), graph.getNodeY(node)));
+            after = after.put(node, new NodeState(x[i], y[i]));
+            changed[changedCount++] = node;
+        }
+        if (changedCount == 0) {
+            return -1;
+        }
+        if (changedCount < changed.length) {
+            int[] trimmed = new int[changedCount];
+            System.arraycopy(changed, 0, trimmed, 0, changedCount);
+            changed = trimmed;
+        }
+
+        current = after;
+        apply(graph, changed, after);
+        return addStep(new SnapshotStep(changed, before, after, bytes));
+    }
+
+    /**
+     * Restores the nodes changed by the given step to their state before the step.
+     *
+     * @return false if the step is no longer retained.
+     */
+    public boolean undo(@NotNull SceneGraph graph, long stepId) {
+        Step step = steps.get(stepId);
+        if (step == null) {
+            return false;
+        }
+        step.undo(graph);
+        return true;
+    }
+
+    /**
+     * Restores the nodes changed by the given step to their state after the step.
+     *
+     * @return false if the step is no longer retained.
+     */
+    public boolean redo(@NotNull SceneGraph graph, long stepId) {
+        Step step = steps.get(stepId);
+        if (step == null) {
+            return false;
+        }
+        step.redo(graph);
+        return true;
+    }
+
+    /**
+     * Drops all the steps.
+     */
+    public void clear() {
+        steps.clear();
+        retainedBytes = 0;
+        current = PersistentIntMap.empty();
+    }
+
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    /**
+     * Returns the estimated memory used by the retained steps, in bytes.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Moves the given nodes to their state in the given snapshot, skipping the ones removed from the graph since.
+     */
+    private void apply(@NotNull SceneGraph graph, @NotNull int[] nodes, @NotNull PersistentIntMap<NodeState> snapshot) {
+        int[] alive = filterAlive(graph, nodes);
+        double[] x = new double[alive.length];
+        double[] y = new double[alive.length];
+        for (int i = 0; i < alive.length; i++) {
+            // The nodes of a snapshot step are always in both of its snapshots
+            NodeState state = snapshot.get(alive[i]);
+            x[i] = state.x;
+            y[i] = state.y;
+            current = current.put(alive[i], state);
+        }
+        graph.moveNodes(alive, x, y);
+    }
+
+    /**
+     * Moves the given nodes by the given offset, skipping the ones removed from the graph since.
+     */
+    private static void translate(@NotNull SceneGraph graph, @NotNull int[] nodes, double dx, double dy) {
+        int[] alive = filterAlive(graph, nodes);
+        double[] x = new double[alive.length];
+        double[] y = new double[alive.length];
+        for (int i = 0; i < alive.length; i++) {
+            x[i] = graph.getNodeX(alive[i]) + dx;
+            y[i] = graph.getNodeY(alive[i]) + dy;
+        }
+        graph.moveNodes(alive, x, y);
+    }
+
+    /**
+     * Moves the given nodes, {@code nodes[i]} to {@code (x[i], y[i])}, skipping the ones not in the graph.
+     */
+    private static void moveAlive(@NotNull SceneGraph graph, @NotNull int[] nodes, @NotNull double[] x, @NotNull double[] y) {
+        int[] alive = filterAlive(graph, nodes);
+        double[] aliveX = new double[alive.length];
+        double[] aliveY = new double[alive.length];
+        // The alive nodes are in the same order as in nodes
+        for (int i = 0, count = 0; count < alive.length; i++) {
+            if (nodes[i] == alive[count]) {
+                aliveX[count] = x[i];
+                aliveY[count] = y[i];
+                count++;
+            }
+        }
+        graph.moveNodes(alive, aliveX, aliveY);
+    }
+
+    /**
+     * Returns a new array of the given nodes that are still in the graph, in the same order.
+     */
+    @NotNull
+    private static int[] filterAlive(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+        int[] alive = new int[nodes.length];
+        int count = 0;
+        for (int node : nodes) {
+            if (graph.containsNode(node)) {
+                alive[count++] = node;
+            }
+        }
+        return count == alive.length ? alive : Arrays.copyOf(alive, count);
+    }
+
+    private long addStep(@NotNull Step step) {
+        long id = nextStepId++;
+        steps.put(id, step);
+        retainedBytes += step.bytes;
+        trim();
+        return id;
+    }
+
+    /**
+     * Drops the oldest steps until the retained steps fit in the caps. The steps added are never bigger than the memory
+     * cap on their own, so the most recent step is always kept.
+     */
+    private void trim() {
+        Iterator<Step> iterator = steps.values().iterator();
+        while (steps.size() > maxSteps || retainedBytes > maxBytes) {
+            Step oldest = iterator.next();
+            retainedBytes -= oldest.bytes;
+            iterator.remove();
+        }
+    }
+
+    private abstract static class Step {
+        final long bytes;
+
+        Step(long bytes) {
+            this.bytes = bytes;
+        }
+
+        abstract void undo(@NotNull SceneGraph graph);
+
+        abstract void redo(@NotNull SceneGraph graph);
+    }
+
+    /**
+     * Step restoring the snapshots of the changed nodes.
+     */
+    private final class SnapshotStep extends Step {
+        @NotNull final int[] nodes;
+        @NotNull final PersistentIntMap<NodeState> before;
+        @NotNull final PersistentIntMap<NodeState> after;
+
+        SnapshotStep(@NotNull int[] nodes,
+                     @NotNull PersistentIntMap<NodeState> before,
+                     @NotNull PersistentIntMap<NodeState> after,
+                     long bytes) {
+            super(bytes);
+            this.nodes = nodes;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        void undo(@NotNull SceneGraph graph) {
+            apply(graph, nodes, before);
+        }
+
+        @Override
+        void redo(@NotNull SceneGraph graph) {
+            apply(graph, nodes, after);
+        }
+    }
+
+    /**
+     * Step moving nodes by the same offset.
+     */
+    private static final class TranslationStep extends Step {
+        @NotNull final int[] nodes;
+        @AndroidCoordinate final double dx;
+        @AndroidCoordinate final double dy;
+
+        TranslationStep(@NotNull int[] nodes, @AndroidCoordinate double dx, @AndroidCoordinate double dy, long bytes) {
+            super(bytes);
+            this.nodes = nodes;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        @Override
+        void undo(@NotNull SceneGraph graph) {
+            translate(graph, nodes, -dx, -dy);
+        }
+
+        @Override
+        void redo(@NotNull SceneGraph graph) {
+            translate(graph, nodes, dx, dy);
+        }
+    }
+
+    private static final class NodeState {
+        @AndroidCoordinate final double x;
+        @AndroidCoordinate final double y;
+
+        NodeState(@AndroidCoordinate double x, @AndroidCoordinate double y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,721 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.geom.Rectangle2D;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Layered (Sugiyama style) layout of a {@link SceneGraph}. Each group of nodes is laid out on its own, flowing from left
+ * to right, and the groups are stacked vertically in the order of their first node.
+ * <p>
+ * For each group, the edges closing a cycle are ignored, each node is put in the layer following the one of its farthest
+ * predecessor, the nodes of each layer are ordered with a few barycenter sweeps to reduce the edge crossings, and each
+ * node is finally aligned with its predecessors when there is room for it.
+ * <p>
+ * A layout can also be restricted to some groups with {@link #create(SceneGraph, BitSet, IntFunction, Map)}, after a
+ * small edit for example. Those groups are laid out again at the position they had in the previous layout, groups that
+ * didn't have one are placed below the rest of the graph, and the other nodes don't move, except to make room for a
+ * group that grew. The snapshot is taken from the nodes of the laid out groups, and the rest of the graph is only known
+ * through the bounds of its groups, so the cost of such a layout depends on the size of the groups laid out and on the
+ * number of groups, not on the number of nodes of the graph.
+ * <p>
+ * A layout is created from a snapshot of the graph, on the UI thread. It can then be computed on any thread, since it
+ * doesn't access the graph anymore, and the {@link Result} applied back on the UI thread.
+ */
+public final class LayeredLayout {
+
+    /**
+     * Horizontal space between two layers.
+     */
+    @AndroidCoordinate public static final double LAYER_GAP = 60;
+
+    /**
+     * Vertical space between two nodes of the same layer.
+     */
+    @AndroidCoordinate public static final double NODE_GAP = 30;
+
+    /**
+     * Vertical space between two groups.
+     */
+    @AndroidCoordinate public static final double GROUP_GAP = 80;
+
+    /**
+     * Number of down and up barycenter sweeps used to order the layers.
+     */
+    private static final int ORDERING_ITERATIONS = 4;
+
+    private final long modificationCount;
+
+    /**
+     * Whether only some groups are laid out. In that case, {@link #previousBounds} are used to place them.
+     */
+    private final boolean incremental;
+    /**
+     * Bounds of the groups in the previous layout.
+     */
+    @AndroidCoordinate @NotNull private final Map<Integer, Rectangle2D.Double> previousBounds;
+    /**
+     * The nodes of each group, used to move the groups below a group that grew. Null for a layout of the whole graph.
+     */
+    @Nullable private final IntFunction<int[]> groupNodes;
+    /**
+     * Top of the first group laid out without previous bounds, below the nodes that are not laid out.
+     */
+    @AndroidCoordinate private final double newGroupsTop;
+
+    /** The ids of the laid out nodes. The other arrays are indexed by the position of a node in this one. */
+    @NotNull private final int[] nodes;
+    @NotNull private final int[] groups;
+    @AndroidCoordinate @NotNull private final double[] widths;
+    @AndroidCoordinate @NotNull private final double[] heights;
+
+    /** Outgoing and incoming edges of each node, as indexes in {@link #nodes}, in compressed form. */
+    @NotNull private final int[] outStarts;
+    @NotNull private final int[] outTargets;
+    @NotNull private final int[] inStarts;
+    @NotNull private final int[] inSources;
+
+    private LayeredLayout(long modificationCount,
+                          boolean incremental,
+                          @NotNull Map<Integer, Rectangle2D.Double> previousBounds,
+                          @Nullable IntFunction<int[]> groupNodes,
+                          @AndroidCoordinate double newGroupsTop,
+                          @NotNull int[] nodes,
+                          @NotNull int[] groups,
+                          @NotNull double[] widths,
+                          @NotNull double[] heights,
+                          @NotNull int[] edgeSources,
+                          @NotNull int[] edgeTargets,
+                          int edgeCount) {
+        this.modificationCount = modificationCount;
+        this.incremental = incremental;
+        this.previousBounds = previousBounds;
+        this.groupNodes = groupNodes;
+        this.newGroupsTop = newGroupsTop;
+        this.nodes = nodes;
+        this.groups = groups;
+        this.widths = widths;
+        this.heights = heights;
+
+        int n = nodes.length;
+        outStarts = new int[n + 1];
+        inStarts = new int[n + 1];
+        for (int i = 0; i < edgeCount; i++) {
+            outStarts[edgeSources[i] + 1]++;
+            inStarts[edgeTargets[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            outStarts[i + 1] += outStarts[i];
+            inStarts[i + 1] += inStarts[i];
+        }
+        outTargets = new int[edgeCount];
+        inSources = new int[edgeCount];
+        int[] nextOut = Arrays.copyOf(outStarts, n);
+        int[] nextIn = Arrays.copyOf(inStarts, n);
+        for (int i = 0; i < edgeCount; i++) {
+            outTargets[nextOut[edgeSources[i]]++] = edgeTargets[i];
+            inSources[nextIn[edgeTargets[i]]++] = edgeSources[i];
+        }
+    }
+
+    /**
+     * Takes a snapshot of the nodes and edges of the graph to lay out all of it. Only edges between two different nodes of
+     * the same group are taken into account. This must be called from the thread modifying the graph.
+     */
+    @NotNull
+    public static LayeredLayout create(@NotNull SceneGraph graph) {
+        int nodeCount = graph.getNodeCount();
+        int[] indexes = new int[nodeCount];
+        int n = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            indexes[node] = graph.containsNode(node) ? n++ : -1;
+        }
+
+        int[] nodes = new int[n];
+        int[] nodeGroups = new int[n];
+        double[] widths = new double[n];
+        double[] heights = new double[n];
+        for (int node = 0; node < nodeCount; node++) {
+            int index = indexes[node];
+            if (index >= 0) {
+                nodes[index] = node;
+                nodeGroups[index] = graph.getNodeGroup(node);
+                widths[index] = graph.getNodeWidth(node);
+                heights[index] = graph.getNodeHeight(node);
+            }
+        }
+
+        int[] edgeSources = new int[graph.getEdgeCount()];
+        int[] edgeTargets = new int[graph.getEdgeCount()];
+        int edgeCount = 0;
+        for (int edge = 0, count = graph.getEdgeCount(); edge < count; edge++) {
+            if (!graph.containsEdge(edge)) {
+                continue;
+            }
+            int source = indexes[graph.getPortNode(graph.getEdgeSource(edge))];
+            int target = indexes[graph.getPortNode(graph.getEdgeTarget(edge))];
+            if (source >= 0 && target >= 0 && source != target && nodeGroups[source] == nodeGroups[target]) {
+                edgeSources[edgeCount] = source;
+                edgeTargets[edgeCount] = target;
+                edgeCount++;
+            }
+        }
+
+        return new LayeredLayout(graph.getModificationCount(), false, Collections.emptyMap(), null, 0,
+                nodes, nodeGroups, widths, heights, edgeSources, edgeTargets, edgeCount);
+    }
+
+    /**
+     * Takes a snapshot of the nodes and edges of the given groups to lay them out again. This must be called from the
+     * thread modifying the graph.
+     *
+     * @param groups         the groups to lay out.
+     * @param groupNodes     returns the ids of the nodes of a group, sorted by id, or null if the group no longer exists.
+     *                       It is also called when the result is applied, to move the groups below a group that grew.
+     * @param previousBounds bounds of the groups in the previous layout, as returned by {@link Result#getGroupBounds()}.
+     */
+    @NotNull
+    public static LayeredLayout create(@NotNull SceneGraph graph,
+                                       @NotNull BitSet groups,
+                                       @NotNull IntFunction<int[]> groupNodes,
+                                       @AndroidCoordinate @NotNull Map<Integer, ? extends Rectangle2D> previousBounds) {
+        int groupCount = groups.cardinality();
+        int[][] members = new int[groupCount][];
+        int n = 0;
+        for (int group = groups.nextSetBit(0), i = 0; group >= 0; group = groups.nextSetBit(group + 1), i++) {
+            int[] ids = groupNodes.apply(group);
+            members[i] = ids != null ? ids : new int[0];
+            n += members[i].length;
+        }
+
+        // The nodes of each group are contiguous and sorted, so the index of a node is found by a binary search in its group
+        int[] nodes = new int[n];
+        int[] nodeGroups = new int[n];
+        double[] widths = new double[n];
+        double[] heights = new double[n];
+        EdgeCollector edges = new EdgeCollector(graph, nodes);
+        n = 0;
+        for (int group = groups.nextSetBit(0), i = 0; group >= 0; group = groups.nextSetBit(group + 1), i++) {
+            int groupStart = n;
+            for (int node : members[i]) {
+                if (graph.containsNode(node)) {
+                    nodes[n] = node;
+                    nodeGroups[n] = group;
+                    widths[n] = graph.getNodeWidth(node);
+                    heights[n] = graph.getNodeHeight(node);
+                    n++;
+                }
+            }
+            Arrays.sort(nodes, groupStart, n);
+            edges.groupStart = groupStart;
+            edges.groupEnd = n;
+            for (int index = groupStart; index < n; index++) {
+                edges.source = index;
+                graph.forEachNodeEdge(nodes[index], edges);
+            }
+        }
+
+        // New groups go below the groups that are not laid out, which are only known by their bounds
+        @AndroidCoordinate double newGroupsTop = 0;
+        Map<Integer, Rectangle2D.Double> bounds = new HashMap<>();
+        for (Map.Entry<Integer, ? extends Rectangle2D> entry : previousBounds.entrySet()) {
+            int group = entry.getKey();
+            Rectangle2D value = entry.getValue();
+            if (!groups.get(group) && groupNodes.apply(group) == null) {
+                continue; // The group was removed since the previous layout
+            }
+            bounds.put(group, new Rectangle2D.Double(value.getX(), value.getY(), value.getWidth(), value.getHeight()));
+            if (!groups.get(group)) {
+                newGroupsTop = Math.max(newGroupsTop, value.getMaxY() + GROUP_GAP);
+            }
+        }
+        return new LayeredLayout(graph.getModificationCount(), true, bounds, groupNodes, newGroupsTop,
+                Arrays.copyOf(nodes, n), Arrays.copyOf(nodeGroups, n), Arrays.copyOf(widths, n), Arrays.copyOf(heights, n),
+                edges.sources, edges.targets, edges.count);
+    }
+
+    /**
+     * Computes the position of every node. This can be called from any thread.
+     *
+     * @param checkCanceled called regularly during the computation. It can throw an exception to cancel the layout.
+     */
+    @NotNull
+    public Result compute(@NotNull Runnable checkCanceled) {
+        int n = nodes.length;
+        double[] x = new double[n];
+        double[] y = new double[n];
+
+        // Gather the nodes of each group, keeping their order within the group
+        long[] sortedByGroup = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedByGroup[i] = ((long) groups[i] << 32) | i;
+        }
+        Arrays.sort(sortedByGroup);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) sortedByGroup[i];
+        }
+
+        // Groups are stacked in the order of their first node, which is the order they were translated in
+        int[] groupStarts = new int[n + 1];
+        int groupCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || groups[order[i]] != groups[order[i - 1]]) {
+                groupStarts[groupCount++] = i;
+            }
+        }
+        groupStarts[groupCount] = n;
+        long[] groupsByFirstNode = new long[groupCount];
+        for (int group = 0; group < groupCount; group++) {
+            groupsByFirstNode[group] = ((long) order[groupStarts[group]] << 32) | group;
+        }
+        Arrays.sort(groupsByFirstNode);
+
+        // Scratch arrays shared by all the groups, indexed like the nodes
+        int[] layers = new int[n];
+        int[] rank = new int[n];
+        int[] positions = new int[n];
+        Map<Integer, Rectangle2D.Double> groupBounds = new HashMap<>();
+
+        // Groups laid out before keep their position, the others are stacked below all the content. The content below
+        // a group that grew is moved down when the layout is applied, so the new groups are moved down as well.
+        @AndroidCoordinate double top = newGroupsTop;
+        @AndroidCoordinate double growth = 0;
+        @AndroidCoordinate double laidOutBottom = newGroupsTop;
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1) {
+                // The content that is not laid out moves down by at most the total growth
+                top = Math.max(newGroupsTop + growth, laidOutBottom);
+            }
+            for (long groupByFirstNode : groupsByFirstNode) {
+                checkCanceled.run();
+                int start = groupStarts[(int) groupByFirstNode];
+                int end = groupStarts[(int) groupByFirstNode + 1];
+                int group = groups[order[start]];
+                Rectangle2D.Double previous = incremental ? previousBounds.get(group) : null;
+                if ((pass == 0) != (previous != null)) {
+                    continue;
+                }
+                Rectangle2D.Double bounds = new Rectangle2D.Double();
+                if (previous != null) {
+                    layoutGroup(order, start, end, previous.x, previous.y, layers, rank, positions, x, y, bounds, checkCanceled);
+                    growth += Math.max(0, bounds.getMaxY() - previous.getMaxY());
+                    laidOutBottom = Math.max(laidOutBottom, bounds.getMaxY() + GROUP_GAP);
+                } else {
+                    layoutGroup(order, start, end, 0, top, layers, rank, positions, x, y, bounds, checkCanceled);
+                    top = bounds.getMaxY() + GROUP_GAP;
+                }
+                groupBounds.put(group, bounds);
+            }
+        }
+
+        return new Result(modificationCount, incremental, nodes.clone(), x, y, previousBounds, groupNodes, groupBounds);
+    }
+
+    /**
+     * Lays out the nodes {@code members[start]} to {@code members[end - 1]}, which are all the nodes of one group, from
+     * the given top left corner.
+     *
+     * @param bounds    set to the bounds of the laid out group.
+     * @param layers    set to the layer of each node of the group.
+     * @param rank      set to the topological rank of each node of the group.
+     * @param positions set to the position of each node of the group in its layer.
+     */
+    private void layoutGroup(@NotNull int[] members,
+                               int start,
+                               int end,
+                               @AndroidCoordinate double left,
+                               @AndroidCoordinate double top,
+                               @NotNull int[] layers,
+                               @NotNull int[] rank,
+                               @NotNull int[] positions,
+                               @NotNull double[] x,
+                               @NotNull double[] y,
+                               @NotNull Rectangle2D.Double bounds,
+                               @NotNull Runnable checkCanceled) {
+        int size = end - start;
+        assignLayers(members, start, end, layers, rank);
+
+        // Bucket the nodes by layer, in member order
+        int layerCount = 0;
+        for (int i = start; i < end; i++) {
+            layerCount = Math.max(layerCount, layers[members[i]] + 1);
+        }
+        int[] layerStarts = new int[layerCount + 1];
+        for (int i = start; i < end; i++) {
+            layerStarts[layers[members[i]] + 1]++;
+        }
+        for (int layer = 0; layer < layerCount; layer++) {
+            layerStarts[layer + 1] += layerStarts[layer];
+        }
+        int[] layerNodes = new int[size];
+        int[] next = Arrays.copyOf(layerStarts, layerCount);
+        for (int i = start; i < end; i++) {
+            int node = members[i];
+            layerNodes[next[layers[node]]++] = node;
+        }
+
+        for (int layer = 0; layer < layerCount; layer++) {
+            for (int i = layerStarts[layer]; i < layerStarts[layer + 1]; i++) {
+                positions[layerNodes[i]] = i - layerStarts[layer];
+            }
+        }
+
+        for (int iteration = 0; iteration < ORDERING_ITERATIONS; iteration++) {
+            for (int layer = 1; layer < layerCount; layer++) {
+                checkCanceled.run();
+                orderLayer(layerNodes, layerStarts[layer], layerStarts[layer + 1], positions, layers, inStarts, inSources);
+            }
+            for (int layer = layerCount - 2; layer >= 0; layer--) {
+                checkCanceled.run();
+                orderLayer(layerNodes, layerStarts[layer], layerStarts[layer + 1], positions, layers, outStarts, outTargets);
+            }
+        }
+
+        // Layers are placed from left to right, each node as close as possible to the center of its predecessors
+        @AndroidCoordinate double layerX = left;
+        @AndroidCoordinate double right = left;
+        @AndroidCoordinate double bottom = top;
+        for (int layer = 0; layer < layerCount; layer++) {
+            checkCanceled.run();
+            @AndroidCoordinate double layerWidth = 0;
+            @AndroidCoordinate double minY = top;
+            for (int i = layerStarts[layer]; i < layerStarts[layer + 1]; i++) {
+                int node = layerNodes[i];
+                @AndroidCoordinate double desiredY = minY;
+                int predecessors = 0;
+                double centers = 0;
+                for (int j = inStarts[node]; j < inStarts[node + 1]; j++) {
+                    int source = inSources[j];
+                    if (rank[source] < rank[node]) {
+                        centers += y[source] + heights[source] / 2;
+                        predecessors++;
+                    }
+                }
+                if (predecessors > 0) {
+                    desiredY = centers / predecessors - heights[node] / 2;
+                }
+                x[node] = layerX;
+                y[node] = Math.max(desiredY, minY);
+                minY = y[node] + heights[node] + NODE_GAP;
+                layerWidth = Math.max(layerWidth, widths[node]);
+                bottom = Math.max(bottom, y[node] + heights[node]);
+            }
+            right = layerX + layerWidth;
+            layerX += layerWidth + LAYER_GAP;
+        }
+        bounds.setRect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Puts the nodes of a group in layers so every edge, except the ones closing a cycle, goes from a layer to a later
+     * one. The layers are stored in {@code layers}, and the topological rank of the nodes in {@code rank}. Edges going to
+     * a node with a lower rank close a cycle and are ignored by the layout.
+     */
+    private void assignLayers(@NotNull int[] members, int start, int end, @NotNull int[] layers, @NotNull int[] rank) {
+        // Iterative depth first search. The reverse post order is a topological order of the graph without its back edges.
+        // Nodes not visited yet are in layer -1, and the edge cursors are indexed by the position in the stack.
+        for (int i = start; i < end; i++) {
+            layers[members[i]] = -1;
+        }
+        int[] stack = new int[end - start];
+        int[] edgeCursor = new int[end - start];
+        int nextRank = end - start;
+        for (int i = start; i < end; i++) {
+            int root = members[i];
+            if (layers[root] != -1) {
+                continue;
+            }
+            int stackSize = 0;
+            stack[stackSize] = root;
+            edgeCursor[stackSize++] = outStarts[root];
+            layers[root] = 0;
+            while (stackSize > 0) {
+                int node = stack[stackSize - 1];
+                if (edgeCursor[stackSize - 1] < outStarts[node + 1]) {
+                    int target = outTargets[edgeCursor[stackSize - 1]++];
+                    if (layers[target] == -1) {
+                        layers[target] = 0;
+                        stack[stackSize] = target;
+                        edgeCursor[stackSize++] = outStarts[target];
+                    }
+                } else {
+                    rank[node] = --nextRank;
+                    stackSize--;
+                }
+            }
+        }
+
+        // Longest path layering, visiting the nodes in topological order
+        int[] byRank = new int[end - start];
+        for (int i = start; i < end; i++) {
+            byRank[rank[members[i]]] = members[i];
+        }
+        for (int node : byRank) {
+            for (int j = outStarts[node]; j < outStarts[node + 1]; j++) {
+                int target = outTargets[j];
+                if (rank[target] > rank[node]) {
+                    layers[target] = Math.max(layers[target], layers[node] + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the nodes {@code layerNodes[start]} to {@code layerNodes[end - 1]} by the barycenter of the positions of their
+     * neighbours from other layers in the given adjacency. Nodes without such neighbours keep their position.
+     */
+    private static void orderLayer(@NotNull int[] layerNodes,
+                                   int start,
+                                   int end,
+                                   @NotNull int[] positions,
+                                   @NotNull int[] layers,
+                                   @NotNull int[] neighbourStarts,
+                                   @NotNull int[] neighbours) {
+        int size = end - start;
+        if (size < 2) {
+            return;
+        }
+        long[] keys = new long[size];
+        for (int i = start; i < end; i++) {
+            int node = layerNodes[i];
+            int position = positions[node];
+            double sum = 0;
+            int count = 0;
+            for (int j = neighbourStarts[node]; j < neighbourStarts[node + 1]; j++) {
+                int neighbour = neighbours[j];
+                if (layers[neighbour] != layers[node]) {
+                    sum += positions[neighbour];
+                    count++;
+                }
+            }
+            double barycenter = count > 0 ? sum / count : position;
+            // Fixed point barycenter in the high bits, and the current position to break ties and find the node back
+            keys[i - start] = (Math.round(barycenter * 1024) << 32) | position;
+        }
+        Arrays.sort(keys);
+
+        int[] sorted = new int[size];
+        for (int i = start; i < end; i++) {
+            sorted[positions[layerNodes[i]]] = layerNodes[i];
+        }
+        for (int i = 0; i < size; i++) {
+            int node = sorted[(int) keys[i]];
+            layerNodes[start + i] = node;
+            positions[node] = i;
+        }
+    }
+
+    /**
+     * The positions computed by a {@link LayeredLayout}.
+     */
+    public static final class Result {
+        private final long modificationCount;
+        private final boolean incremental;
+        @NotNull private final int[] nodes;
+        @AndroidCoordinate @NotNull private final double[] x;
+        @AndroidCoordinate @NotNull private final double[] y;
+        @AndroidCoordinate @NotNull private final Map<Integer, Rectangle2D.Double> previousBounds;
+        @Nullable private final IntFunction<int[]> groupNodes;
+        @AndroidCoordinate @NotNull private final Map<Integer, Rectangle2D.Double> laidOutBounds;
+        @AndroidCoordinate @NotNull private final Map<Integer, Rectangle2D.Double> groupBounds;
+
+        private Result(long modificationCount,
+                       boolean incremental,
+                       @NotNull int[] nodes,
+                       @NotNull double[] x,
+                       @NotNull double[] y,
+                       @NotNull Map<Integer, Rectangle2D.Double> previousBounds,
+                       @Nullable IntFunction<int[]> groupNodes,
+                       @NotNull Map<Integer, Rectangle2D.Double> laidOutBounds) {
+            this.modificationCount = modificationCount;
+            this.incremental = incremental;
+            this.nodes = nodes;
+            this.x = x;
+            this.y = y;
+            this.previousBounds = previousBounds;
+            this.groupNodes = groupNodes;
+            this.laidOutBounds = laidOutBounds;
+            groupBounds = new HashMap<>(previousBounds);
+            groupBounds.putAll(laidOutBounds);
+        }
+
+        /**
+         * Moves the nodes of the graph to their computed positions, in a single change. Nothing is done if the graph was
+         * modified since the layout snapshot was taken, since the positions could be out of date. Returns true if the
+         * layout was applied. This must be called from the thread modifying the graph.
+         * <p>
+         * For an incremental layout, groups that are below a group that grew are moved down by the same amount, so they
+         * don't overlap. Their layout is not computed again.
+         */
+        public boolean apply(@NotNull SceneGraph graph) {
+            if (graph.getModificationCount() != modificationCount) {
+                return false;
+            }
+            move(graph, nodes, x, y, null);
+            return true;
+        }
+
+        /**
+         * Moves the nodes of the graph to their computed positions like {@link #apply(SceneGraph)}, except the pinned nodes,
+         * which keep their current position, and the nodes removed since the layout snapshot was taken. This is used when
+         * the graph was changed by nodes being moved by the user, whose positions must be kept. This must be called from
+         * the thread modifying the graph.
+         */
+        public void applyExcept(@NotNull SceneGraph graph, @NotNull BitSet pinnedNodes) {
+            int[] keptNodes = new int[nodes.length];
+            double[] keptX = new double[nodes.length];
+            double[] keptY = new double[nodes.length];
+            int keptCount = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                int node = nodes[i];
+                if (graph.containsNode(node) && !pinnedNodes.get(node)) {
+                    keptNodes[keptCount] = node;
+                    keptX[keptCount] = x[i];
+                    keptY[keptCount] = y[i];
+                    keptCount++;
+                }
+            }
+            move(graph, Arrays.copyOf(keptNodes, keptCount), keptX, keptY, pinnedNodes);
+        }
+
+        private void move(@NotNull SceneGraph graph,
+                          @NotNull int[] nodes,
+                          @NotNull double[] x,
+                          @NotNull double[] y,
+                          @Nullable BitSet pinnedNodes) {
+            if (!incremental || groupNodes == null) {
+                graph.moveNodes(nodes, x, y);
+                return;
+            }
+
+            // Bottom and growth of the groups that are taller than before
+            List<double[]> grownGroups = new ArrayList<>();
+            for (Map.Entry<Integer, Rectangle2D.Double> entry : laidOutBounds.entrySet()) {
+                Rectangle2D.Double previous = previousBounds.get(entry.getKey());
+                if (previous != null && entry.getValue().getMaxY() > previous.getMaxY()) {
+                    grownGroups.add(new double[] { previous.getMaxY(), entry.getValue().getMaxY() - previous.getMaxY() });
+                }
+            }
+            if (grownGroups.isEmpty()) {
+                graph.moveNodes(nodes, x, y);
+                return;
+            }
+
+            // Only the nodes of the groups below a group that grew are visited
+            List<int[]> shiftedNodes = new ArrayList<>();
+            List<Double> shifts = new ArrayList<>();
+            int movedCount = nodes.length;
+            for (Map.Entry<Integer, Rectangle2D.Double> entry : previousBounds.entrySet()) {
+                int group = entry.getKey();
+                if (laidOutBounds.containsKey(group)) {
+                    continue;
+                }
+                Rectangle2D.Double bounds = entry.getValue();
+                double shift = 0;
+                for (double[] grown : grownGroups) {
+                    if (grown[0] <= bounds.getMinY()) {
+                        shift += grown[1];
+                    }
+                }
+                int[] members = shift > 0 ? groupNodes.apply(group) : null;
+                if (members != null) {
+                    groupBounds.put(group, new Rectangle2D.Double(bounds.x, bounds.y + shift, bounds.width, bounds.height));
+                    shiftedNodes.add(members);
+                    shifts.add(shift);
+                    movedCount += members.length;
+                }
+            }
+
+            int[] movedNodes = Arrays.copyOf(nodes, movedCount);
+            double[] movedX = Arrays.copyOf(x, movedCount);
+            double[] movedY = Arrays.copyOf(y, movedCount);
+            int moved = nodes.length;
+            for (int i = 0; i < shiftedNodes.size(); i++) {
+                double shift = shifts.get(i);
+                for (int node : shiftedNodes.get(i)) {
+                    if (graph.containsNode(node) && (pinnedNodes == null || !pinnedNodes.get(node))) {
+                        movedNodes[moved] = node;
+                        movedX[moved] = graph.getNodeX(node);
+                        movedY[moved] = graph.getNodeY(node) + shift;
+                        moved++;
+                    }
+                }
+            }
+            graph.moveNodes(Arrays.copyOf(movedNodes, moved), movedX, movedY);
+        }
+
+        /**
+         * Returns the bounds of every group laid out so far, including the groups moved by {@link #apply(SceneGraph)}. This
+         * is used as the previous bounds of the next incremental layout.
+         */
+        @AndroidCoordinate
+        @NotNull
+        public Map<Integer, Rectangle2D.Double> getGroupBounds() {
+            return groupBounds;
+        }
+    }
+
+    /**
+     * Collects the edges going from the node at index {@link #source} to the other nodes of its group, which are
+     * {@code nodes[groupStart]} to {@code nodes[groupEnd - 1]}.
+     */
+    private static final class EdgeCollector implements IntConsumer {
+        @NotNull private final SceneGraph graph;
+        @NotNull private final int[] nodes;
+        int groupStart;
+        int groupEnd;
+        int source;
+
+        @NotNull int[] sources = new int[16];
+        @NotNull int[] targets = new int[16];
+        int count;
+
+        EdgeCollector(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+            this.graph = graph;
+            this.nodes = nodes;
+        }
+
+        @Override
+        public void accept(int edge) {
+            // Each edge is listed by both its nodes, only keep it from its source
+            int sourceNode = graph.getPortNode(graph.getEdgeSource(edge));
+            int targetNode = graph.getPortNode(graph.getEdgeTarget(edge));
+            if (sourceNode != nodes[source] || targetNode == sourceNode) {
+                return;
+            }
+            int target = Arrays.binarySearch(nodes, groupStart, groupEnd, targetNode);
+            if (target < 0) {
+                return; // In another group
+            }
+            if (count == sources.length) {
+                sources = Arrays.copyOf(sources, count * 2);
+                targets = Arrays.copyOf(targets, count * 2);
+            }
+            sources[count] = source;
+            targets[count] = target;
+            count++;
+        }
+    }
+}
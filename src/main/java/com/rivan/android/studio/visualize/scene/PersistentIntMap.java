@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable map from int keys, like node ids, to values, implemented as a hash array mapped trie.
+ * <p>
+ * Each level of the trie is indexed by 5 bits of the key, and only stores the children that exist, found through a
+ * bitmap. {@link #put(int, Object)} returns a new map that shares everything with the previous one except the path from
+ * the root to the changed entry, at most 7 small arrays. Keeping many versions of a large map, like the states of the
+ * nodes of a graph after each change, therefore costs memory proportional to the changes and not to the map size.
+ */
+public final class PersistentIntMap<V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * Estimated size in bytes of a trie node with a few children, and of an entry, used by {@link #estimatePutBytes()}.
+     */
+    private static final int NODE_BYTES = 64;
+    private static final int ENTRY_BYTES = 24;
+
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(null, 0);
+
+    @Nullable private final Node root;
+    private final int size;
+
+    private PersistentIntMap(@Nullable Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V get(int key) {
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            int bit = 1 << ((key >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = node.children[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (child instanceof Entry) {
+                Entry entry = (Entry) child;
+                return entry.key == key ? (V) entry.value : null;
+            }
+            node = (Node) child;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a map with the given value for the given key, or this map if it already has that exact value.
+     */
+    @NotNull
+    public PersistentIntMap<V> put(int key, @NotNull V value) {
+        if (root == null) {
+            return new PersistentIntMap<>(Node.single(key, new Entry(key, value)), 1);
+        }
+        boolean added = get(key) == null;
+        Node newRoot = put(root, 0, key, value);
+        return newRoot == root ? this : new PersistentIntMap<>(newRoot, added ? size + 1 : size);
+    }
+
+    /**
+     * Returns an estimate of the bytes allocated by a {@link #put(int, Object)} in this map, for the copied path and the
+     * new entry.
+     */
+    public long estimatePutBytes() {
+        // Depth of the trie with uniformly distributed keys
+        int depth = 1;
+        for (int capacity = 1 << BITS; capacity < size && depth < 32 / BITS + 1; capacity <<= BITS) {
+            depth++;
+        }
+        return (long) depth * NODE_BYTES + ENTRY_BYTES;
+    }
+
+    @NotNull
+    private static Node put(@NotNull Node node, int shift, int key, @NotNull Object value) {
+        int bit = 1 << ((key >>> shift) & MASK);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Object[] children = new Object[node.children.length + 1];
+            System.arraycopy(node.children, 0, children, 0, index);
+            children[index] = new Entry(key, value);
+            System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+            return new Node(node.bitmap | bit, children);
+        }
+
+        Object child = node.children[index];
+        Object newChild;
+        if (child instanceof Node) {
+            newChild = put((Node) child, shift + BITS, key, value);
+        } else {
+            Entry entry = (Entry) child;
+            if (entry.key == key) {
+                if (entry.value == value) {
+                    return node;
+                }
+                newChild = new Entry(key, value);
+            } else {
+                newChild = merge(entry, new Entry(key, value), shift + BITS);
+            }
+        }
+        if (newChild == child) {
+            return node;
+        }
+        Object[] children = node.children.clone();
+        children[index] = newChild;
+        return new Node(node.bitmap, children);
+    }
+
+    /**
+     * Creates the node holding two entries whose keys are equal up to the given shift.
+     */
+    @NotNull
+    private static Node merge(@NotNull Entry first, @NotNull Entry second, int shift) {
+        int firstIndex = (first.key >>> shift) & MASK;
+        int secondIndex = (second.key >>> shift) & MASK;
+        if (firstIndex == secondIndex) {
+            return Node.single(first.key >>> shift, merge(first, second, shift + BITS));
+        }
+        Object[] children = firstIndex < secondIndex ? new Object[] { first, second } : new Object[] { second, first };
+        return new Node((1 << firstIndex) | (1 << secondIndex), children);
+    }
+
+    private static final class Node {
+        /** Bit {@code i} is set if the child for the index {@code i} at this level exists */
+        final int bitmap;
+        /** The existing children, {@link Node}s or {@link Entry}s, in the order of their index */
+        @NotNull final Object[] children;
+
+        Node(int bitmap, @NotNull Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        /**
+         * Creates a node with a single child, at the index given by the low bits of {@code key}.
+         */
+        @NotNull
+        static Node single(int key, @NotNull Object child) {
+            return new Node(1 << (key & MASK), new Object[] { child });
+        }
+    }
+
+    private static final class Entry {
+        final int key;
+        @NotNull final Object value;
+
+        Entry(int key, @NotNull Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,914 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.geom.Rectangle2D;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * The nodes, ports and edges displayed in the visual editor. All the elements are addressed by their int id, which is
+ * the order in which they were added to the graph. Coordinates are in {@link AndroidCoordinate} space.
+ * <p>
+ * The ids of removed elements are never reused, so the element counts are upper bounds of the ids and not the number of
+ * elements in the graph. Use {@link #containsNode(int)}, {@link #containsPort(int)} and {@link #containsEdge(int)} when
+ * iterating over the ids.
+ * <p>
+ * A port always belongs to a node and is positioned relative to the node's origin, so moving a node also moves its ports.
+ * An edge connects two ports.
+ * <p>
+ * Nodes can be gathered in groups, like the nodes translated from the same method. Every change of the graph increments
+ * its modification count, and also the modification count of the groups of the nodes involved in the change. Caches can
+ * use them to know whether the whole graph, or a single group, changed since they were computed.
+ * <p>
+ * The elements are not stored as objects but in one primitive array per property, indexed by id. Labels are interned in
+ * a string table. The ports and edges of each node are found through compressed adjacency arrays, and the elements
+ * added since the arrays were built are appended to per-node overflow lists, so adding or removing an element never
+ * costs more than the element itself. The overflow lists are merged into the arrays, by the addition that makes them as
+ * large as the graph was at the last merge, which keeps the merges amortized constant per added element. Reading the
+ * graph never modifies it, so a graph that is no longer modified can be read from any thread.
+ * <p>
+ * Changes to the graph are reported to the registered {@link SceneGraphListener}s. The graph must only be modified from
+ * the UI thread once it is displayed.
+ */
+public class SceneGraph {
+
+    /**
+     * Width and height of a port.
+     */
+    @AndroidCoordinate public static final double PORT_SIZE = 8;
+
+    /**
+     * Group of the nodes that were not added to a group.
+     */
+    public static final int NO_GROUP = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Nodes
+    private int nodeCount;
+    @AndroidCoordinate private double[] nodeX = new double[INITIAL_CAPACITY];
+    @AndroidCoordinate private double[] nodeY = new double[INITIAL_CAPACITY];
+    @AndroidCoordinate private double[] nodeWidth = new double[INITIAL_CAPACITY];
+    @AndroidCoordinate private double[] nodeHeight = new double[INITIAL_CAPACITY];
+    /** Index of the label of each node in {@link #strings} */
+    private int[] nodeLabels = new int[INITIAL_CAPACITY];
+    private int[] nodeGroups = new int[INITIAL_CAPACITY];
+    /** First and last ports of each node added since the last merge of the adjacency arrays, or -1 */
+    private int[] nodePortHeads = new int[INITIAL_CAPACITY];
+    private int[] nodePortTails = new int[INITIAL_CAPACITY];
+    /** First and last edge ends of each node added since the last merge of the adjacency arrays, or -1 */
+    private int[] nodeEdgeHeads = new int[INITIAL_CAPACITY];
+    private int[] nodeEdgeTails = new int[INITIAL_CAPACITY];
+    private final BitSet aliveNodes = new BitSet();
+
+    // Ports
+    private int portCount;
+    private int[] portNodes = new int[INITIAL_CAPACITY];
+    @AndroidCoordinate private double[] portOffsetX = new double[INITIAL_CAPACITY];
+    @AndroidCoordinate private double[] portOffsetY = new double[INITIAL_CAPACITY];
+    /** Next port of the same node in the overflow list, or -1 */
+    private int[] portNext = new int[INITIAL_CAPACITY];
+    private final BitSet alivePorts = new BitSet();
+
+    // Edges
+    private int edgeCount;
+    private int[] edgeSources = new int[INITIAL_CAPACITY];
+    private int[] edgeTargets = new int[INITIAL_CAPACITY];
+    /**
+     * Next edge end of the same node in the overflow list, or -1. The ends of edge {@code e} are {@code 2 * e} on the
+     * side of its source node and {@code 2 * e + 1} on the side of its target node.
+     */
+    private int[] edgeEndNext = new int[2 * INITIAL_CAPACITY];
+    private final BitSet aliveEdges = new BitSet();
+
+    /**
+     * Table of the distinct labels. Translated code repeats a lot of labels, so they are only stored once.
+     */
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    /**
+     * Compressed adjacency of the nodes, as of the last merge. The ports of node {@code n} are
+     * {@code nodePortIds[nodePortStarts[n]]} to {@code nodePortIds[nodePortStarts[n + 1] - 1]}, and the same goes for the
+     * edges. They only cover the first {@link #mergedNodeCount} nodes. Elements removed since the merge are skipped when
+     * iterating.
+     */
+    private int[] nodePortStarts = new int[1];
+    private int[] nodePortIds = new int[0];
+    private int[] nodeEdgeStarts = new int[1];
+    private int[] nodeEdgeIds = new int[0];
+    private int mergedNodeCount;
+    /** Number of node, port and edge ids allocated at the last merge */
+    private int mergedElementCount;
+    /** Number of ports and edge ends in the overflow lists */
+    private int overflowCount;
+
+    private long modificationCount;
+    private long[] groupModificationCounts = new long[8];
+    private int groupCount;
+
+    private final List<SceneGraphListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(@NotNull SceneGraphListener listener) {
+        listeners.remove(listener); // ensure single registration
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull SceneGraphListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Creates a new empty group and returns its id. Like the other ids, group ids are never reused.
+     */
+    public int addGroup() {
+        if (groupCount == groupModificationCounts.length) {
+            groupModificationCounts = Arrays.copyOf(groupModificationCounts, groupCount * 2);
+        }
+        // Start from the graph count so a tracker switching from the graph count to the group count never goes backward
+        groupModificationCounts[groupCount] = modificationCount;
+        return groupCount++;
+    }
+
+    /**
+     * Adds a new node that is not part of any group and returns its id.
+     */
+    public int addNode(@NotNull String label,
+                       @AndroidCoordinate double x,
+                       @AndroidCoordinate double y,
+                       @AndroidCoordinate double width,
+                       @AndroidCoordinate double height) {
+        return addNode(label, x, y, width, height, NO_GROUP);
+    }
+
+    /**
+     * Adds a new node to the given group and returns its id.
+     *
+     * @param group id of the group returned by {@link #addGroup()}, or {@link #NO_GROUP}.
+     */
+    public int addNode(@NotNull String label,
+                       @AndroidCoordinate double x,
+                       @AndroidCoordinate double y,
+                       @AndroidCoordinate double width,
+                       @AndroidCoordinate double height,
+                       int group) {
+        if (group != NO_GROUP && (group < 0 || group >= groupCount)) {
+            throw new IndexOutOfBoundsException("Invalid group id " + group);
+        }
+        if (nodeCount == nodeX.length) {
+            int capacity = nodeCount * 2;
+            nodeX = Arrays.copyOf(nodeX, capacity);
+            nodeY = Arrays.copyOf(nodeY, capacity);
+            nodeWidth = Arrays.copyOf(nodeWidth, capacity);
+            nodeHeight = Arrays.copyOf(nodeHeight, capacity);
+            nodeLabels = Arrays.copyOf(nodeLabels, capacity);
+            nodeGroups = Arrays.copyOf(nodeGroups, capacity);
+            nodePortHeads = Arrays.copyOf(nodePortHeads, capacity);
+            nodePortTails = Arrays.copyOf(nodePortTails, capacity);
+            nodeEdgeHeads = Arrays.copyOf(nodeEdgeHeads, capacity);
+            nodeEdgeTails = Arrays.copyOf(nodeEdgeTails, capacity);
+        }
+        int node = nodeCount++;
+        nodeX[node] = x;
+        nodeY[node] = y;
+        nodeWidth[node] = width;
+        nodeHeight[node] = height;
+        nodeLabels[node] = internString(label);
+        nodeGroups[node] = group;
+        nodePortHeads[node] = -1;
+        nodePortTails[node] = -1;
+        nodeEdgeHeads[node] = -1;
+        nodeEdgeTails[node] = -1;
+        aliveNodes.set(node);
+        nodeModified(node);
+        for (SceneGraphListener listener : listeners) {
+            listener.nodeAdded(this, node);
+        }
+        return node;
+    }
+
+    /**
+     * Adds a new port to the given node and returns its id.
+     *
+     * @param node    id of the node owning the port.
+     * @param offsetX horizontal position of the port center, relative to the node origin.
+     * @param offsetY vertical position of the port center, relative to the node origin.
+     */
+    public int addPort(int node, @AndroidCoordinate double offsetX, @AndroidCoordinate double offsetY) {
+        checkNode(node);
+        if (portCount == portNodes.length) {
+            int capacity = portCount * 2;
+            portNodes = Arrays.copyOf(portNodes, capacity);
+            portOffsetX = Arrays.copyOf(portOffsetX, capacity);
+            portOffsetY = Arrays.copyOf(portOffsetY, capacity);
+            portNext = Arrays.copyOf(portNext, capacity);
+        }
+        int port = portCount++;
+        portNodes[port] = node;
+        portOffsetX[port] = offsetX;
+        portOffsetY[port] = offsetY;
+        appendPort(node, port);
+        alivePorts.set(port);
+        mergeAdjacencyIfNeeded();
+        nodeModified(node);
+        for (SceneGraphListener listener : listeners) {
+            listener.portAdded(this, port);
+        }
+        return port;
+    }
+
+    /**
+     * Adds a new edge going from the {@code source} port to the {@code target} port and returns its id.
+     */
+    public int addEdge(int source, int target) {
+        checkPort(source);
+        checkPort(target);
+        if (edgeCount == edgeSources.length) {
+            int capacity = edgeCount * 2;
+            edgeSources = Arrays.copyOf(edgeSources, capacity);
+            edgeTargets = Arrays.copyOf(edgeTargets, capacity);
+            edgeEndNext = Arrays.copyOf(edgeEndNext, 2 * capacity);
+        }
+        int edge = edgeCount++;
+        edgeSources[edge] = source;
+        edgeTargets[edge] = target;
+        int sourceNode = portNodes[source];
+        int targetNode = portNodes[target];
+        appendEdgeEnd(sourceNode, 2 * edge);
+        if (targetNode != sourceNode) {
+            appendEdgeEnd(targetNode, 2 * edge + 1);
+        }
+        aliveEdges.set(edge);
+        mergeAdjacencyIfNeeded();
+        edgeModified(edge);
+        for (SceneGraphListener listener : listeners) {
+            listener.edgeAdded(this, edge);
+        }
+        return edge;
+    }
+
+    /**
+     * Returns a new graph with copies of the given nodes, their ports, and the edges between them. The nodes are not
+     * added to any group, and the copies get contiguous ids in the order of {@code nodes}.
+     * <p>
+     * The copies of the ports are found through a sorted array of (port, copy) pairs, so the memory and time used only
+     * depend on the number of copied elements, not on the size of this graph.
+     */
+    @NotNull
+    public SceneGraph copySubgraph(@NotNull int[] nodes) {
+        SceneGraph copy = new SceneGraph();
+        PortCopier portCopier = new PortCopier(copy, nodes.length);
+        for (int node : nodes) {
+            if (!containsNode(node)) {
+                continue;
+            }
+            portCopier.nodeCopy = copy.addNode(strings.get(nodeLabels[node]), nodeX[node], nodeY[node], nodeWidth[node], nodeHeight[node]);
+            forEachNodePort(node, portCopier);
+        }
+        portCopier.sort();
+        for (int node : nodes) {
+            if (!containsNode(node)) {
+                continue;
+            }
+            forEachNodeEdge(node, edge -> {
+                // Each edge is listed by the nodes of both its ports, only copy it from the node of its source
+                if (portNodes[edgeSources[edge]] != node) {
+                    return;
+                }
+                int sourceCopy = portCopier.findCopy(edgeSources[edge]);
+                int targetCopy = portCopier.findCopy(edgeTargets[edge]);
+                if (sourceCopy >= 0 && targetCopy >= 0) {
+                    copy.addEdge(sourceCopy, targetCopy);
+                }
+            });
+        }
+        return copy;
+    }
+
+    /**
+     * Adds copies of all the elements of the given graph to this graph, moved by the given offset. The nodes are not added
+     * to any group.
+     *
+     * @return the ids of the copies of the nodes, in the order of the ids of the copied nodes.
+     */
+    @NotNull
+    public int[] addGraph(@NotNull SceneGraph other, @AndroidCoordinate double dx, @AndroidCoordinate double dy) {
+        int[] nodeCopies = new int[other.nodeCount];
+        int[] added = new int[other.aliveNodes.cardinality()];
+        int addedCount = 0;
+        for (int node = other.aliveNodes.nextSetBit(0); node >= 0; node = other.aliveNodes.nextSetBit(node + 1)) {
+            nodeCopies[node] = addNode(other.strings.get(other.nodeLabels[node]), other.nodeX[node] + dx, other.nodeY[node] + dy,
+                                       other.nodeWidth[node], other.nodeHeight[node]);
+            added[addedCount++] = nodeCopies[node];
+        }
+        int[] portCopies = new int[other.portCount];
+        for (int port = other.alivePorts.nextSetBit(0); port >= 0; port = other.alivePorts.nextSetBit(port + 1)) {
+            portCopies[port] = addPort(nodeCopies[other.portNodes[port]], other.portOffsetX[port], other.portOffsetY[port]);
+        }
+        for (int edge = other.aliveEdges.nextSetBit(0); edge >= 0; edge = other.aliveEdges.nextSetBit(edge + 1)) {
+            addEdge(portCopies[other.edgeSources[edge]], portCopies[other.edgeTargets[edge]]);
+        }
+        return added;
+    }
+
+    /**
+     * Moves the origin of the given node, and so all its ports, to the given position.
+     */
+    public void moveNode(int node, @AndroidCoordinate double x, @AndroidCoordinate double y) {
+        checkNodeId(node);
+        if (nodeX[node] == x && nodeY[node] == y) {
+            return;
+        }
+        nodeX[node] = x;
+        nodeY[node] = y;
+        nodeModified(node);
+        for (SceneGraphListener listener : listeners) {
+            listener.nodeMoved(this, node);
+        }
+    }
+
+    /**
+     * Moves several nodes at once. {@code nodes[i]} is moved to {@code (x[i], y[i])}. The listeners are notified once,
+     * with the nodes that actually changed position.
+     */
+    public void moveNodes(@NotNull int[] nodes, @AndroidCoordinate @NotNull double[] x, @AndroidCoordinate @NotNull double[] y) {
+        int[] moved = new int[nodes.length];
+        int movedCount = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            int node = nodes[i];
+            checkNodeId(node);
+            if (nodeX[node] != x[i] || nodeY[node] != y[i]) {
+                nodeX[node] = x[i];
+                nodeY[node] = y[i];
+                nodeModified(node);
+                moved[movedCount++] = node;
+            }
+        }
+        if (movedCount == 0) {
+            return;
+        }
+        moved = Arrays.copyOf(moved, movedCount);
+        for (SceneGraphListener listener : listeners) {
+            listener.nodesMoved(this, moved);
+        }
+    }
+
+    /**
+     * Removes the given node along with its ports and all the edges connected to them.
+     */
+    public void removeNode(int node) {
+        checkNodeId(node);
+        if (!removeNodeElements(node)) {
+            return;
+        }
+        for (SceneGraphListener listener : listeners) {
+            listener.nodeRemoved(this, node);
+        }
+    }
+
+    /**
+     * Removes several nodes at once, like {@link #removeNode(int)}. The listeners are notified of the removed ports and
+     * edges as they are removed, and then once of all the nodes that were actually removed.
+     */
+    public void removeNodes(@NotNull int[] nodes) {
+        for (int node : nodes) {
+            checkNodeId(node);
+        }
+        int[] removed = new int[nodes.length];
+        int removedCount = 0;
+        for (int node : nodes) {
+            if (removeNodeElements(node)) {
+                removed[removedCount++] = node;
+            }
+        }
+        if (removedCount == 0) {
+            return;
+        }
+        removed = Arrays.copyOf(removed, removedCount);
+        for (SceneGraphListener listener : listeners) {
+            listener.nodesRemoved(this, removed);
+        }
+    }
+
+    /**
+     * Removes the given node, its ports and its edges, and notifies the removal of the ports and edges. Returns false if
+     * the node was already removed.
+     */
+    private boolean removeNodeElements(int node) {
+        if (!aliveNodes.get(node)) {
+            return false;
+        }
+        forEachNodeEdge(node, this::removeEdge);
+        forEachNodePort(node, port -> {
+            alivePorts.clear(port);
+            for (SceneGraphListener listener : listeners) {
+                listener.portRemoved(this, port);
+            }
+        });
+        aliveNodes.clear(node);
+        nodeModified(node);
+        return true;
+    }
+
+    /**
+     * Removes the given edge.
+     */
+    public void removeEdge(int edge) {
+        checkEdgeId(edge);
+        if (!aliveEdges.get(edge)) {
+            return;
+        }
+        aliveEdges.clear(edge);
+        edgeModified(edge);
+        for (SceneGraphListener listener : listeners) {
+            listener.edgeRemoved(this, edge);
+        }
+    }
+
+    /**
+     * Removes all the nodes, ports and edges from the graph.
+     */
+    public void clear() {
+        nodeCount = 0;
+        portCount = 0;
+        edgeCount = 0;
+        aliveNodes.clear();
+        alivePorts.clear();
+        aliveEdges.clear();
+        strings.clear();
+        stringIds.clear();
+        nodePortStarts = new int[1];
+        nodePortIds = new int[0];
+        nodeEdgeStarts = new int[1];
+        nodeEdgeIds = new int[0];
+        mergedNodeCount = 0;
+        mergedElementCount = 0;
+        overflowCount = 0;
+        modificationCount++;
+        for (int i = 0; i < groupCount; i++) {
+            groupModificationCounts[i]++;
+        }
+        for (SceneGraphListener listener : listeners) {
+            listener.graphCleared(this);
+        }
+    }
+
+    /**
+     * Returns a number incremented every time the graph changes.
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Returns a number incremented every time a node of the given group, or one of its ports or edges, changes. It is
+     * never lower than the modification count of the graph at the time the group was created.
+     */
+    public long getGroupModificationCount(int group) {
+        if (group < 0 || group >= groupCount) {
+            throw new IndexOutOfBoundsException("Invalid group id " + group);
+        }
+        return groupModificationCounts[group];
+    }
+
+    /**
+     * Returns the number of group ids allocated so far.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Returns the group of the given node, or {@link #NO_GROUP}.
+     */
+    public int getNodeGroup(int node) {
+        checkNodeId(node);
+        return nodeGroups[node];
+    }
+
+    public boolean containsNode(int node) {
+        return node >= 0 && node < nodeCount && aliveNodes.get(node);
+    }
+
+    public boolean containsPort(int port) {
+        return port >= 0 && port < portCount && alivePorts.get(port);
+    }
+
+    public boolean containsEdge(int edge) {
+        return edge >= 0 && edge < edgeCount && aliveEdges.get(edge);
+    }
+
+    /**
+     * Sets the bits of the given set to the ids of the nodes of the graph. Doesn't allocate once the set is large enough.
+     */
+    public void copyNodeIds(@NotNull BitSet nodes) {
+        nodes.clear();
+        nodes.or(aliveNodes);
+    }
+
+    /**
+     * Clears the bits of the given set that are not the id of a node of the graph.
+     */
+    public void retainNodeIds(@NotNull BitSet nodes) {
+        nodes.and(aliveNodes);
+    }
+
+    /**
+     * Returns the number of node ids allocated so far, including the ones of removed nodes.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of port ids allocated so far, including the ones of removed ports.
+     */
+    public int getPortCount() {
+        return portCount;
+    }
+
+    /**
+     * Returns the number of edge ids allocated so far, including the ones of removed edges.
+     */
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    @NotNull
+    public String getLabel(int node) {
+        checkNodeId(node);
+        return strings.get(nodeLabels[node]);
+    }
+
+    @AndroidCoordinate
+    public double getNodeX(int node) {
+        checkNodeId(node);
+        return nodeX[node];
+    }
+
+    @AndroidCoordinate
+    public double getNodeY(int node) {
+        checkNodeId(node);
+        return nodeY[node];
+    }
+
+    @AndroidCoordinate
+    public double getNodeWidth(int node) {
+        checkNodeId(node);
+        return nodeWidth[node];
+    }
+
+    @AndroidCoordinate
+    public double getNodeHeight(int node) {
+        checkNodeId(node);
+        return nodeHeight[node];
+    }
+
+    /**
+     * Sets {@code out} to the bounds of the given node and returns it.
+     */
+    @NotNull
+    @AndroidCoordinate
+    public Rectangle2D.Double getNodeBounds(int node, @NotNull Rectangle2D.Double out) {
+        checkNodeId(node);
+        out.setRect(nodeX[node], nodeY[node], nodeWidth[node], nodeHeight[node]);
+        return out;
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every port of the given node. This only reads the graph, so it can be called
+     * from any thread while the graph is not modified. The consumer must not add elements to the graph.
+     */
+    public void forEachNodePort(int node, @NotNull IntConsumer consumer) {
+        checkNodeId(node);
+        if (node < mergedNodeCount) {
+            int[] ids = nodePortIds;
+            for (int i = nodePortStarts[node], end = nodePortStarts[node + 1]; i < end; i++) {
+                consumer.accept(ids[i]);
+            }
+        }
+        for (int port = nodePortHeads[node]; port >= 0; port = portNext[port]) {
+            consumer.accept(port);
+        }
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every edge connected to a port of the given node. This only reads the graph,
+     * so it can be called from any thread while the graph is not modified. The consumer must not add elements to the
+     * graph.
+     */
+    public void forEachNodeEdge(int node, @NotNull IntConsumer consumer) {
+        checkNodeId(node);
+        if (node < mergedNodeCount) {
+            int[] ids = nodeEdgeIds;
+            for (int i = nodeEdgeStarts[node], end = nodeEdgeStarts[node + 1]; i < end; i++) {
+                int edge = ids[i];
+                if (aliveEdges.get(edge)) {
+                    consumer.accept(edge);
+                }
+            }
+        }
+        for (int end = nodeEdgeHeads[node]; end >= 0; end = edgeEndNext[end]) {
+            int edge = end >>> 1;
+            if (aliveEdges.get(edge)) {
+                consumer.accept(edge);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the node owning the given port.
+     */
+    public int getPortNode(int port) {
+        checkPortId(port);
+        return portNodes[port];
+    }
+
+    @AndroidCoordinate
+    public double getPortX(int port) {
+        checkPortId(port);
+        return nodeX[portNodes[port]] + portOffsetX[port];
+    }
+
+    @AndroidCoordinate
+    public double getPortY(int port) {
+        checkPortId(port);
+        return nodeY[portNodes[port]] + portOffsetY[port];
+    }
+
+    /**
+     * Returns the horizontal position of the given port center, relative to the origin of its node.
+     */
+    @AndroidCoordinate
+    public double getPortOffsetX(int port) {
+        checkPortId(port);
+        return portOffsetX[port];
+    }
+
+    /**
+     * Returns the vertical position of the given port center, relative to the origin of its node.
+     */
+    @AndroidCoordinate
+    public double getPortOffsetY(int port) {
+        checkPortId(port);
+        return portOffsetY[port];
+    }
+
+    /**
+     * Sets {@code out} to the bounds of the given port and returns it.
+     */
+    @NotNull
+    @AndroidCoordinate
+    public Rectangle2D.Double getPortBounds(int port, @NotNull Rectangle2D.Double out) {
+        out.setRect(getPortX(port) - PORT_SIZE / 2, getPortY(port) - PORT_SIZE / 2, PORT_SIZE, PORT_SIZE);
+        return out;
+    }
+
+    public int getEdgeSource(int edge) {
+        checkEdgeId(edge);
+        return edgeSources[edge];
+    }
+
+    public int getEdgeTarget(int edge) {
+        checkEdgeId(edge);
+        return edgeTargets[edge];
+    }
+
+    /**
+     * Sets {@code out} to the rectangle enclosing the two ports connected by the given edge and returns it.
+     */
+    @NotNull
+    @AndroidCoordinate
+    public Rectangle2D.Double getEdgeBounds(int edge, @NotNull Rectangle2D.Double out) {
+        checkEdgeId(edge);
+        double x1 = getPortX(edgeSources[edge]);
+        double y1 = getPortY(edgeSources[edge]);
+        double x2 = getPortX(edgeTargets[edge]);
+        double y2 = getPortY(edgeTargets[edge]);
+        out.setRect(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+        return out;
+    }
+
+    private int internString(@NotNull String value) {
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return id;
+    }
+
+    private void appendPort(int node, int port) {
+        portNext[port] = -1;
+        if (nodePortTails[node] < 0) {
+            nodePortHeads[node] = port;
+        } else {
+            portNext[nodePortTails[node]] = port;
+        }
+        nodePortTails[node] = port;
+        overflowCount++;
+    }
+
+    private void appendEdgeEnd(int node, int end) {
+        edgeEndNext[end] = -1;
+        if (nodeEdgeTails[node] < 0) {
+            nodeEdgeHeads[node] = end;
+        } else {
+            edgeEndNext[nodeEdgeTails[node]] = end;
+        }
+        nodeEdgeTails[node] = end;
+        overflowCount++;
+    }
+
+    /**
+     * Merges the overflow lists into the adjacency arrays once they hold as many elements as there were ids at the last
+     * merge. A merge is linear in the number of allocated ids, so this keeps its cost amortized constant per added
+     * element, however many ids were left behind by removed elements. This is called when elements are added, by the
+     * thread modifying the graph, so reading the adjacency never modifies the graph.
+     */
+    private void mergeAdjacencyIfNeeded() {
+        if (overflowCount > 0 && overflowCount >= mergedElementCount) {
+            mergeAdjacency();
+        }
+    }
+
+    /**
+     * Rebuilds the adjacency arrays from the live elements, with a counting sort of the ports and edges by node, and
+     * empties the overflow lists.
+     */
+    private void mergeAdjacency() {
+        int[] portStarts = new int[nodeCount + 1];
+        for (int port = alivePorts.nextSetBit(0); port >= 0; port = alivePorts.nextSetBit(port + 1)) {
+            portStarts[portNodes[port] + 1]++;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            portStarts[node + 1] += portStarts[node];
+        }
+        int[] portIds = new int[portStarts[nodeCount]];
+        int[] next = Arrays.copyOf(portStarts, nodeCount);
+        for (int port = alivePorts.nextSetBit(0); port >= 0; port = alivePorts.nextSetBit(port + 1)) {
+            portIds[next[portNodes[port]]++] = port;
+        }
+
+        int[] edgeStarts = new int[nodeCount + 1];
+        for (int edge = aliveEdges.nextSetBit(0); edge >= 0; edge = aliveEdges.nextSetBit(edge + 1)) {
+            int sourceNode = portNodes[edgeSources[edge]];
+            int targetNode = portNodes[edgeTargets[edge]];
+            edgeStarts[sourceNode + 1]++;
+            if (targetNode != sourceNode) {
+                edgeStarts[targetNode + 1]++;
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            edgeStarts[node + 1] += edgeStarts[node];
+        }
+        int[] edgeIds = new int[edgeStarts[nodeCount]];
+        next = Arrays.copyOf(edgeStarts, nodeCount);
+        for (int edge = aliveEdges.nextSetBit(0); edge >= 0; edge = aliveEdges.nextSetBit(edge + 1)) {
+            int sourceNode = portNodes[edgeSources[edge]];
+            int targetNode = portNodes[edgeTargets[edge]];
+            edgeIds[next[sourceNode]++] = edge;
+            if (targetNode != sourceNode) {
+                edgeIds[next[targetNode]++] = edge;
+            }
+        }
+
+        nodePortStarts = portStarts;
+        nodePortIds = portIds;
+        nodeEdgeStarts = edgeStarts;
+        nodeEdgeIds = edgeIds;
+        Arrays.fill(nodePortHeads, 0, nodeCount, -1);
+        Arrays.fill(nodePortTails, 0, nodeCount, -1);
+        Arrays.fill(nodeEdgeHeads, 0, nodeCount, -1);
+        Arrays.fill(nodeEdgeTails, 0, nodeCount, -1);
+        mergedNodeCount = nodeCount;
+        mergedElementCount = nodeCount + portCount + edgeCount;
+        overflowCount = 0;
+    }
+
+    private void nodeModified(int node) {
+        modificationCount++;
+        int group = nodeGroups[node];
+        if (group != NO_GROUP) {
+            groupModificationCounts[group]++;
+        }
+    }
+
+    private void edgeModified(int edge) {
+        int sourceGroup = nodeGroups[portNodes[edgeSources[edge]]];
+        int targetGroup = nodeGroups[portNodes[edgeTargets[edge]]];
+        modificationCount++;
+        if (sourceGroup != NO_GROUP) {
+            groupModificationCounts[sourceGroup]++;
+        }
+        if (targetGroup != NO_GROUP && targetGroup != sourceGroup) {
+            groupModificationCounts[targetGroup]++;
+        }
+    }
+
+    /**
+     * Checks that the given node is in the graph and was not removed.
+     */
+    private void checkNode(int node) {
+        if (!containsNode(node)) {
+            throw new IndexOutOfBoundsException("Invalid node id " + node);
+        }
+    }
+
+    /**
+     * Checks that the given port is in the graph and was not removed.
+     */
+    private void checkPort(int port) {
+        if (!containsPort(port)) {
+            throw new IndexOutOfBoundsException("Invalid port id " + port);
+        }
+    }
+
+    /**
+     * Checks that the given node id was allocated. The data of removed nodes is still readable.
+     */
+    private void checkNodeId(int node) {
+        if (node < 0 || node >= nodeCount) {
+            throw new IndexOutOfBoundsException("Invalid node id " + node);
+        }
+    }
+
+    private void checkPortId(int port) {
+        if (port < 0 || port >= portCount) {
+            throw new IndexOutOfBoundsException("Invalid port id " + port);
+        }
+    }
+
+    private void checkEdgeId(int edge) {
+        if (edge < 0 || edge >= edgeCount) {
+            throw new IndexOutOfBoundsException("Invalid edge id " + edge);
+        }
+    }
+
+    /**
+     * Copies the ports it is given to the node {@link #nodeCopy} of another graph, and records the copy of each port as a
+     * (port, copy) pair, with the port in the high bits.
+     */
+    private final class PortCopier implements IntConsumer {
+        @NotNull private final SceneGraph copy;
+        int nodeCopy;
+
+        @NotNull private long[] copies;
+        private int count;
+
+        PortCopier(@NotNull SceneGraph copy, int nodeCount) {
+            this.copy = copy;
+            copies = new long[Math.max(16, 2 * nodeCount)];
+        }
+
+        @Override
+        public void accept(int port) {
+            if (!alivePorts.get(port)) {
+                return;
+            }
+            if (count == copies.length) {
+                copies = Arrays.copyOf(copies, count * 2);
+            }
+            int portCopy = copy.addPort(nodeCopy, portOffsetX[port], portOffsetY[port]);
+            copies[count++] = (long) port << 32 | portCopy;
+        }
+
+        /**
+         * Sorts the pairs by port, before {@link #findCopy} is called.
+         */
+        void sort() {
+            Arrays.sort(copies, 0, count);
+        }
+
+        /**
+         * Returns the copy of the given port, or -1 if it was not copied.
+         */
+        int findCopy(int port) {
+            int index = Arrays.binarySearch(copies, 0, count, (long) port << 32);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < count && (int) (copies[index] >>> 32) == port ? (int) copies[index] : -1;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Interface implemented by listeners for {@link SceneGraph} changes
+ */
+public interface SceneGraphListener {
+
+    /** A node was added to the graph */
+    default void nodeAdded(@NotNull SceneGraph graph, int node) {}
+
+    /** A port was added to an existing node */
+    default void portAdded(@NotNull SceneGraph graph, int port) {}
+
+    /** An edge was added between two existing ports */
+    default void edgeAdded(@NotNull SceneGraph graph, int edge) {}
+
+    /** A node, and so its ports and edges, changed position */
+    default void nodeMoved(@NotNull SceneGraph graph, int node) {}
+
+    /** Several nodes changed position at once. By default, this is reported as one {@link #nodeMoved} per node */
+    default void nodesMoved(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+        for (int node : nodes) {
+            nodeMoved(graph, node);
+        }
+    }
+
+    /** A node was removed, after its ports and edges */
+    default void nodeRemoved(@NotNull SceneGraph graph, int node) {}
+
+    /** Several nodes were removed at once. By default, this is reported as one {@link #nodeRemoved} per node */
+    default void nodesRemoved(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+        for (int node : nodes) {
+            nodeRemoved(graph, node);
+        }
+    }
+
+    /** A port was removed, after the edges connected to it */
+    default void portRemoved(@NotNull SceneGraph graph, int port) {}
+
+    /** An edge was removed */
+    default void edgeRemoved(@NotNull SceneGraph graph, int edge) {}
+
+    /** All the elements were removed from the graph */
+    default void graphCleared(@NotNull SceneGraph graph) {}
+}
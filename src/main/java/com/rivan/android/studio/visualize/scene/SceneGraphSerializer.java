@@ -0,0 +1,352 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary format of a {@link SceneGraph}.
+ * <p>
+ * The format mirrors the arrays of the graph: a header, the table of the labels, then the nodes, ports and edges, each
+ * as a count followed by their fields. Only the elements in the graph are written, and their ids are compacted, so
+ * reading a graph back gives contiguous ids in the same order. Group ids are kept as they are.
+ */
+public final class SceneGraphSerializer {
+
+    /**
+     * Version of the format, incremented on every incompatible change.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x56534731; // "VSG1"
+
+    /**
+     * Maximum number of groups, labels, nodes, ports or edges read, so that a corrupted count can't allocate more than a
+     * few megabytes before the end of the data is reached.
+     */
+    private static final int MAX_COUNT = 1 << 22;
+
+    private SceneGraphSerializer() {
+    }
+
+    /**
+     * Writes the content of the given graph.
+     */
+    public static void write(@NotNull SceneGraph graph, @NotNull DataOutput out) throws IOException {
+        Encoder encoder = new Encoder(graph);
+        while (encoder.writeNext(out, Integer.MAX_VALUE)) {
+            // Everything is written in a single chunk
+        }
+    }
+
+    /**
+     * Returns a stream of the content of the given graph, in the format written by {@link #write}. The graph is encoded
+     * while the stream is read, a few elements at a time, so the whole encoded graph is never held in memory. The graph
+     * must not be changed until the stream is read.
+     */
+    @NotNull
+    public static InputStream newInputStream(@NotNull SceneGraph graph) {
+        return new EncodingInputStream(new Encoder(graph));
+    }
+
+    /**
+     * Reads a graph written by {@link #write}.
+     *
+     * @throws IOException if the data can't be read or is not a graph in the current format.
+     */
+    @NotNull
+    public static SceneGraph read(@NotNull DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a scene graph");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported scene graph format " + version);
+        }
+
+        SceneGraph graph = new SceneGraph();
+        int groupCount = readCount(in);
+        for (int i = 0; i < groupCount; i++) {
+            graph.addGroup();
+        }
+
+        // The labels are allocated as they are read, so a truncated table fails before the counted size is allocated
+        int labelCount = readCount(in);
+        String[] labels = new String[Math.min(labelCount, 1024)];
+        for (int i = 0; i < labelCount; i++) {
+            if (i == labels.length) {
+                labels = Arrays.copyOf(labels, Math.min(labelCount, i * 2));
+            }
+            labels[i] = in.readUTF();
+        }
+
+        try {
+            int nodeCount = readCount(in);
+            for (int i = 0; i < nodeCount; i++) {
+                String label = labels[in.readInt()];
+                int group = in.readInt();
+                graph.addNode(label, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), group);
+            }
+            int portCount = readCount(in);
+            for (int i = 0; i < portCount; i++) {
+                graph.addPort(in.readInt(), in.readDouble(), in.readDouble());
+            }
+            int edgeCount = readCount(in);
+            for (int i = 0; i < edgeCount; i++) {
+                graph.addEdge(in.readInt(), in.readInt());
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted scene graph", e);
+        }
+        return graph;
+    }
+
+    private static int readCount(@NotNull DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Corrupted scene graph");
+        }
+        return count;
+    }
+
+    /**
+     * Writes a graph in successive chunks.
+     */
+    private static final class Encoder {
+        private static final int HEADER = 0;
+        private static final int LABELS = 1;
+        private static final int NODES = 2;
+        private static final int PORTS = 3;
+        private static final int EDGES = 4;
+        private static final int DONE = 5;
+
+        @NotNull private final SceneGraph graph;
+        // New ids of the nodes and ports, after removing the ones that are not in the graph anymore
+        @NotNull private final int[] nodeIds;
+        @NotNull private final int[] portIds;
+        @NotNull private final String[] labels;
+        @NotNull private final int[] nodeLabels;
+        private final int nodeCount;
+        private final int portCount;
+        private final int edgeCount;
+
+        /** The section being written, and the next label, node, port or edge id to write in it */
+        private int section = HEADER;
+        private int next;
+
+        Encoder(@NotNull SceneGraph graph) {
+            this.graph = graph;
+            nodeIds = new int[graph.getNodeCount()];
+            portIds = new int[graph.getPortCount()];
+
+            Map<String, Integer> labelIds = new HashMap<>();
+            String[] labels = new String[16];
+            nodeLabels = new int[graph.getNodeCount()];
+            int nodeCount = 0;
+            for (int node = 0; node < nodeIds.length; node++) {
+                if (!graph.containsNode(node)) {
+                    nodeIds[node] = -1;
+                    continue;
+                }
+                String label = graph.getLabel(node);
+                Integer labelId = labelIds.get(label);
+                if (labelId == null) {
+                    labelId = labelIds.size();
+                    labelIds.put(label, labelId);
+                    if (labelId == labels.length) {
+                        labels = Arrays.copyOf(labels, labels.length * 2);
+                    }
+                    labels[labelId] = label;
+                }
+                nodeLabels[nodeCount] = labelId;
+                nodeIds[node] = nodeCount++;
+            }
+            this.labels = Arrays.copyOf(labels, labelIds.size());
+            this.nodeCount = nodeCount;
+
+            int portCount = 0;
+            for (int port = 0; port < portIds.length; port++) {
+                portIds[port] = graph.containsPort(port) ? portCount++ : -1;
+            }
+            this.portCount = portCount;
+            int edgeCount = 0;
+            for (int edge = 0, count = graph.getEdgeCount(); edge < count; edge++) {
+                if (graph.containsEdge(edge)) {
+                    edgeCount++;
+                }
+            }
+            this.edgeCount = edgeCount;
+        }
+
+        /**
+         * Writes the next chunk of the graph, of at most {@code maxElements} labels, nodes, ports or edges.
+         *
+         * @return false if the whole graph was written before this call.
+         */
+        boolean writeNext(@NotNull DataOutput out, int maxElements) throws IOException {
+            int written = 0;
+            while (written < maxElements) {
+                switch (section) {
+                    case HEADER:
+                        out.writeInt(MAGIC);
+                        out.writeInt(FORMAT_VERSION);
+                        out.writeInt(graph.getGroupCount());
+                        out.writeInt(labels.length);
+                        startSection(LABELS);
+                        break;
+                    case LABELS:
+                        if (next == labels.length) {
+                            out.writeInt(nodeCount);
+                            startSection(NODES);
+                            break;
+                        }
+                        out.writeUTF(labels[next++]);
+                        written++;
+                        break;
+                    case NODES:
+                        if (next == nodeIds.length) {
+                            out.writeInt(portCount);
+                            startSection(PORTS);
+                            break;
+                        }
+                        int node = next++;
+                        if (nodeIds[node] == -1) {
+                            break;
+                        }
+                        out.writeInt(nodeLabels[nodeIds[node]]);
+                        out.writeInt(graph.getNodeGroup(node));
+                        out.writeDouble(graph.getNodeX(node));
+                        out.writeDouble(graph.getNodeY(node));
+                        out.writeDouble(graph.getNodeWidth(node));
+                        out.writeDouble(graph.getNodeHeight(node));
+                        written++;
+                        break;
+                    case PORTS:
+                        if (next == portIds.length) {
+                            out.writeInt(edgeCount);
+                            startSection(EDGES);
+                            break;
+                        }
+                        int port = next++;
+                        if (portIds[port] == -1) {
+                            break;
+                        }
+                        out.writeInt(nodeIds[graph.getPortNode(port)]);
+                        out.writeDouble(graph.getPortOffsetX(port));
+                        out.writeDouble(graph.getPortOffsetY(port));
+                        written++;
+                        break;
+                    case EDGES:
+                        if (next == graph.getEdgeCount()) {
+                            startSection(DONE);
+                            return true;
+                        }
+                        int edge = next++;
+                        if (!graph.containsEdge(edge)) {
+                            break;
+                        }
+                        out.writeInt(portIds[graph.getEdgeSource(edge)]);
+                        out.writeInt(portIds[graph.getEdgeTarget(edge)]);
+                        written++;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        private void startSection(int section) {
+            this.section = section;
+            next = 0;
+        }
+    }
+
+    /**
+     * Stream encoding a graph into a reused buffer whenever the previous chunk was read.
+     */
+    private static final class EncodingInputStream extends InputStream {
+        private static final int CHUNK_ELEMENTS = 256;
+
+        @NotNull private final Encoder encoder;
+        @NotNull private final ChunkBuffer buffer = new ChunkBuffer();
+        @NotNull private final DataOutputStream out = new DataOutputStream(buffer);
+        private int position;
+        private boolean done;
+
+        EncodingInputStream(@NotNull Encoder encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.bytes()[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int read = Math.min(len, buffer.size() - position);
+            System.arraycopy(buffer.bytes(), position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.size() - position;
+        }
+
+        /**
+         * Encodes the next chunk if the current one was read.
+         *
+         * @return false at the end of the graph.
+         */
+        private boolean fill() throws IOException {
+            while (position == buffer.size()) {
+                if (done) {
+                    return false;
+                }
+                buffer.reset();
+                position = 0;
+                done = !encoder.writeNext(out, CHUNK_ELEMENTS);
+                out.flush();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Output buffer whose bytes can be read without being copied.
+     */
+    private static final class ChunkBuffer extends ByteArrayOutputStream {
+        @NotNull
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
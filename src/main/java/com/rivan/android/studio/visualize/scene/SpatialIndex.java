@@ -0,0 +1,490 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import com.android.tools.idea.common.model.AndroidCoordinate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.VisibleForTesting;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Loose quadtree indexing the bounds of items identified by a non negative int id, usually the id of a {@link SceneGraph}
+ * element.
+ * <p>
+ * Each cell accepts the items whose center is in its quadrant, and whose bounds fit in the quadrant enlarged by half its
+ * size on every side. An item is stored in the smallest such cell, so an item straddling the split line of a cell still
+ * goes down to a cell of about its size, instead of staying in the ancestor cell. Rectangle queries, point hit-tests and
+ * nearest neighbour lookups only visit the cells whose enlarged bounds touch the queried area. The tree grows as needed to
+ * contain items that fall outside of its current bounds.
+ * <p>
+ * All the bounds are inclusive: an item with an empty width or height is still found by the queries touching it.
+ * This class is not thread safe.
+ */
+public class SpatialIndex {
+
+    /**
+     * Number of items a cell can hold before being split.
+     */
+    private static final int MAX_CELL_ITEMS = 8;
+
+    /**
+     * Cells smaller than this are never split.
+     */
+    @AndroidCoordinate private static final double MIN_CELL_SIZE = 4;
+
+    /**
+     * Size of the root cell when the first item is inserted.
+     */
+    @AndroidCoordinate private static final double INITIAL_ROOT_SIZE = 1024;
+
+    /**
+     * Bounds of each item, indexed by id: {@code minX, minY, maxX, maxY}.
+     */
+    private double[] itemBounds = new double[0];
+    /**
+     * Cell containing each item, indexed by id. Null if the item is not in the index.
+     */
+    private Cell[] itemCells = new Cell[0];
+    private int size;
+
+    @Nullable private Cell root;
+
+    /**
+     * Collector of the ids of {@link #queryInIdOrder(Rectangle2D, IntConsumer)}, reused between queries. Null while it is
+     * used by a query, so a query made by the consumer of another one uses its own collector.
+     */
+    @Nullable private IdCollector spareCollector = new IdCollector();
+
+    /**
+     * Adds an item with the given bounds, replacing the previous bounds if the item was already in the index.
+     */
+    public void insert(int id, @AndroidCoordinate @NotNull Rectangle2D bounds) {
+        if (!Double.isFinite(bounds.getMinX()) || !Double.isFinite(bounds.getMinY())
+                || !Double.isFinite(bounds.getMaxX()) || !Double.isFinite(bounds.getMaxY())) {
+            throw new IllegalArgumentException("Invalid bounds " + bounds + " for item " + id);
+        }
+        if (contains(id)) {
+            remove(id);
+        }
+        ensureCapacity(id);
+        int offset = id * 4;
+        itemBounds[offset] = bounds.getMinX();
+        itemBounds[offset + 1] = bounds.getMinY();
+        itemBounds[offset + 2] = bounds.getMaxX();
+        itemBounds[offset + 3] = bounds.getMaxY();
+
+        Cell cell = growToContain(id);
+        while (cell.children != null) {
+            Cell child = findChildContaining(cell, id);
+            if (child == null) {
+                break;
+            }
+            cell = child;
+        }
+        cell.add(id);
+        itemCells[id] = cell;
+        size++;
+
+        if (cell.children == null && cell.itemCount > MAX_CELL_ITEMS && cell.maxX - cell.minX > MIN_CELL_SIZE) {
+            split(cell);
+        }
+    }
+
+    /**
+     * Same as {@link #insert(int, Rectangle2D)}. Use this method to make clear that the item is expected to be in the index.
+     */
+    public void update(int id, @AndroidCoordinate @NotNull Rectangle2D bounds) {
+        insert(id, bounds);
+    }
+
+    /**
+     * Removes the given item. Returns false if the item was not in the index.
+     */
+    public boolean remove(int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        Cell cell = itemCells[id];
+        cell.remove(id);
+        itemCells[id] = null;
+        size--;
+        collapse(cell.parent);
+        return true;
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < itemCells.length && itemCells[id] != null;
+    }
+
+    /**
+     * Sets {@code out} to the bounds of the given item. Returns false, leaving {@code out} unchanged, if the item is not
+     * in the index.
+     */
+    public boolean getBounds(int id, @AndroidCoordinate @NotNull Rectangle2D out) {
+        if (!contains(id)) {
+            return false;
+        }
+        int offset = id * 4;
+        out.setFrameFromDiagonal(itemBounds[offset], itemBounds[offset + 1], itemBounds[offset + 2], itemBounds[offset + 3]);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the depth of the cell holding the given item, 0 for the root, or -1 if the item is not in the index.
+     */
+    @VisibleForTesting
+    int getDepth(int id) {
+        if (!contains(id)) {
+            return -1;
+        }
+        int depth = 0;
+        for (Cell cell = itemCells[id].parent; cell != null; cell = cell.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    public void clear() {
+        Arrays.fill(itemCells, null);
+        size = 0;
+        root = null;
+    }
+
+    /**
+     * Calls {@code consumer} with the id of every item whose bounds intersect the given area.
+     */
+    public void query(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        if (root != null) {
+            query(root, area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), consumer);
+        }
+    }
+
+    /**
+     * Same as {@link #query(Rectangle2D, IntConsumer)}, but calls {@code consumer} in increasing id order, the order in
+     * which the items are painted. The consumer can query the index again, but must not modify it.
+     */
+    public void queryInIdOrder(@AndroidCoordinate @NotNull Rectangle2D area, @NotNull IntConsumer consumer) {
+        if (root == null) {
+            return;
+        }
+        IdCollector collector = spareCollector != null ? spareCollector : new IdCollector();
+        spareCollector = null;
+        try {
+            collector.size = 0;
+            query(root, area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), collector);
+            int size = collector.size;
+            int[] ids = collector.ids;
+            Arrays.sort(ids, 0, size);
+            for (int i = 0; i < size; i++) {
+                consumer.accept(ids[i]);
+            }
+        } finally {
+            spareCollector = collector;
+        }
+    }
+
+    /**
+     * Returns the highest id of the items containing the given point, or -1 if there are none. Items are painted in id
+     * order, see {@link #queryInIdOrder(Rectangle2D, IntConsumer)}, so this is the item displayed on top.
+     */
+    public int hitTest(@AndroidCoordinate double x, @AndroidCoordinate double y) {
+        return root != null ? hitTest(root, x, y, -1) : -1;
+    }
+
+    /**
+     * Returns the id of the item whose bounds are the closest to the given point, or -1 if there are no items closer
+     * than {@code maxDistance}. Items containing the point are at a distance of 0.
+     */
+    public int findNearest(@AndroidCoordinate double x, @AndroidCoordinate double y, @AndroidCoordinate double maxDistance) {
+        if (root == null) {
+            return -1;
+        }
+
+        // Best-first search: cells and items are visited by increasing distance, so the first item polled is the nearest.
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(new Candidate(root, -1, distance(x, y, root.looseMinX, root.looseMinY, root.looseMaxX, root.looseMaxY)));
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            if (candidate.distance > maxDistance) {
+                return -1;
+            }
+            Cell cell = candidate.cell;
+            if (cell == null) {
+                return candidate.item;
+            }
+            for (int i = 0; i < cell.itemCount; i++) {
+                int item = cell.items[i];
+                int offset = item * 4;
+                queue.add(new Candidate(null, item, distance(x, y, itemBounds[offset], itemBounds[offset + 1],
+                                                             itemBounds[offset + 2], itemBounds[offset + 3])));
+            }
+            if (cell.children != null) {
+                for (Cell child : cell.children) {
+                    if (!child.isEmpty()) {
+                        queue.add(new Candidate(child, -1, distance(x, y, child.looseMinX, child.looseMinY,
+                                                                    child.looseMaxX, child.looseMaxY)));
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void query(@NotNull Cell cell, double minX, double minY, double maxX, double maxY, @NotNull IntConsumer consumer) {
+        for (int i = 0; i < cell.itemCount; i++) {
+            int item = cell.items[i];
+            int offset = item * 4;
+            if (itemBounds[offset + 2] >= minX && itemBounds[offset] <= maxX
+                    && itemBounds[offset + 3] >= minY && itemBounds[offset + 1] <= maxY) {
+                consumer.accept(item);
+            }
+        }
+        if (cell.children != null) {
+            for (Cell child : cell.children) {
+                if (child.looseMaxX >= minX && child.looseMinX <= maxX
+                        && child.looseMaxY >= minY && child.looseMinY <= maxY) {
+                    query(child, minX, minY, maxX, maxY, consumer);
+                }
+            }
+        }
+    }
+
+    private int hitTest(@NotNull Cell cell, double x, double y, int best) {
+        for (int i = 0; i < cell.itemCount; i++) {
+            int item = cell.items[i];
+            int offset = item * 4;
+            if (item > best && x >= itemBounds[offset] && x <= itemBounds[offset + 2]
+                    && y >= itemBounds[offset + 1] && y <= itemBounds[offset + 3]) {
+                best = item;
+            }
+        }
+        if (cell.children != null) {
+            for (Cell child : cell.children) {
+                if (x >= child.looseMinX && x <= child.looseMaxX && y >= child.looseMinY && y <= child.looseMaxY) {
+                    best = hitTest(child, x, y, best);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Makes sure the root cell contains the bounds of the given item, growing the tree if needed, and returns the root.
+     */
+    @NotNull
+    private Cell growToContain(int id) {
+        int offset = id * 4;
+        double minX = itemBounds[offset];
+        double minY = itemBounds[offset + 1];
+        double maxX = itemBounds[offset + 2];
+        double maxY = itemBounds[offset + 3];
+
+        if (root == null) {
+            double originX = Math.floor(minX / INITIAL_ROOT_SIZE) * INITIAL_ROOT_SIZE;
+            double originY = Math.floor(minY / INITIAL_ROOT_SIZE) * INITIAL_ROOT_SIZE;
+            root = new Cell(null, originX, originY, originX + INITIAL_ROOT_SIZE, originY + INITIAL_ROOT_SIZE);
+        }
+
+        while (minX < root.minX || minY < root.minY || maxX > root.maxX || maxY > root.maxY) {
+            // Double the size of the root towards the item. The old root becomes one of the quadrants of the new one.
+            double size = root.maxX - root.minX;
+            boolean growLeft = minX < root.minX;
+            boolean growUp = minY < root.minY;
+            double newMinX = growLeft ? root.minX - size : root.minX;
+            double newMinY = growUp ? root.minY - size : root.minY;
+            Cell newRoot = new Cell(null, newMinX, newMinY, newMinX + 2 * size, newMinY + 2 * size);
+            newRoot.createChildren();
+            int oldRootIndex = (growUp ? 2 : 0) + (growLeft ? 1 : 0);
+            newRoot.children[oldRootIndex] = root;
+            root.parent = newRoot;
+            root = newRoot;
+        }
+        return root;
+    }
+
+    /**
+     * Returns the child of {@code cell} whose quadrant contains the center of the given item, or null if the item doesn't
+     * fit in the enlarged bounds of that child, which is the case when it is larger than half of the child.
+     */
+    @Nullable
+    private Cell findChildContaining(@NotNull Cell cell, int id) {
+        int offset = id * 4;
+        double minX = itemBounds[offset];
+        double minY = itemBounds[offset + 1];
+        double maxX = itemBounds[offset + 2];
+        double maxY = itemBounds[offset + 3];
+        double midX = (cell.minX + cell.maxX) / 2;
+        double midY = (cell.minY + cell.maxY) / 2;
+        int column = (minX + maxX) / 2 < midX ? 0 : 1;
+        int row = (minY + maxY) / 2 < midY ? 0 : 1;
+        Cell child = cell.children[row * 2 + column];
+        boolean fits = minX >= child.looseMinX && maxX <= child.looseMaxX
+                       && minY >= child.looseMinY && maxY <= child.looseMaxY;
+        return fits ? child : null;
+    }
+
+    private void split(@NotNull Cell cell) {
+        cell.createChildren();
+        int[] items = Arrays.copyOf(cell.items, cell.itemCount);
+        cell.itemCount = 0;
+        for (int item : items) {
+            Cell child = findChildContaining(cell, item);
+            Cell target = child != null ? child : cell;
+            target.add(item);
+            itemCells[item] = target;
+        }
+    }
+
+    /**
+     * Drops the children of {@code cell}, and then of its ancestors, when they are all empty leaves.
+     */
+    private void collapse(@Nullable Cell cell) {
+        while (cell != null && cell.children != null) {
+            for (Cell child : cell.children) {
+                if (child.children != null || child.itemCount > 0) {
+                    return;
+                }
+            }
+            cell.children = null;
+            cell = cell.parent;
+        }
+    }
+
+    private void ensureCapacity(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+        if (id >= itemCells.length) {
+            int capacity = Math.max(id + 1, Math.max(16, itemCells.length * 2));
+            itemCells = Arrays.copyOf(itemCells, capacity);
+            itemBounds = Arrays.copyOf(itemBounds, capacity * 4);
+        }
+    }
+
+    private static double distance(double x, double y, double minX, double minY, double maxX, double maxY) {
+        double dx = Math.max(0, Math.max(minX - x, x - maxX));
+        double dy = Math.max(0, Math.max(minY - y, y - maxY));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static final class Cell {
+        @Nullable private Cell parent;
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+        /**
+         * Bounds of the items this cell can hold: its quadrant enlarged by half its size on every side.
+         */
+        private final double looseMinX;
+        private final double looseMinY;
+        private final double looseMaxX;
+        private final double looseMaxY;
+        /**
+         * The four quadrants of this cell: top-left, top-right, bottom-left and bottom-right. Null for leaves.
+         */
+        private Cell[] children;
+        private int[] items = new int[4];
+        private int itemCount;
+
+        private Cell(@Nullable Cell parent, double minX, double minY, double maxX, double maxY) {
+            this.parent = parent;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            double margin = (maxX - minX) / 2;
+            looseMinX = minX - margin;
+            looseMinY = minY - margin;
+            looseMaxX = maxX + margin;
+            looseMaxY = maxY + margin;
+        }
+
+        private void createChildren() {
+            double midX = (minX + maxX) / 2;
+            double midY = (minY + maxY) / 2;
+            children = new Cell[] {
+                    new Cell(this, minX, minY, midX, midY),
+                    new Cell(this, midX, minY, maxX, midY),
+                    new Cell(this, minX, midY, midX, maxY),
+                    new Cell(this, midX, midY, maxX, maxY)
+            };
+        }
+
+        private boolean isEmpty() {
+            return itemCount == 0 && children == null;
+        }
+
+        private void add(int item) {
+            if (itemCount == items.length) {
+                items = Arrays.copyOf(items, itemCount * 2);
+            }
+            items[itemCount++] = item;
+        }
+
+        private void remove(int item) {
+            for (int i = 0; i < itemCount; i++) {
+                if (items[i] == item) {
+                    items[i] = items[--itemCount];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the ids of the items found by a query into a growable array.
+     */
+    private static final class IdCollector implements IntConsumer {
+        @NotNull int[] ids = new int[16];
+        int size;
+
+        @Override
+        public void accept(int item) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = item;
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        @Nullable private final Cell cell;
+        private final int item;
+        private final double distance;
+
+        private Candidate(@Nullable Cell cell, int item, double distance) {
+            this.cell = cell;
+            this.item = item;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(@NotNull Candidate other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
@@ -75,8 +75,9 @@ class ScrollableEditorSurfaceViewport(val viewport: JViewport): VisualEditorSurf
  * A [VisualEditorSurfaceViewport] for non scrollable surfaces. These surfaces will usually be embedded in a scrollable panel.
  */
 class NonScrollableDesignSurfaceViewport(val view: VisualEditorSurface<*>): VisualEditorSurfaceViewport {
+    // The view is not scrolled, so the visible part of the surface, in its own coordinates, is the view rectangle
     override val viewRect: Rectangle
-        get() = view.bounds
+        get() = view.visibleRect
     override val viewportComponent: Component
         get() = view
     override val viewComponent: Component
@@ -16,14 +16,9 @@
 
 package com.rivan.android.studio.visualize.editor
 
-import com.intellij.facet.ProjectFacetManager
-import com.intellij.lang.java.JavaLanguage
 import com.intellij.openapi.fileEditor.impl.text.PsiAwareTextEditorProvider
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.vfs.VirtualFile
-import com.intellij.psi.PsiManager
-import org.jetbrains.android.facet.AndroidFacet
-import org.jetbrains.kotlin.idea.KotlinLanguage
 
 /**
  * A PsiAwareTextEditor to be shown along with the preview editor.
@@ -39,11 +34,7 @@ class VScriptingTextEditorProvider : PsiAwareTextEditorProvider() {
         if (!super.accept(project, file)) {
             return false
         }
-        // First find the file that has been opened in the editor
-        val checkedFile = PsiManager.getInstance(project).findFile(file)
-        // Return true if the opened project is of Android, i.e., it has AndroidFacet and the file is an instance of
-        // JavaLanguage or KotlinLanguage
-        return ProjectFacetManager.getInstance(project).hasFacets(AndroidFacet.ID)
-                && (checkedFile!!.language === JavaLanguage.INSTANCE || checkedFile!!.language == KotlinLanguage.INSTANCE)
+        // Only files that can be shown as text get here, the rest is decided and cached by VScriptingFileSupport
+        return VScriptingFileSupport.getInstance(project).isSupported(file)
     }
 }
\ No newline at end of file
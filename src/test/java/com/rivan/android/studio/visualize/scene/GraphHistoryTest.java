@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphHistoryTest {
+
+    @Test
+    void translationsAreUndoneAndRedone() {
+        SceneGraph graph = new SceneGraph();
+        int[] nodes = addNodes(graph, 50000);
+        GraphHistory history = new GraphHistory(100, 1 << 20);
+
+        long step = history.recordTranslation(graph, nodes, 5, -3);
+        assertTrue(step >= 0);
+        assertEquals(12, graph.getNodeX(7));
+        assertEquals(11, graph.getNodeY(7));
+        // Only the ids and the offset are stored
+        assertTrue(history.getRetainedBytes() < 300_000, "Retained " + history.getRetainedBytes());
+
+        graph.removeNode(3);
+        assertTrue(history.undo(graph, step));
+        assertEquals(7, graph.getNodeX(7));
+        assertEquals(14, graph.getNodeY(7));
+        assertTrue(history.redo(graph, step));
+        assertEquals(12, graph.getNodeX(7));
+        assertEquals(-1, history.recordTranslation(graph, nodes, 0, 0));
+        assertEquals(-1, history.recordTranslation(graph, new int[] { 3 }, 1, 1));
+    }
+
+    @Test
+    void movesAreUndoneAndRedone() {
+        SceneGraph graph = new SceneGraph();
+        int[] nodes = addNodes(graph, 10);
+        GraphHistory history = new GraphHistory(100, 1 << 20);
+
+        long first = history.recordMove(graph, new int[] { 1, 2, 4 }, new double[] { 0, 0, 0 }, new double[] { 0, 0, 0 });
+        long second = history.recordMove(graph, new int[] { 4, 5 }, new double[] { 40, 50 }, new double[] { 41, 51 });
+        assertEquals(0, graph.getNodeX(1));
+        assertEquals(40, graph.getNodeX(4));
+
+        assertTrue(history.undo(graph, second));
+        assertEquals(0, graph.getNodeX(4));
+        assertEquals(5, graph.getNodeX(5));
+        assertTrue(history.undo(graph, first));
+        assertEquals(4, graph.getNodeX(4));
+        assertEquals(8, graph.getNodeY(4));
+
+        graph.removeNode(2);
+        assertTrue(history.redo(graph, first));
+        assertEquals(0, graph.getNodeX(1));
+        assertFalse(graph.containsNode(2));
+        assertEquals(-1, history.recordMove(graph, nodes, graphX(graph, nodes), graphY(graph, nodes)));
+    }
+
+    @Test
+    void stepsOverTheMemoryCapAreAppliedButNotRecorded() {
+        SceneGraph graph = new SceneGraph();
+        int[] nodes = addNodes(graph, 50000);
+        graph.removeNode(0);
+        GraphHistory history = new GraphHistory(100, 1 << 20);
+
+        double[] x = new double[nodes.length];
+        double[] y = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            x[i] = i * 3;
+            y[i] = i;
+        }
+        assertEquals(-1, history.recordMove(graph, nodes, x, y));
+        assertEquals(27, graph.getNodeX(9));
+        assertEquals(49999 * 3, graph.getNodeX(49999));
+        assertEquals(0, history.getStepCount());
+
+        GraphHistory tiny = new GraphHistory(100, 1000);
+        assertEquals(-1, tiny.recordTranslation(graph, nodes, 1, 1));
+        assertEquals(28, graph.getNodeX(9));
+        assertEquals(0, tiny.getStepCount());
+    }
+
+    @Test
+    void oldestStepsAreDropped() {
+        SceneGraph graph = new SceneGraph();
+        int[] nodes = addNodes(graph, 3);
+        GraphHistory history = new GraphHistory(2, 1 << 20);
+
+        long first = history.recordTranslation(graph, nodes, 1, 0);
+        history.recordTranslation(graph, nodes, 1, 0);
+        long third = history.recordTranslation(graph, nodes, 1, 0);
+        assertEquals(2, history.getStepCount());
+        assertFalse(history.undo(graph, first));
+        assertEquals(3, graph.getNodeX(0));
+        assertTrue(history.undo(graph, third));
+        assertEquals(2, graph.getNodeX(0));
+
+        history.clear();
+        assertEquals(0, history.getStepCount());
+        assertEquals(0, history.getRetainedBytes());
+        assertFalse(history.redo(graph, third));
+    }
+
+    private static int[] addNodes(SceneGraph graph, int count) {
+        int[] nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = graph.addNode("node" + i, i, 2 * i, 10, 10);
+        }
+        return nodes;
+    }
+
+    private static double[] graphX(SceneGraph graph, int[] nodes) {
+        double[] x = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            x[i] = graph.containsNode(nodes[i]) ? graph.getNodeX(nodes[i]) : 0;
+        }
+        return x;
+    }
+
+    private static double[] graphY(SceneGraph graph, int[] nodes) {
+        double[] y = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            y[i] = graph.containsNode(nodes[i]) ? graph.getNodeY(nodes[i]) : 0;
+        }
+        return y;
+    }
+}
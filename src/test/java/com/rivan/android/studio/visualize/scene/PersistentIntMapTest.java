@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentIntMapTest {
+
+    @Test
+    void putKeepsThePreviousVersions() {
+        Random random = new Random(3);
+        List<PersistentIntMap<Integer>> versions = new ArrayList<>();
+        List<Map<Integer, Integer>> expected = new ArrayList<>();
+        PersistentIntMap<Integer> map = PersistentIntMap.empty();
+        Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            // Few distinct keys so that values are replaced, some of them negative or colliding in the low bits
+            int key = random.nextInt(3) == 0 ? random.nextInt() : (random.nextInt(300) << random.nextInt(4) * 5);
+            int value = random.nextInt(100);
+            map = map.put(key, value);
+            reference.put(key, value);
+            if (i % 50 == 0) {
+                versions.add(map);
+                expected.add(new HashMap<>(reference));
+            }
+        }
+
+        for (int i = 0; i < versions.size(); i++) {
+            PersistentIntMap<Integer> version = versions.get(i);
+            Map<Integer, Integer> entries = expected.get(i);
+            assertEquals(entries.size(), version.size());
+            for (Map.Entry<Integer, Integer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), version.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void getReturnsNullForMissingKeys() {
+        PersistentIntMap<String> map = PersistentIntMap.<String>empty().put(1, "a").put(1 << 5, "b").put(-1, "c");
+        assertEquals(3, map.size());
+        assertEquals("b", map.get(1 << 5));
+        assertEquals("c", map.get(-1));
+        assertNull(map.get(1 << 10));
+        assertNull(map.get(0));
+        assertNull(PersistentIntMap.<String>empty().get(1));
+        assertTrue(PersistentIntMap.empty().isEmpty());
+    }
+
+    @Test
+    void puttingTheSameValueReturnsTheSameMap() {
+        String value = "a";
+        PersistentIntMap<String> map = PersistentIntMap.<String>empty().put(7, value).put(39, "b");
+        assertSame(map, map.put(7, value));
+        PersistentIntMap<String> replaced = map.put(7, "c");
+        assertNotSame(map, replaced);
+        assertEquals(2, replaced.size());
+        assertEquals("a", map.get(7));
+        assertEquals("c", replaced.get(7));
+    }
+
+    @Test
+    void estimatedPutBytesGrowWithTheDepth() {
+        PersistentIntMap<Integer> map = PersistentIntMap.empty();
+        long small = map.estimatePutBytes();
+        for (int i = 0; i < 100000; i++) {
+            map = map.put(i, i);
+        }
+        assertTrue(map.estimatePutBytes() > small);
+        assertTrue(map.estimatePutBytes() < 1000);
+    }
+}
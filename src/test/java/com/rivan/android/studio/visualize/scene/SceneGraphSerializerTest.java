@@ -0,0 +1,181 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SceneGraphSerializerTest {
+
+    /**
+     * Offset of the number of labels in a serialized graph, after the magic number, the version and the group count.
+     */
+    private static final int LABEL_COUNT_OFFSET = 12;
+
+    @Test
+    void streamedBytesAreTheWrittenBytes() throws IOException {
+        Random random = new Random(3);
+        for (int i = 0; i < 50; i++) {
+            SceneGraph graph = createRandomGraph(random, 1 + random.nextInt(400));
+            byte[] written = write(graph);
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            try (InputStream in = SceneGraphSerializer.newInputStream(graph)) {
+                byte[] buffer = new byte[1 + random.nextInt(100)];
+                int read;
+                while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                    streamed.write(buffer, 0, read);
+                }
+            }
+            assertArrayEquals(written, streamed.toByteArray());
+        }
+    }
+
+    @Test
+    void streamCanBeReadByteByByte() throws IOException {
+        SceneGraph graph = createRandomGraph(new Random(5), 20);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (InputStream in = SceneGraphSerializer.newInputStream(graph)) {
+            int read;
+            while ((read = in.read()) != -1) {
+                streamed.write(read);
+            }
+        }
+        assertArrayEquals(write(graph), streamed.toByteArray());
+    }
+
+    @Test
+    void readGraphHasCompactedIds() throws IOException {
+        SceneGraph graph = new SceneGraph();
+        int group = graph.addGroup();
+        graph.removeNode(graph.addNode("removed", 0, 0, 1, 1));
+        int a = graph.addNode("a", 1, 2, 3, 4, group);
+        int b = graph.addNode("b", 5, 6, 7, 8);
+        graph.addEdge(graph.addPort(a, 3, 2), graph.addPort(b, 0, 4));
+
+        SceneGraph read = read(write(graph));
+
+        assertEquals(2, read.getNodeCount());
+        assertEquals(1, read.getGroupCount());
+        assertEquals("a", read.getLabel(0));
+        assertEquals(group, read.getNodeGroup(0));
+        assertEquals(new Rectangle2D.Double(5, 6, 7, 8), read.getNodeBounds(1, new Rectangle2D.Double()));
+        assertEquals(1, read.getEdgeCount());
+        assertEquals(0, read.getPortNode(read.getEdgeSource(0)));
+        assertEquals(1, read.getPortNode(read.getEdgeTarget(0)));
+        assertEquals(4, read.getPortOffsetY(read.getEdgeTarget(0)));
+        assertArrayEquals(write(read), write(read(write(read))));
+    }
+
+    @Test
+    void corruptedDataIsRejected() throws IOException {
+        SceneGraph graph = createRandomGraph(new Random(9), 30);
+        byte[] bytes = write(graph);
+
+        byte[] wrongMagic = bytes.clone();
+        wrongMagic[0]++;
+        assertThrows(IOException.class, () -> read(wrongMagic));
+
+        byte[] wrongVersion = bytes.clone();
+        ByteBuffer.wrap(wrongVersion).putInt(4, SceneGraphSerializer.FORMAT_VERSION + 1);
+        assertThrows(IOException.class, () -> read(wrongVersion));
+
+        for (int length = 0; length < bytes.length; length += 7) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            assertThrows(IOException.class, () -> read(truncated));
+        }
+
+        // Other corruptions must either be read as a valid graph or fail with an IOException
+        Random random = new Random(11);
+        for (int i = 0; i < 200; i++) {
+            byte[] corrupted = bytes.clone();
+            ByteBuffer.wrap(corrupted).putInt(8 + 4 * random.nextInt((bytes.length - 12) / 4), random.nextInt());
+            try {
+                read(corrupted);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    void countsAreNotTrusted() {
+        byte[] bytes = write(new SceneGraph());
+
+        byte[] negative = bytes.clone();
+        ByteBuffer.wrap(negative).putInt(LABEL_COUNT_OFFSET, -1);
+        assertThrows(IOException.class, () -> read(negative));
+
+        byte[] huge = bytes.clone();
+        ByteBuffer.wrap(huge).putInt(LABEL_COUNT_OFFSET, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> read(huge));
+
+        // Below the maximum, the labels are only allocated as they are read
+        byte[] missing = bytes.clone();
+        ByteBuffer.wrap(missing).putInt(LABEL_COUNT_OFFSET, 1 << 22);
+        assertThrows(EOFException.class, () -> read(missing));
+    }
+
+    private static SceneGraph createRandomGraph(Random random, int nodeCount) {
+        SceneGraph graph = new SceneGraph();
+        int groupCount = random.nextInt(4);
+        for (int i = 0; i < groupCount; i++) {
+            graph.addGroup();
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            int group = random.nextInt(groupCount + 1) - 1;
+            int node = graph.addNode("label" + random.nextInt(30), random.nextDouble(), random.nextDouble(), 10, 10, group);
+            int portCount = random.nextInt(4);
+            for (int port = 0; port < portCount; port++) {
+                graph.addPort(node, port, port);
+            }
+        }
+        if (graph.getPortCount() > 1) {
+            for (int i = 0; i < nodeCount; i++) {
+                graph.addEdge(random.nextInt(graph.getPortCount()), random.nextInt(graph.getPortCount()));
+            }
+        }
+        for (int i = 0; i < nodeCount / 5; i++) {
+            int node = random.nextInt(nodeCount);
+            if (graph.containsNode(node)) {
+                graph.removeNode(node);
+            }
+        }
+        return graph;
+    }
+
+    private static byte[] write(SceneGraph graph) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            SceneGraphSerializer.write(graph, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static SceneGraph read(byte[] bytes) throws IOException {
+        return SceneGraphSerializer.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SceneGraphTest {
+
+    @Test
+    void adjacencyMatchesTheElementsAcrossMerges() {
+        Random random = new Random(1);
+        SceneGraph graph = new SceneGraph();
+        for (int step = 0; step < 5000; step++) {
+            int operation = random.nextInt(10);
+            if (operation < 4 || graph.getNodeCount() == 0) {
+                graph.addNode("node", 0, 0, 10, 10);
+            } else if (operation < 7) {
+                int node = random.nextInt(graph.getNodeCount());
+                if (graph.containsNode(node)) {
+                    graph.addPort(node, 1, 1);
+                }
+            } else if (operation < 9 && graph.getPortCount() > 1) {
+                int source = random.nextInt(graph.getPortCount());
+                int target = random.nextInt(graph.getPortCount());
+                if (graph.containsPort(source) && graph.containsPort(target)) {
+                    graph.addEdge(source, target);
+                }
+            } else {
+                int node = random.nextInt(graph.getNodeCount());
+                if (graph.containsNode(node)) {
+                    graph.removeNode(node);
+                }
+            }
+            if (step % 97 == 0) {
+                checkAdjacency(graph);
+            }
+        }
+        checkAdjacency(graph);
+    }
+
+    @Test
+    void removingANodeRemovesItsPortsAndEdges() {
+        SceneGraph graph = new SceneGraph();
+        int a = graph.addNode("a", 0, 0, 10, 10);
+        int b = graph.addNode("b", 50, 0, 10, 10);
+        int c = graph.addNode("c", 100, 0, 10, 10);
+        int aOut = graph.addPort(a, 10, 5);
+        int bIn = graph.addPort(b, 0, 5);
+        int bOut = graph.addPort(b, 10, 5);
+        int cIn = graph.addPort(c, 0, 5);
+        int ab = graph.addEdge(aOut, bIn);
+        int bc = graph.addEdge(bOut, cIn);
+
+        long count = graph.getModificationCount();
+        graph.removeNode(b);
+
+        assertTrue(graph.getModificationCount() > count);
+        assertFalse(graph.containsNode(b));
+        assertFalse(graph.containsPort(bIn));
+        assertFalse(graph.containsPort(bOut));
+        assertFalse(graph.containsEdge(ab));
+        assertFalse(graph.containsEdge(bc));
+        assertEquals(List.of(), collectEdges(graph, a));
+        assertEquals(List.of(aOut), collectPorts(graph, a));
+        // Ids are not reused
+        assertEquals(3, graph.addNode("d", 0, 0, 1, 1));
+    }
+
+    @Test
+    void removeNodesNotifiesOnceWithTheRemovedNodes() {
+        SceneGraph graph = new SceneGraph();
+        for (int i = 0; i < 5; i++) {
+            graph.addPort(graph.addNode("node", i * 20, 0, 10, 10), 0, 0);
+        }
+        graph.addEdge(0, 1);
+        graph.removeNode(3);
+
+        List<int[]> batches = new ArrayList<>();
+        List<Integer> removedEdges = new ArrayList<>();
+        graph.addListener(new SceneGraphListener() {
+            @Override
+            public void nodesRemoved(@NotNull SceneGraph graph, @NotNull int[] nodes) {
+                batches.add(nodes);
+            }
+
+            @Override
+            public void edgeRemoved(@NotNull SceneGraph graph, int edge) {
+                removedEdges.add(edge);
+            }
+        });
+        graph.removeNodes(new int[] { 0, 3, 4 });
+
+        assertEquals(1, batches.size());
+        assertArrayEquals(new int[] { 0, 4 }, batches.get(0));
+        assertEquals(List.of(0), removedEdges);
+        assertTrue(graph.containsNode(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> graph.removeNodes(new int[] { 1, 99 }));
+        assertTrue(graph.containsNode(1));
+    }
+
+    @Test
+    void nodeRemovedIsCalledForEachNodeByDefault() {
+        SceneGraph graph = new SceneGraph();
+        graph.addNode("a", 0, 0, 1, 1);
+        graph.addNode("b", 0, 0, 1, 1);
+        List<Integer> removed = new ArrayList<>();
+        graph.addListener(new SceneGraphListener() {
+            @Override
+            public void nodeRemoved(@NotNull SceneGraph graph, int node) {
+                removed.add(node);
+            }
+        });
+        graph.removeNodes(new int[] { 1, 0 });
+        assertEquals(List.of(1, 0), removed);
+    }
+
+    @Test
+    void groupsTrackTheirOwnChanges() {
+        SceneGraph graph = new SceneGraph();
+        int first = graph.addGroup();
+        int second = graph.addGroup();
+        int a = graph.addNode("a", 0, 0, 1, 1, first);
+        int b = graph.addNode("b", 0, 0, 1, 1, second);
+
+        long firstCount = graph.getGroupModificationCount(first);
+        long secondCount = graph.getGroupModificationCount(second);
+        graph.moveNode(a, 5, 5);
+        assertTrue(graph.getGroupModificationCount(first) > firstCount);
+        assertEquals(secondCount, graph.getGroupModificationCount(second));
+        assertEquals(second, graph.getNodeGroup(b));
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        SceneGraph graph = new SceneGraph();
+        int node = graph.addNode("a", 0, 0, 1, 1);
+        graph.addEdge(graph.addPort(node, 0, 0), graph.addPort(node, 1, 0));
+        graph.clear();
+
+        assertEquals(0, graph.getNodeCount());
+        assertEquals(0, graph.getPortCount());
+        assertEquals(0, graph.getEdgeCount());
+        assertFalse(graph.containsNode(0));
+        int added = graph.addNode("b", 0, 0, 1, 1);
+        assertEquals(0, added);
+        assertEquals(List.of(), collectPorts(graph, added));
+    }
+
+    @Test
+    void copySubgraphCopiesTheEdgesBetweenTheCopiedNodes() {
+        SceneGraph graph = new SceneGraph();
+        int group = graph.addGroup();
+        int a = graph.addNode("a", 0, 0, 10, 10, group);
+        int b = graph.addNode("b", 50, 0, 10, 10);
+        int c = graph.addNode("c", 100, 0, 10, 10);
+        int removed = graph.addNode("removed", 0, 50, 10, 10);
+        int aOut = graph.addPort(a, 10, 5);
+        int bIn = graph.addPort(b, 0, 5);
+        int bOut = graph.addPort(b, 10, 5);
+        int cIn = graph.addPort(c, 0, 4);
+        graph.addEdge(aOut, bIn);
+        graph.addEdge(bOut, cIn);
+        graph.addEdge(cIn, aOut);
+        graph.removeNode(removed);
+
+        SceneGraph copy = graph.copySubgraph(new int[] { c, removed, a });
+
+        assertEquals(2, copy.getNodeCount());
+        assertEquals("c", copy.getLabel(0));
+        assertEquals("a", copy.getLabel(1));
+        assertEquals(SceneGraph.NO_GROUP, copy.getNodeGroup(1));
+        assertEquals(2, copy.getPortCount());
+        assertEquals(1, copy.getEdgeCount());
+        int source = copy.getEdgeSource(0);
+        int target = copy.getEdgeTarget(0);
+        assertEquals(0, copy.getPortNode(source));
+        assertEquals(4, copy.getPortOffsetY(source));
+        assertEquals(1, copy.getPortNode(target));
+        assertEquals(10, copy.getPortOffsetX(target));
+    }
+
+    @Test
+    void addGraphAddsMovedCopies() {
+        SceneGraph graph = new SceneGraph();
+        graph.addNode("existing", 0, 0, 1, 1);
+        SceneGraph other = new SceneGraph();
+        int a = other.addNode("a", 0, 0, 10, 10);
+        int b = other.addNode("b", 50, 0, 10, 10);
+        other.addEdge(other.addPort(a, 10, 5), other.addPort(b, 0, 5));
+        other.removeNode(other.addNode("removed", 0, 0, 1, 1));
+
+        int[] added = graph.addGraph(other, 5, 7);
+
+        assertArrayEquals(new int[] { 1, 2 }, added);
+        assertEquals("b", graph.getLabel(2));
+        assertEquals(55, graph.getNodeX(2));
+        assertEquals(7, graph.getNodeY(2));
+        checkAdjacency(graph);
+        assertEquals(1, collectEdges(graph, 1).size());
+        assertEquals(collectEdges(graph, 1), collectEdges(graph, 2));
+    }
+
+    private static void checkAdjacency(@NotNull SceneGraph graph) {
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            if (!graph.containsNode(node)) {
+                continue;
+            }
+            List<Integer> expectedPorts = new ArrayList<>();
+            for (int port = 0; port < graph.getPortCount(); port++) {
+                if (graph.containsPort(port) && graph.getPortNode(port) == node) {
+                    expectedPorts.add(port);
+                }
+            }
+            assertEquals(expectedPorts, collectPorts(graph, node));
+
+            Set<Integer> expectedEdges = new TreeSet<>();
+            for (int edge = 0; edge < graph.getEdgeCount(); edge++) {
+                if (graph.containsEdge(edge) && (graph.getPortNode(graph.getEdgeSource(edge)) == node
+                                                 || graph.getPortNode(graph.getEdgeTarget(edge)) == node)) {
+                    expectedEdges.add(edge);
+                }
+            }
+            List<Integer> edges = collectEdges(graph, node);
+            assertEquals(expectedEdges.size(), edges.size(), "Edges listed twice for node " + node);
+            assertEquals(expectedEdges, new TreeSet<>(edges));
+        }
+    }
+
+    @NotNull
+    private static List<Integer> collectPorts(@NotNull SceneGraph graph, int node) {
+        List<Integer> ports = new ArrayList<>();
+        graph.forEachNodePort(node, ports::add);
+        return ports;
+    }
+
+    @NotNull
+    private static List<Integer> collectEdges(@NotNull SceneGraph graph, int node) {
+        List<Integer> edges = new ArrayList<>();
+        graph.forEachNodeEdge(node, edges::add);
+        return edges;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Rivan Parmar
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rivan.android.studio.visualize.scene;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpatialIndexTest {
+
+    @Test
+    void queryFindsTheIntersectingItems() {
+        Random random = new Random(42);
+        SpatialIndex index = new SpatialIndex();
+        Rectangle2D.Double[] bounds = new Rectangle2D.Double[2000];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = randomBounds(random);
+            index.insert(i, bounds[i]);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            Rectangle2D.Double area = randomBounds(random);
+            List<Integer> found = new ArrayList<>();
+            index.queryInIdOrder(area, found::add);
+            assertEquals(findIntersecting(bounds, area), found);
+        }
+    }
+
+    @Test
+    void itemsOnTheEdgeOfTheAreaAreFound() {
+        SpatialIndex index = new SpatialIndex();
+        index.insert(0, new Rectangle2D.Double(10, 10, 0, 0));
+        List<Integer> found = new ArrayList<>();
+        index.query(new Rectangle2D.Double(0, 0, 10, 10), found::add);
+        assertEquals(List.of(0), found);
+    }
+
+    @Test
+    void itemsStraddlingSplitLinesLeaveTheRoot() {
+        SpatialIndex index = new SpatialIndex();
+        // A column of nodes laid out across the middle of the root cell
+        for (int i = 0; i < 500; i++) {
+            index.insert(i, new Rectangle2D.Double(500, i * 2, 48, 1.5));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertTrue(index.getDepth(i) > 2, "Item " + i + " is at depth " + index.getDepth(i));
+        }
+    }
+
+    @Test
+    void hitTestReturnsTheTopmostItem() {
+        SpatialIndex index = new SpatialIndex();
+        index.insert(3, new Rectangle2D.Double(0, 0, 100, 100));
+        index.insert(7, new Rectangle2D.Double(40, 40, 20, 20));
+        index.insert(5, new Rectangle2D.Double(45, 45, 10, 10));
+
+        assertEquals(7, index.hitTest(50, 50));
+        assertEquals(3, index.hitTest(10, 10));
+        assertEquals(-1, index.hitTest(200, 200));
+    }
+
+    @Test
+    void findNearestReturnsTheClosestItem() {
+        Random random = new Random(7);
+        SpatialIndex index = new SpatialIndex();
+        Rectangle2D.Double[] bounds = new Rectangle2D.Double[500];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = randomBounds(random);
+            index.insert(i, bounds[i]);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble() * 4000 - 1000;
+            double y = random.nextDouble() * 4000 - 1000;
+            int nearest = index.findNearest(x, y, Double.MAX_VALUE);
+            double expected = Double.MAX_VALUE;
+            for (Rectangle2D.Double item : bounds) {
+                expected = Math.min(expected, distance(item, x, y));
+            }
+            assertEquals(expected, distance(bounds[nearest], x, y), 1e-9);
+        }
+        assertEquals(-1, index.findNearest(100000, 100000, 10));
+    }
+
+    @Test
+    void movedAndRemovedItemsAreUpdated() {
+        SpatialIndex index = new SpatialIndex();
+        index.insert(0, new Rectangle2D.Double(0, 0, 10, 10));
+        index.insert(1, new Rectangle2D.Double(20, 20, 10, 10));
+        index.update(0, new Rectangle2D.Double(5000, -3000, 10, 10));
+
+        assertEquals(-1, index.hitTest(5, 5));
+        assertEquals(0, index.hitTest(5005, -2995));
+        assertTrue(index.remove(1));
+        assertFalse(index.remove(1));
+        assertEquals(1, index.size());
+        assertEquals(-1, index.hitTest(25, 25));
+
+        Rectangle2D.Double out = new Rectangle2D.Double();
+        assertTrue(index.getBounds(0, out));
+        assertEquals(new Rectangle2D.Double(5000, -3000, 10, 10), out);
+        assertFalse(index.getBounds(1, out));
+    }
+
+    @Test
+    void queryInIdOrderCanBeNested() {
+        SpatialIndex index = new SpatialIndex();
+        for (int i = 0; i < 50; i++) {
+            index.insert(i, new Rectangle2D.Double(i * 10, 0, 5, 5));
+        }
+        Rectangle2D.Double all = new Rectangle2D.Double(0, 0, 500, 5);
+        List<Integer> outer = new ArrayList<>();
+        List<Integer> inner = new ArrayList<>();
+        index.queryInIdOrder(all, id -> {
+            outer.add(id);
+            if (id == 10) {
+                index.queryInIdOrder(new Rectangle2D.Double(0, 0, 25, 5), inner::add);
+            }
+        });
+
+        assertEquals(50, outer.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, outer.get(i));
+        }
+        assertEquals(List.of(0, 1, 2), inner);
+    }
+
+    @Test
+    void invalidBoundsAreRejected() {
+        SpatialIndex index = new SpatialIndex();
+        assertThrows(IllegalArgumentException.class, () -> index.insert(0, new Rectangle2D.Double(Double.NaN, 0, 1, 1)));
+        assertThrows(IllegalArgumentException.class, () -> index.insert(-1, new Rectangle2D.Double(0, 0, 1, 1)));
+    }
+
+    private static Rectangle2D.Double randomBounds(Random random) {
+        return new Rectangle2D.Double(random.nextDouble() * 3000 - 500, random.nextDouble() * 3000 - 500,
+                                      random.nextDouble() * 200, random.nextDouble() * 200);
+    }
+
+    private static List<Integer> findIntersecting(Rectangle2D.Double[] bounds, Rectangle2D.Double area) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < bounds.length; i++) {
+            Rectangle2D.Double item = bounds[i];
+            if (item.getMaxX() >= area.getMinX() && item.getMinX() <= area.getMaxX()
+                    && item.getMaxY() >= area.getMinY() && item.getMinY() <= area.getMaxY()) {
+                ids.add(i);
+            }
+        }
+        return ids;
+    }
+
+    private static double distance(Rectangle2D.Double bounds, double x, double y) {
+        double dx = Math.max(0, Math.max(bounds.getMinX() - x, x - bounds.getMaxX()));
+        double dy = Math.max(0, Math.max(bounds.getMinY() - y, y - bounds.getMaxY()));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}